@@ -0,0 +1,289 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.hubspot.utils.HubSpotObject;
+
+/**
+ * Gate that limits the number of calls in flight, tuning the limit from the latency and
+ * failures it observes, much like TCP congestion control tunes its window.
+ * 
+ * The limit follows a latency gradient: the ratio between the lowest latency seen recently
+ * (the "no load" latency) and the average latency of the calls that completed since the 
+ * last update. While calls complete as fast as they do without load the gradient is 1.0 and
+ * the limit grows by its square root, which allows a small queue to build up; as soon as
+ * queueing shows up in the latencies the gradient drops below 1.0 and shrinks the limit 
+ * proportionally. A failed call cuts the limit multiplicatively instead. 
+ * 
+ * The limit is updated once per window of completed calls as large as the limit itself 
+ * (i.e., roughly once per round trip), and every new limit is smoothed into the current one,
+ * so a single outlier can't swing it.
+ * 
+ * Admission and completion are lock-free: completed calls are added up in atomic 
+ * accumulators, and only the call completing a window computes the new limit.
+ * 
+ * Calls are admitted by priority: NORMAL calls, which is what calls without a priority are,
+ * up to the limit itself, SHEDDABLE ones only while fewer than half the limit are in 
+ * flight, and CRITICAL ones up to a tenth beyond the limit, so they still get through when
+ * ordinary calls use it all.
+ */
+public class AdaptiveConcurrencyLimiter extends HubSpotObject implements PriorityAwareGate {
+
+	// lowest the gradient can get, so a latency spike at most halves the limit
+	private static final double MIN_GRADIENT = 0.5;
+	
+	// factor applied to the limit when a call fails
+	private static final double FAILURE_BACKOFF = 0.9;
+	
+	// fractions of the limit available to CRITICAL and SHEDDABLE calls
+	private static final double CRITICAL_SHARE = 1.1;
+	private static final double SHEDDABLE_SHARE = 0.5;
+	
+	private final int minLimit;
+	private final int maxLimit;
+	
+	// weight (0.0 - 1.0] of each new limit computation in the smoothed limit
+	private final double smoothing;
+	
+	// number of completed calls after which the no load latency may be measured afresh
+	private final int baselineResetSamples;
+	
+	// current limit on calls in flight
+	private volatile double limit;
+	
+	private final AtomicInteger inFlight = new AtomicInteger();
+	
+	// lowest average window latency seen since the last reset, in nanoseconds (guarded by updating)
+	private long baselineNanos = 0;
+	
+	// completed calls since the last reset of the no load latency (guarded by updating)
+	private int samples = 0;
+	
+	// sum of the latencies and number of successful calls in the current window
+	private final LongAdder windowLatencySum = new LongAdder();
+	private final AtomicInteger windowSamples = new AtomicInteger();
+	
+	// whether a call failed during the current window
+	private volatile boolean windowFailed = false;
+	
+	// highest number of calls in flight seen during the current window
+	private final AtomicInteger windowMaxInFlight = new AtomicInteger();
+	
+	// held by the call updating the limit
+	private final AtomicBoolean updating = new AtomicBoolean();
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param initialLimit: number of calls allowed in flight before we've measured anything
+	 * 
+	 * @param minLimit: the limit never drops below this number of calls
+	 * 
+	 * @param maxLimit: the limit never grows beyond this number of calls
+	 * 
+	 * @param smoothing: weight (0.0 - 1.0] given to each new measurement; lower values
+	 * converge slower but are less noisy
+	 * 
+	 * @param baselineResetSamples: number of completed calls after which the no load
+	 * latency is measured again (the next time the limit isn't saturated), so we follow
+	 * a resource that got permanently slower
+	 * 
+	 * @throws CircuitBreakerWrappingException
+	 */
+	public AdaptiveConcurrencyLimiter(int initialLimit, 
+									  int minLimit, 
+									  int maxLimit, 
+									  double smoothing,
+									  int baselineResetSamples) throws CircuitBreakerWrappingException {
+		if( minLimit <= 0 ) {
+			throw new CircuitBreakerWrappingException("Invalid minimum concurrency limit.");
+		}
+		
+		if( maxLimit < minLimit ) {
+			throw new CircuitBreakerWrappingException("Invalid maximum concurrency limit.");
+		}
+		
+		if( initialLimit < minLimit || initialLimit > maxLimit ) {
+			throw new CircuitBreakerWrappingException("Invalid initial concurrency limit.");
+		}
+		
+		if( smoothing <= 0.0 || smoothing > 1.0 ) {
+			throw new CircuitBreakerWrappingException("Invalid smoothing factor.");
+		}
+		
+		if( baselineResetSamples <= 0 ) {
+			throw new CircuitBreakerWrappingException("Invalid baseline reset sample count.");
+		}
+		
+		this.limit = initialLimit;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.smoothing = smoothing;
+		this.baselineResetSamples = baselineResetSamples;
+	}
+	
+	/**
+	 * Constructor using a smoothing factor of 0.2 and measuring the no load latency
+	 * afresh every 1000 calls
+	 * 
+	 * @throws CircuitBreakerWrappingException
+	 */
+	public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) throws CircuitBreakerWrappingException {
+		this(initialLimit, minLimit, maxLimit, 0.2, 1000);
+	}
+
+	/**
+	 * Admits a call without a priority as a NORMAL one, as wrapped methods do
+	 */
+	@Override
+	public boolean admit(Method m) {
+		return admit(m, CallPriority.NORMAL);
+	}
+	
+	@Override
+	public boolean admit(Method m, CallPriority priority) {
+		double available = limit;
+		if( priority == CallPriority.CRITICAL ) {
+			available = available * CRITICAL_SHARE;
+		} else if( priority == CallPriority.SHEDDABLE ) {
+			available = Math.max(1, available * SHEDDABLE_SHARE);
+		}
+		
+		while( true ) {
+			int current = inFlight.get();
+			if( current >= (int) available ) {
+				return false;
+			}
+			if( inFlight.compareAndSet(current, current + 1) ) {
+				return true;
+			}
+		}
+	}
+
+	@Override
+	public void release(Method m, long latencyNanos, boolean failed) {
+		int wasInFlight = inFlight.getAndDecrement();
+		
+		int max = windowMaxInFlight.get();
+		while( wasInFlight > max && !windowMaxInFlight.compareAndSet(max, wasInFlight) ) {
+			max = windowMaxInFlight.get();
+		}
+		
+		int completed;
+		if( failed ) {
+			windowFailed = true;
+			completed = windowSamples.get();
+		} else if( latencyNanos > 0 ) {
+			windowLatencySum.add(latencyNanos);
+			completed = windowSamples.incrementAndGet();
+		} else {
+			completed = windowSamples.get();
+		}
+		
+		if( (windowFailed || completed >= limit) && updating.compareAndSet(false, true) ) {
+			try {
+				updateLimit();
+			} finally {
+				updating.set(false);
+			}
+		}
+	}
+	
+	/**
+	 * Ends the window if it is complete or a call failed in it, and updates the limit 
+	 * (guarded by updating). Calls completing meanwhile count towards either window.
+	 */
+	private void updateLimit() {
+		double current = limit;
+		if( windowFailed ) {
+			windowFailed = false;
+			resetWindow();
+			limit = Math.max(minLimit, current * FAILURE_BACKOFF);
+			return;
+		}
+		if( windowSamples.get() < current ) {
+			// somebody else ended the window first
+			return;
+		}
+		
+		int completed = windowSamples.getAndSet(0);
+		long latencySum = windowLatencySum.sumThenReset();
+		int maxInFlight = windowMaxInFlight.getAndSet(0);
+		limit = computeLimit(current, completed, latencySum / completed, maxInFlight * 2 >= current);
+	}
+	
+	private void resetWindow() {
+		windowSamples.set(0);
+		windowLatencySum.reset();
+		windowMaxInFlight.set(0);
+	}
+	
+	/**
+	 * Computes the limit at the end of a window of successful calls (guarded by updating)
+	 * 
+	 * @param completed: number of calls in the window
+	 * @param averageNanos: average latency of the calls in the window
+	 * @param saturated: whether calls were queueing up behind the limit during the window
+	 */
+	private double computeLimit(double current, int completed, long averageNanos, boolean saturated) {
+		// only measure the no load latency afresh when we aren't saturated, otherwise
+		// we'd pick up our own queueing and creep the limit upwards
+		samples += completed;
+		if( samples >= baselineResetSamples && !saturated ) {
+			samples = 0;
+			baselineNanos = averageNanos;
+		} else if( baselineNanos == 0 || averageNanos < baselineNanos ) {
+			baselineNanos = averageNanos;
+		}
+		
+		double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, (double) baselineNanos / averageNanos));
+		double newLimit = current * gradient + Math.sqrt(current);
+		
+		// don't grow a limit that we aren't anywhere near using
+		if( newLimit > current && !saturated ) {
+			return current;
+		}
+		
+		newLimit = current * (1.0 - smoothing) + newLimit * smoothing;
+		return Math.max(minLimit, Math.min(maxLimit, newLimit));
+	}
+
+	@Override
+	public RejectionReason getRejectionReason() {
+		return RejectionReason.CONCURRENCY_LIMITED;
+	}
+	
+	/**
+	 * Returns the number of calls currently allowed in flight
+	 */
+	public int getLimit() {
+		return (int) limit;
+	}
+	
+	/**
+	 * Returns the number of admitted calls that haven't completed yet
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+}
@@ -0,0 +1,63 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.util.Arrays;
+
+/**
+ * Key identifying a call by the values of its arguments, compared deeply so that array
+ * arguments with equal contents are equal keys.
+ */
+final class ArgumentsKey {
+
+	private static final Object[] NO_ARGS = new Object[0];
+	
+	private final Object[] args;
+	private final int hash;
+	
+	ArgumentsKey(Object[] args) {
+		this.args = args == null ? NO_ARGS : args;
+		this.hash = Arrays.deepHashCode(this.args);
+	}
+	
+	Object[] getArgs() {
+		return args;
+	}
+	
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof ArgumentsKey)) {
+			return false;
+		}
+		ArgumentsKey other = (ArgumentsKey) o;
+		return hash == other.hash && Arrays.deepEquals(args, other.args);
+	}
+	
+	@Override
+	public String toString() {
+		return Arrays.deepToString(args);
+	}
+}
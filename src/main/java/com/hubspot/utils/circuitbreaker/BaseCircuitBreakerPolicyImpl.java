@@ -18,12 +18,13 @@
 package com.hubspot.utils.circuitbreaker;
 
 import java.lang.reflect.Method;
+import java.time.Clock;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.Deque;
 import java.util.List;
+import java.util.Random;
 
 import com.hubspot.utils.HubSpotObject;
 
@@ -33,6 +34,12 @@ import com.hubspot.utils.HubSpotObject;
  * the policy moves the breaker to the OPEN state. It also takes a halfOpenTimeout which
  * determines when to attempt a retry on the wrapped resource.
  * 
+ * Optionally, the time spent OPEN can back off exponentially: every trip that happens
+ * before the breaker has been healthy (CLOSED) for backoffResetPeriod seconds multiplies
+ * the open duration by backoffMultiplier, up to maxHalfOpenTimeout seconds. A jitter
+ * fraction can be supplied so that many breakers tripped by the same outage don't all
+ * probe the wrapped resource at the same moment.
+ * 
  */
 public class BaseCircuitBreakerPolicyImpl extends HubSpotObject implements CircuitBreakerPolicy, Notifier<StateChange>{
 
@@ -52,8 +59,35 @@ public class BaseCircuitBreakerPolicyImpl extends HubSpotObject implements Circu
 	// collection of failure timestamps used to compute our failure rate
 	protected Deque<Date> failures = new ArrayDeque<Date>(); 
 	
-	// current state of the circuit breaker
-	protected CircuitBreakerState currentState = CircuitBreakerState.CLOSED;
+	// current state of the circuit breaker, read without locking on the call path
+	protected volatile CircuitBreakerState currentState = CircuitBreakerState.CLOSED;
+	
+	// multiplier applied to the open duration for every consecutive trip (1.0 disables backoff)
+	protected double backoffMultiplier = 1.0;
+	
+	// upper bound, in seconds, for the backed off open duration
+	protected int maxHalfOpenTimeout;
+	
+	// fraction (0.0 - 1.0) of the open duration that is randomly shaved off to spread out probes
+	protected double backoffJitter = 0.0;
+	
+	// number of seconds the breaker has to stay CLOSED before the backoff level is reset
+	protected int backoffResetPeriod = 0;
+	
+	// number of consecutive trips that count towards the backoff
+	protected int backoffLevel = 0;
+	
+	// open duration, in milliseconds, computed when the breaker last tripped
+	protected long openDurationMillis;
+	
+	// tracks when the circuit breaker last moved to CLOSED so we can decide whether to reset the backoff
+	protected Date closedTimestamp;
+	
+	// source of randomness for the backoff jitter
+	protected Random random = new Random();
+	
+	// source of the current time, replaced by a virtual clock in simulations
+	protected Clock clock = Clock.systemUTC();
 	
 	// list of parties interested in receiving state change notifications
 	List<NotificationHandler<StateChange>> notificationChain = new ArrayList<NotificationHandler<StateChange>>();
@@ -77,6 +111,58 @@ public class BaseCircuitBreakerPolicyImpl extends HubSpotObject implements Circu
 										int thresholdWindow,
 										List<NotificationHandler<StateChange>> notificationChain) throws CircuitBreakerWrappingException {
 		// parameter check
+		validate(tripThreshold, halfOpenTimeout, thresholdWindow, 1.0, halfOpenTimeout, 0.0, 0);
+		
+		this.tripThreshold = tripThreshold;
+		this.halfOpenTimeout = halfOpenTimeout;
+		this.thresholdWindow = thresholdWindow;
+		this.maxHalfOpenTimeout = halfOpenTimeout;
+		this.openDurationMillis = halfOpenTimeout * 1000L;
+		if( notificationChain != null ) {
+			this.notificationChain = notificationChain;
+		}
+	}
+	
+	/**
+	 * Constructor for a policy whose open duration backs off exponentially
+	 * 
+	 * @param backoffMultiplier: Factor applied to the open duration for every trip that
+	 * happens before the breaker has been healthy for backoffResetPeriod seconds
+	 * 
+	 * @param maxHalfOpenTimeout: Upper bound (in seconds) for the backed off open duration
+	 * 
+	 * @param backoffJitter: Fraction (0.0 - 1.0) of the open duration that is randomly
+	 * removed so that breakers tripped together don't probe together
+	 * 
+	 * @param backoffResetPeriod: Number of seconds the breaker has to stay CLOSED before
+	 * the next trip goes back to using halfOpenTimeout
+	 * 
+	 * @throws CircuitBreakerWrappingException
+	 */
+	public BaseCircuitBreakerPolicyImpl(int tripThreshold,
+										int halfOpenTimeout,
+										int thresholdWindow,
+										double backoffMultiplier,
+										int maxHalfOpenTimeout,
+										double backoffJitter,
+										int backoffResetPeriod,
+										List<NotificationHandler<StateChange>> notificationChain) throws CircuitBreakerWrappingException {
+		this(tripThreshold, halfOpenTimeout, thresholdWindow, notificationChain);
+		validate(tripThreshold, halfOpenTimeout, thresholdWindow, backoffMultiplier, maxHalfOpenTimeout, backoffJitter, backoffResetPeriod);
+		
+		this.backoffMultiplier = backoffMultiplier;
+		this.maxHalfOpenTimeout = maxHalfOpenTimeout;
+		this.backoffJitter = backoffJitter;
+		this.backoffResetPeriod = backoffResetPeriod;
+	}
+	
+	/**
+	 * Checks a full set of settings, as taken by the constructors
+	 * 
+	 * @throws CircuitBreakerWrappingException describing the first invalid setting
+	 */
+	static void validate(int tripThreshold, int halfOpenTimeout, int thresholdWindow, double backoffMultiplier, 
+			int maxHalfOpenTimeout, double backoffJitter, int backoffResetPeriod) throws CircuitBreakerWrappingException {
 		if( tripThreshold <= 0 ) {
 			throw new CircuitBreakerWrappingException("Invalid trip threshold.");
 		}
@@ -89,14 +175,56 @@ public class BaseCircuitBreakerPolicyImpl extends HubSpotObject implements Circu
 			throw new CircuitBreakerWrappingException("Invalid reset timeout");
 		}
 		
-		this.tripThreshold = tripThreshold;
-		this.halfOpenTimeout = halfOpenTimeout;
-		this.thresholdWindow = thresholdWindow;
-		if( notificationChain != null ) {
-			this.notificationChain = notificationChain;
+		if( backoffMultiplier < 1.0 ) {
+			throw new CircuitBreakerWrappingException("Invalid backoff multiplier.");
+		}
+		
+		if( maxHalfOpenTimeout < halfOpenTimeout ) {
+			throw new CircuitBreakerWrappingException("Invalid maximum half-open circuit breaker timeout.");
+		}
+		
+		if( backoffJitter < 0.0 || backoffJitter >= 1.0 ) {
+			throw new CircuitBreakerWrappingException("Invalid backoff jitter.");
+		}
+		
+		if( backoffResetPeriod < 0 ) {
+			throw new CircuitBreakerWrappingException("Invalid backoff reset period.");
 		}
 	}
 	
+	/**
+	 * Replaces the settings of the policy while keeping its state, failure window and backoff
+	 * level. The settings are checked in full first, and either all of them are applied or 
+	 * none is; calls deciding on them see either the old or the new set, never a mix. A breaker
+	 * that is OPEN stays so for the duration computed when it tripped.
+	 * 
+	 * @throws CircuitBreakerWrappingException if any of the settings is invalid
+	 */
+	public void reconfigure(int tripThreshold, int halfOpenTimeout, int thresholdWindow, double backoffMultiplier, 
+			int maxHalfOpenTimeout, double backoffJitter, int backoffResetPeriod) throws CircuitBreakerWrappingException {
+		validate(tripThreshold, halfOpenTimeout, thresholdWindow, backoffMultiplier, maxHalfOpenTimeout, backoffJitter, backoffResetPeriod);
+		
+		synchronized (this) {
+			this.tripThreshold = tripThreshold;
+			this.halfOpenTimeout = halfOpenTimeout;
+			this.thresholdWindow = thresholdWindow;
+			this.backoffMultiplier = backoffMultiplier;
+			this.maxHalfOpenTimeout = maxHalfOpenTimeout;
+			this.backoffJitter = backoffJitter;
+			this.backoffResetPeriod = backoffResetPeriod;
+		}
+	}
+	
+	/**
+	 * Replaces the trip threshold, half open timeout and threshold window, keeping the backoff
+	 * settings; see the full version. The maximum half open timeout is raised to the new half
+	 * open timeout if it is below it, and follows it for a policy that doesn't back off.
+	 */
+	public synchronized void reconfigure(int tripThreshold, int halfOpenTimeout, int thresholdWindow) throws CircuitBreakerWrappingException {
+		int max = backoffMultiplier == 1.0 ? halfOpenTimeout : Math.max(maxHalfOpenTimeout, halfOpenTimeout);
+		reconfigure(tripThreshold, halfOpenTimeout, thresholdWindow, backoffMultiplier, max, backoffJitter, backoffResetPeriod);
+	}
+	
 	/**
 	 * Constructor
 	 * @param tripThreshold
@@ -116,10 +244,23 @@ public class BaseCircuitBreakerPolicyImpl extends HubSpotObject implements Circu
 	 * Moves the breaker to a CLOSED state
 	 */
 	@Override
-	public synchronized void successfulCall(Method m) {
-		if( currentState != CircuitBreakerState.CLOSED && m != null) {
-			getLog().info("Circuit breaker moving to CLOSED from "+currentState+" due to successful invocation of "+m.getDeclaringClass().getName()+"."+m.getName());
+	public void successfulCall(Method m) {
+		// nothing to do for the common case, and no need to lock for it
+		if( currentState == CircuitBreakerState.CLOSED ) {
+			return;
+		}
+		synchronized (this) {
+			moveToClosed(m);
+		}
+	}
+	
+	private void moveToClosed(Method m) {
+		if( currentState != CircuitBreakerState.CLOSED ) {
+			if( m != null ) {
+				getLog().info("Circuit breaker moving to CLOSED from "+currentState+" due to successful invocation of "+m.getDeclaringClass().getName()+"."+m.getName());
+			}
 			notifyHandlers(new StateChange(currentState, CircuitBreakerState.CLOSED, m));
+			closedTimestamp = new Date(clock.millis());
 		}
 		currentState = CircuitBreakerState.CLOSED;	
 	}
@@ -131,17 +272,19 @@ public class BaseCircuitBreakerPolicyImpl extends HubSpotObject implements Circu
 	 */
 	@Override
 	public synchronized void failedBlacklistedCall(Method m) {
-		failedBlacklistedCall(new Date(), m);
+		failedBlacklistedCall(new Date(clock.millis()), m);
 	}
 	
-	public void failedBlacklistedCall(Date timestamp, Method m) {
+	/**
+	 * Records a failure that happened at the supplied time. Like every other transition, this
+	 * holds the policy's lock, so concurrent failures can't lose a trip or notify it twice.
+	 */
+	public synchronized void failedBlacklistedCall(Date timestamp, Method m) {
 		// add the latest failure timestamp to our list of failures
 		failures.push(timestamp);
 
 		// pop off failures that have exited our threshold window
-		Calendar c = Calendar.getInstance();
-		c.add(Calendar.SECOND, -thresholdWindow);
-		Date cutoffThreshold = c.getTime();
+		Date cutoffThreshold = new Date(clock.millis() - thresholdWindow * 1000L);
 		
 		while(failures.size() > 0 && failures.peekLast().before(cutoffThreshold)) {
 			failures.pollLast();
@@ -158,9 +301,50 @@ public class BaseCircuitBreakerPolicyImpl extends HubSpotObject implements Circu
 			}
 			notifyHandlers(new StateChange(currentState, CircuitBreakerState.OPEN, m));
 			currentState = CircuitBreakerState.OPEN;
-			trippedTimestamp = new Date();
+			trippedTimestamp = new Date(clock.millis());
+			openDurationMillis = computeOpenDurationMillis(trippedTimestamp);
 		} 
 	}
+	
+	/**
+	 * Computes how long the breaker should stay OPEN after tripping at the supplied time,
+	 * advancing the backoff level as a side effect.
+	 */
+	protected long computeOpenDurationMillis(Date tripped) {
+		// a long enough healthy period forgives all previous trips
+		if( closedTimestamp != null && 
+				tripped.getTime() - closedTimestamp.getTime() >= backoffResetPeriod * 1000L ) {
+			backoffLevel = 0;
+		}
+		closedTimestamp = null;
+		
+		double duration = halfOpenTimeout * Math.pow(backoffMultiplier, backoffLevel);
+		if( duration >= maxHalfOpenTimeout ) {
+			duration = maxHalfOpenTimeout;
+		} else {
+			backoffLevel++;
+		}
+		
+		if( backoffJitter > 0.0 ) {
+			duration -= duration * backoffJitter * random.nextDouble();
+		}
+		return (long) (duration * 1000);
+	}
+	
+	/**
+	 * Returns the number of milliseconds the breaker stays OPEN for its current trip
+	 */
+	public long getOpenDurationMillis() {
+		return openDurationMillis;
+	}
+	
+	/**
+	 * Replaces the clock the policy reads the current time from, e.g. with the virtual clock
+	 * of a CircuitBreakerSimulator
+	 */
+	public synchronized void setClock(Clock clock) {
+		this.clock = clock;
+	}
 
 	/**
 	 * Determines if the circuit breaker should return to an CLOSED state from
@@ -171,20 +355,22 @@ public class BaseCircuitBreakerPolicyImpl extends HubSpotObject implements Circu
 	 */
 	@Override
 	public synchronized boolean shouldAttemptReset() {
-		return shouldAttemptReset(new Date());
+		return shouldAttemptReset(new Date(clock.millis()));
 	}
 	
-	public boolean shouldAttemptReset(Date timestamp) {
+	/**
+	 * Determines if the breaker should move to HALF_OPEN at the supplied time. Only one of 
+	 * any number of concurrent callers is told to attempt the reset.
+	 */
+	public synchronized boolean shouldAttemptReset(Date timestamp) {
 		if (currentState != CircuitBreakerState.OPEN)
 			return false;
 		
-		// figure out if we're past the reset timeout and
+		// figure out if we're past the (possibly backed off) reset timeout and
 		// possibly move our state to HALF_OPEN
-		Calendar c = Calendar.getInstance();
-		c.setTime(trippedTimestamp);
-		c.add(Calendar.SECOND, halfOpenTimeout);
+		Date resetTimestamp = new Date(trippedTimestamp.getTime() + openDurationMillis);
 	
-		if(timestamp.after(c.getTime())) {
+		if(timestamp.after(resetTimestamp)) {
 			notifyHandlers(new StateChange(currentState, CircuitBreakerState.HALF_OPEN, null));
 			currentState = CircuitBreakerState.HALF_OPEN;
 			return true;
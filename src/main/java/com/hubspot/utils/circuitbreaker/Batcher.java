@@ -0,0 +1,180 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects concurrent calls to a single-key method into one call to its bulk counterpart.
+ * 
+ * The first caller to arrive opens a batch and becomes its leader: it waits for the batch
+ * window to elapse (or for the batch to fill up), then calls the bulk method with the keys
+ * of everybody who joined, and hands each of them their value from the returned map. 
+ * If the bulk call throws, every caller in the batch receives the same exception. A key 
+ * missing from the map is returned as null, or for a method returning a primitive, thrown
+ * as an IllegalStateException.
+ * 
+ * The bulk call is decided by the leader's Deadline and CallPriority, so, as with 
+ * SingleFlight, a caller only joins the open batch if its leader would be turned away no 
+ * sooner than the caller. Other callers open a batch of their own, which later callers join
+ * instead, so that a CRITICAL caller isn't held up or shed along with a SHEDDABLE leader.
+ */
+class Batcher {
+
+	/**
+	 * Carries out the bulk call for a batch of keys
+	 */
+	interface BulkInvocation {
+		Object proceed(Collection<Object> keys) throws Throwable;
+	}
+	
+	/**
+	 * A batch being collected or in flight, and its outcome once it has completed
+	 */
+	private static final class Batch {
+		final Set<Object> keys = new LinkedHashSet<Object>();
+		final CountDownLatch full = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		
+		// the leader's, null if it has no deadline
+		final Deadline deadline;
+		final CallPriority priority;
+		
+		Map<?, ?> results;
+		Throwable thrown;
+		
+		Batch(Deadline deadline, CallPriority priority) {
+			this.deadline = deadline;
+			this.priority = priority;
+		}
+	}
+	
+	// the method taking a collection of keys and returning a map of key to value
+	final Method bulkMethod;
+	
+	// whether the bulk method takes a Set rather than a List
+	private final boolean bulkTakesSet;
+	
+	private final int maxBatchSize;
+	private final long windowNanos;
+	
+	// batch currently accepting keys, null if there is none (guarded by this)
+	private Batch open;
+	
+	Batcher(Method bulkMethod, int maxBatchSize, long windowMillis) {
+		this.bulkMethod = bulkMethod;
+		this.bulkTakesSet = !bulkMethod.getParameterTypes()[0].isAssignableFrom(ArrayList.class);
+		this.maxBatchSize = maxBatchSize;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+	}
+	
+	/**
+	 * Returns the value for the supplied key, obtained through a bulk call shared with the
+	 * other callers that arrive within the same window
+	 * 
+	 * @param metrics: where calls joining somebody else's batch are counted
+	 */
+	Object get(MonitoredMethod monitored, Object key, BulkInvocation bulk, CircuitBreakerMetrics metrics) throws Throwable {
+		Deadline deadline = Deadline.current();
+		CallPriority priority = CallGuard.priorityOf(monitored);
+		Batch batch;
+		boolean leader = false;
+		synchronized (this) {
+			if (open == null || !CallGuard.admitsAsMuchAs(open.deadline, open.priority, deadline, priority)) {
+				// the leader of the open batch may be turned away where we wouldn't be
+				open = new Batch(deadline, priority);
+				leader = true;
+			}
+			batch = open;
+			batch.keys.add(key);
+			if (batch.keys.size() >= maxBatchSize) {
+				open = null;
+				batch.full.countDown();
+			}
+		}
+		
+		if (leader) {
+			lead(batch, bulk);
+		} else {
+			metrics.batchedCall(monitored.method);
+			awaitUninterruptibly(batch.done);
+		}
+		
+		if (batch.thrown != null) {
+			throw batch.thrown;
+		}
+		Object value = batch.results == null ? null : batch.results.get(key);
+		if (value == null && monitored.method.getReturnType().isPrimitive()) {
+			// rather than the NullPointerException the proxy would throw
+			throw new IllegalStateException(bulkMethod.getName() + " returned no value for key " + key + 
+					", which " + monitored.method.getName() + " can't return as null");
+		}
+		return value;
+	}
+	
+	/**
+	 * Waits for the batch to fill up or its window to elapse, and carries out the bulk call
+	 */
+	private void lead(Batch batch, BulkInvocation bulk) {
+		try {
+			if (windowNanos > 0) {
+				batch.full.await(windowNanos, TimeUnit.NANOSECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		Collection<Object> keys;
+		synchronized (this) {
+			if (open == batch) {
+				open = null;
+			}
+			keys = bulkTakesSet ? new LinkedHashSet<Object>(batch.keys) : new ArrayList<Object>(batch.keys);
+		}
+		
+		try {
+			batch.results = (Map<?, ?>) bulk.proceed(keys);
+		} catch (Throwable t) {
+			batch.thrown = t;
+		} finally {
+			batch.done.countDown();
+		}
+	}
+	
+	private static void awaitUninterruptibly(CountDownLatch latch) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				latch.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
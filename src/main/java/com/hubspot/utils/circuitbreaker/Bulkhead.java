@@ -0,0 +1,89 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+
+import com.hubspot.utils.HubSpotObject;
+
+/**
+ * Caps the number of calls in flight at a fixed number, rejecting the calls beyond it with a 
+ * CONCURRENCY_LIMITED CircuitBreakerException rather than queueing them, so that a slow 
+ * resource can't tie up every thread of the caller. It can be added to the gates of a wrapped 
+ * interface, or decorate calls made through the functional API.
+ */
+public class Bulkhead extends HubSpotObject implements CircuitBreakerGate, CallDecorator {
+
+	private final int maxConcurrentCalls;
+	private final Semaphore permits;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param maxConcurrentCalls: how many calls may be in flight at once
+	 */
+	public Bulkhead(int maxConcurrentCalls) throws CircuitBreakerWrappingException {
+		if( maxConcurrentCalls <= 0 ) {
+			throw new CircuitBreakerWrappingException("Invalid maximum number of concurrent calls.");
+		}
+		
+		this.maxConcurrentCalls = maxConcurrentCalls;
+		this.permits = new Semaphore(maxConcurrentCalls);
+	}
+	
+	@Override
+	public boolean admit(Method m) {
+		return permits.tryAcquire();
+	}
+	
+	@Override
+	public void release(Method m, long latencyNanos, boolean failed) {
+		permits.release();
+	}
+	
+	@Override
+	public RejectionReason getRejectionReason() {
+		return RejectionReason.CONCURRENCY_LIMITED;
+	}
+	
+	@Override
+	public <T> Callable<T> decorateCallable(final Callable<T> callable) {
+		return new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				if( !permits.tryAcquire() ) {
+					throw new CircuitBreakerException(RejectionReason.CONCURRENCY_LIMITED);
+				}
+				try {
+					return callable.call();
+				} finally {
+					permits.release();
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Returns the number of calls currently in flight
+	 */
+	public int getInFlight() {
+		return maxConcurrentCalls - permits.availablePermits();
+	}
+}
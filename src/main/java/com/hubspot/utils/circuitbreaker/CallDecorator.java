@@ -0,0 +1,33 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Wraps a call with some behavior, for calls made through the functional API rather than a
+ * wrapped interface. Decorators compose by decorating each other's result; CircuitBreaker,
+ * Bulkhead and CallTimeout are decorators.
+ */
+public interface CallDecorator {
+
+	/**
+	 * Returns a call doing what the supplied one does, with this decorator's behavior added
+	 */
+	<T> Callable<T> decorateCallable(Callable<T> callable);
+}
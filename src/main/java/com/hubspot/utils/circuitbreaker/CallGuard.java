@@ -0,0 +1,288 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.reflect.Method;
+
+import com.hubspot.utils.HubSpotObject;
+import com.hubspot.utils.circuitbreaker.CircuitBreakerPolicy.CircuitBreakerState;
+
+/**
+ * Admits calls to monitored methods and records their outcome, for a breaker's policy, 
+ * parent policy and metrics. Shared by CircuitBreakerInvocationHandler and CircuitBreaker,
+ * so that calls through a wrapped interface and calls passed to a breaker directly are 
+ * governed the same way.
+ */
+class CallGuard extends HubSpotObject {
+
+	private final CircuitBreakerPolicy policy;
+	private final CircuitBreakerPolicy parent;
+	private final CircuitBreakerMetrics metrics;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param parent: policy whose OPEN state rejects our calls too, and into which our
+	 * failures and successes roll up; null if there is none
+	 */
+	CallGuard(CircuitBreakerPolicy policy, CircuitBreakerPolicy parent, CircuitBreakerMetrics metrics) {
+		this.policy = policy;
+		this.parent = parent;
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Records that an admitted call completed, whatever its outcome: its latency, and the 
+	 * release of the method's gates
+	 */
+	void completed(MonitoredMethod monitored, long latencyNanos, boolean failed) {
+		metrics.callLatency(monitored.method, latencyNanos);
+		if (monitored.expectedLatency != null) {
+			monitored.expectedLatency.record(latencyNanos);
+		}
+		releaseGates(monitored, monitored.gates.length, latencyNanos, failed);
+	}
+	
+	/**
+	 * Records the outcome of a call to the monitored method with the metrics, the policy (or 
+	 * the call's partition), the parent policy and the call recorder. Calls that threw an 
+	 * exception which isn't blacklisted say nothing about the resource's health and don't 
+	 * close the breaker.
+	 * 
+	 * @param returned: false if the call threw an exception
+	 */
+	void recordOutcome(MonitoredMethod monitored, Object[] args, boolean failed, boolean returned, long latency) {
+		Method method = monitored.method;
+		if( failed ) {
+			metrics.failedCall(method);
+			if (monitored.partitions != null) {
+				monitored.partitions.failedCall(monitored.partitionKey(args));
+			} else {
+				policy.failedBlacklistedCall(method);
+			}
+			if (parent != null) {
+				parent.failedBlacklistedCall(method);
+			}
+			record(monitored, args, CallRecorder.Outcome.FAILURE, null, latency);
+		} else {
+			metrics.successfulCall(method);
+			if (returned) {
+				if (monitored.partitions != null) {
+					monitored.partitions.successfulCall(monitored.partitionKey(args));
+				} else {
+					policy.successfulCall(method);
+				}
+				if (parent != null) {
+					parent.successfulCall(method);
+				}
+			}
+			record(monitored, args, returned ? CallRecorder.Outcome.SUCCESS : CallRecorder.Outcome.EXCEPTION, null, latency);
+		}
+	}
+	
+	/**
+	 * Decides whether a call to a monitored method may go through: the caller's deadline must
+	 * leave time for it, the breaker must not be OPEN (unless it's time to attempt a reset), 
+	 * and each of the method's gates must admit it.
+	 * 
+	 * @throws CircuitBreakerException if the call is rejected
+	 */
+	void admit(MonitoredMethod monitored, Object[] args, boolean throughOpen) throws CircuitBreakerException {
+		checkDeadline(monitored);
+		checkBreaker(monitored, args, throughOpen);
+		admitGates(monitored);
+	}
+	
+	/**
+	 * Rejects the call if the current thread has a deadline, and less time remains before it
+	 * than the method is expected to take
+	 * 
+	 * @throws CircuitBreakerException if the call is rejected
+	 */
+	void checkDeadline(MonitoredMethod monitored) throws CircuitBreakerException {
+		Deadline deadline = Deadline.current();
+		if (deadline == null) {
+			return;
+		}
+		
+		long expected = monitored.expectedLatency == null ? 0 : monitored.expectedLatency.getNanos();
+		if (deadline.remainingNanos() <= expected) {
+			rejected(monitored, null, RejectionReason.DEADLINE_EXCEEDED);
+			throw new CircuitBreakerException(RejectionReason.DEADLINE_EXCEEDED);
+		}
+	}
+	
+	/**
+	 * Rejects the call if the parent breaker or the breaker is OPEN and it isn't time to attempt
+	 * a reset yet. Calls to partitioned methods are decided by the state of their key instead
+	 * of the breaker's. While either is HALF_OPEN, the probes of the resource are reserved for
+	 * calls that aren't SHEDDABLE.
+	 * 
+	 * @param throughOpen: true to ignore the breaker (but not the parent or partition) being OPEN
+	 * @throws CircuitBreakerException if the call is rejected
+	 */
+	void checkBreaker(MonitoredMethod monitored, Object[] args, boolean throughOpen) throws CircuitBreakerException {
+		boolean rejected;
+		if (parent != null && parent.getCurrentState() == CircuitBreakerState.OPEN &&
+				!parent.shouldAttemptReset()) {
+			rejected = true;
+		} else if (monitored.partitions != null) {
+			rejected = !monitored.partitions.admit(monitored.partitionKey(args));
+		} else {
+			rejected = !throughOpen && policy.getCurrentState() == CircuitBreakerState.OPEN &&
+				!policy.shouldAttemptReset();
+		}
+		if (!rejected && priorityOf(monitored) == CallPriority.SHEDDABLE) {
+			rejected = isHalfOpen(monitored, args);
+		}
+		
+		if (rejected) {
+			// breaker is open, just throw our standard CircuitBreakerException
+			rejected(monitored, args, RejectionReason.BREAKER_OPEN);
+			throw new CircuitBreakerException();
+		}
+	}
+	
+	/**
+	 * Returns whether the parent breaker or the breaker governing the call (the policy, or the
+	 * state of the call's key for partitioned methods) is OPEN
+	 */
+	boolean isOpen(MonitoredMethod monitored, Object[] args) {
+		if (parent != null && parent.getCurrentState() == CircuitBreakerState.OPEN) {
+			return true;
+		}
+		if (monitored.partitions != null) {
+			return monitored.partitions.getState(monitored.partitionKey(args)) == CircuitBreakerState.OPEN;
+		}
+		return policy.getCurrentState() == CircuitBreakerState.OPEN;
+	}
+	
+	/**
+	 * Returns whether the parent breaker or the breaker governing the call is HALF_OPEN
+	 */
+	boolean isHalfOpen(MonitoredMethod monitored, Object[] args) {
+		if (parent != null && parent.getCurrentState() == CircuitBreakerState.HALF_OPEN) {
+			return true;
+		}
+		if (monitored.partitions != null) {
+			return monitored.partitions.getState(monitored.partitionKey(args)) == CircuitBreakerState.HALF_OPEN;
+		}
+		return policy.getCurrentState() == CircuitBreakerState.HALF_OPEN;
+	}
+	
+	/**
+	 * Returns the priority of a call to the monitored method made by the current thread: the 
+	 * thread's, if it has entered one, or else the method's
+	 */
+	static CallPriority priorityOf(MonitoredMethod monitored) {
+		CallPriority current = CallPriority.current();
+		return current != null ? current : monitored.priority;
+	}
+	
+	/**
+	 * Returns whether a call made on behalf of other callers, and decided by its own caller's
+	 * deadline and priority, would be turned away no sooner than the supplied caller's: if its 
+	 * priority is at least as high, and its deadline leaves at least as much time
+	 * 
+	 * @param leaderDeadline: null if the call has no deadline
+	 */
+	static boolean admitsAsMuchAs(Deadline leaderDeadline, CallPriority leaderPriority, Deadline deadline, CallPriority priority) {
+		if (leaderPriority.ordinal() > priority.ordinal()) {
+			return false;
+		}
+		return leaderDeadline == null || 
+				(deadline != null && leaderDeadline.remainingNanos() >= deadline.remainingNanos());
+	}
+	
+	/**
+	 * Asks each of the method's gates in turn to admit the call. If one of them rejects it,
+	 * the gates that already admitted it are released and a CircuitBreakerException is thrown.
+	 */
+	void admitGates(MonitoredMethod monitored) throws CircuitBreakerException {
+		CircuitBreakerGate[] gates = monitored.gates;
+		CallPriority priority = priorityOf(monitored);
+		for (int i = 0; i < gates.length; i++) {
+			if (!admitGate(gates[i], monitored.method, priority)) {
+				releaseGates(monitored, i, 0, false);
+				RejectionReason reason = gates[i].getRejectionReason();
+				rejected(monitored, null, reason);
+				throw new CircuitBreakerException(reason);
+			}
+		}
+	}
+	
+	/**
+	 * Asks the method's gates to admit a hedged call, which is SHEDDABLE whatever the priority
+	 * of the original call, without recording a rejection
+	 * 
+	 * @return false if one of them rejected it
+	 */
+	boolean tryAdmitGates(MonitoredMethod monitored) {
+		CircuitBreakerGate[] gates = monitored.gates;
+		for (int i = 0; i < gates.length; i++) {
+			if (!admitGate(gates[i], monitored.method, CallPriority.SHEDDABLE)) {
+				releaseGates(monitored, i, 0, false);
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static boolean admitGate(CircuitBreakerGate gate, Method m, CallPriority priority) {
+		if (gate instanceof PriorityAwareGate) {
+			return ((PriorityAwareGate) gate).admit(m, priority);
+		}
+		return gate.admit(m);
+	}
+	
+	/**
+	 * Records a rejected call
+	 * 
+	 * @param args: the arguments of the call if the state of its partition is known to matter,
+	 * or null
+	 */
+	void rejected(MonitoredMethod monitored, Object[] args, RejectionReason reason) {
+		metrics.rejectedCall(monitored.method, reason);
+		record(monitored, args, CallRecorder.Outcome.REJECTED, reason, 0);
+	}
+	
+	/**
+	 * Records a call with the method's recorder, if it has one, along with the state of the 
+	 * breaker governing it
+	 */
+	private void record(MonitoredMethod monitored, Object[] args, CallRecorder.Outcome outcome, RejectionReason reason, long latencyNanos) {
+		if (monitored.recorder == null) {
+			return;
+		}
+		CircuitBreakerState state = monitored.partitions != null && args != null ? 
+				monitored.partitions.getState(monitored.partitionKey(args)) : policy.getCurrentState();
+		monitored.recorder.record(monitored.recordId, outcome, reason, latencyNanos, state);
+	}
+	
+	/**
+	 * Releases the first count gates of the method
+	 */
+	void releaseGates(MonitoredMethod monitored, int count, long latencyNanos, boolean failed) {
+		for (int i = 0; i < count; i++) {
+			try {
+				monitored.gates[i].release(monitored.method, latencyNanos, failed);
+			} catch (RuntimeException e) {
+				getLog().error("Error while releasing circuit breaker gate", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+/**
+ * How important a call is, used to decide which calls are turned away first when a breaker
+ * or its gates have less capacity than there are callers: while the breaker is HALF_OPEN, 
+ * during slow start, and when the concurrency limit is reached.
+ * 
+ * A priority can be given to a monitored method with the CircuitBreakerPriority annotation,
+ * or to the calls made by the current thread:
+ * 
+ * CallPriority previous = CallPriority.enter(CallPriority.SHEDDABLE);
+ * try {
+ *     ...
+ * } finally {
+ *     CallPriority.restore(previous);
+ * }
+ * 
+ * The thread's priority takes precedence over the method's. Calls with neither are NORMAL.
+ */
+public enum CallPriority {
+	CRITICAL,  // user-facing calls that should get through whenever anything does
+	NORMAL,
+	SHEDDABLE; // background work, turned away first
+	
+	private static final ThreadLocal<CallPriority> CURRENT = new ThreadLocal<CallPriority>();
+	
+	/**
+	 * Gives the supplied priority to the calls made by the current thread
+	 * 
+	 * @return the priority the thread had before, to be passed to restore()
+	 */
+	public static CallPriority enter(CallPriority priority) {
+		CallPriority previous = CURRENT.get();
+		CURRENT.set(priority);
+		return previous;
+	}
+	
+	/**
+	 * Restores the priority the current thread had before entering another one
+	 */
+	public static void restore(CallPriority previous) {
+		CURRENT.set(previous);
+	}
+	
+	/**
+	 * Returns the priority given to the calls made by the current thread, or null if it
+	 * hasn't been given one
+	 */
+	public static CallPriority current() {
+		return CURRENT.get();
+	}
+}
@@ -0,0 +1,365 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hubspot.utils.HubSpotObject;
+import com.hubspot.utils.circuitbreaker.CircuitBreakerPolicy.CircuitBreakerState;
+
+/**
+ * Records the outcome of every call a breaker sees (timestamp, method, outcome, latency and
+ * the breaker's state after the call) into a memory-mapped file, so that what a breaker did 
+ * during an incident can be looked at and replayed afterwards with CallRecordingReplayer. 
+ * Set on a wrapper with CircuitBreakerOptions.setCallRecorder().
+ * 
+ * Records are 32 bytes each, in a ring of maxRecords that overwrites the oldest ones. Writers
+ * claim a record with a single atomic increment and never wait for each other; a record only
+ * counts once its sequence number, written last, is in place, so a reader never mistakes a
+ * record being overwritten for a complete one. A writer takes its slot over with a compare 
+ * and set, and drops its record (see getDropped()) if a writer a full lap of the ring away is
+ * still writing there, so two writers never write the same slot at once. Recording takes a 
+ * few tens of nanoseconds. 
+ * The recording is in the page cache as soon as it is written, so it survives the process 
+ * crashing; method names are kept in a small text file alongside, <file>.names.
+ */
+public class CallRecorder extends HubSpotObject implements Closeable {
+
+	/**
+	 * What happened to a recorded call
+	 */
+	public enum Outcome {
+		SUCCESS,   // reached the wrapped object, and didn't fail
+		FAILURE,   // reached the wrapped object, and failed
+		EXCEPTION, // reached the wrapped object, and threw an exception that isn't blacklisted
+		REJECTED   // turned away without reaching the wrapped object
+	}
+	
+	/**
+	 * A call read back from a recording
+	 */
+	public static final class Record {
+		private final long sequence;
+		private final long timestampMillis;
+		private final int methodId;
+		private final long latencyMicros;
+		private final Outcome outcome;
+		private final CircuitBreakerState state;
+		private final RejectionReason reason;
+		
+		Record(long sequence, long timestampMillis, int methodId, long latencyMicros, Outcome outcome, CircuitBreakerState state, RejectionReason reason) {
+			this.sequence = sequence;
+			this.timestampMillis = timestampMillis;
+			this.methodId = methodId;
+			this.latencyMicros = latencyMicros;
+			this.outcome = outcome;
+			this.state = state;
+			this.reason = reason;
+		}
+		
+		public long getSequence() {
+			return sequence;
+		}
+		
+		/**
+		 * Returns the wall-clock time at which the call completed, or was rejected
+		 */
+		public long getTimestampMillis() {
+			return timestampMillis;
+		}
+		
+		public int getMethodId() {
+			return methodId;
+		}
+		
+		public long getLatencyMicros() {
+			return latencyMicros;
+		}
+		
+		public Outcome getOutcome() {
+			return outcome;
+		}
+		
+		/**
+		 * Returns the state of the breaker right after the call
+		 */
+		public CircuitBreakerState getState() {
+			return state;
+		}
+		
+		/**
+		 * Returns why the call was rejected, or null if it wasn't
+		 */
+		public RejectionReason getReason() {
+			return reason;
+		}
+	}
+	
+	private static final long MAGIC = 0x43425245434F5244L; // "CBRECORD"
+	static final int FORMAT_VERSION = 1;
+	
+	// header: magic, format version, number of records
+	static final int HEADER_SIZE = 64;
+	
+	// record: sequence + 1 (0 if never written, negated while being written), timestamp, method id, latency in 
+	// microseconds, outcome, state, rejection reason (0xFF for none), then padding; all in
+	// the byte order of the machine recording
+	static final int RECORD_SIZE = 32;
+	
+	private static final Outcome[] OUTCOMES = Outcome.values();
+	private static final CircuitBreakerState[] STATES = CircuitBreakerState.values();
+	private static final RejectionReason[] REASONS = RejectionReason.values();
+	
+	private final File namesFile;
+	private final int maxRecords;
+	private final RandomAccessFile file;
+	private final MappedByteBuffer buffer;
+	private final MappedAtomics atomics;
+	private final AtomicLong next = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	
+	// method names and the IDs they were given
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private Writer names;
+	
+	/**
+	 * Constructor; starts a new recording in the supplied file, replacing any previous one
+	 * 
+	 * @param maxRecords: how many of the latest calls are kept
+	 */
+	public CallRecorder(File recording, int maxRecords) throws CircuitBreakerWrappingException {
+		if( recording == null ) {
+			throw new CircuitBreakerWrappingException("Recording file cannot be null.");
+		}
+		
+		if( maxRecords <= 0 || maxRecords > (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE ) {
+			throw new CircuitBreakerWrappingException("Invalid number of records.");
+		}
+		
+		this.namesFile = namesFileOf(recording);
+		this.maxRecords = maxRecords;
+		int size = HEADER_SIZE + maxRecords * RECORD_SIZE;
+		try {
+			file = new RandomAccessFile(recording, "rw");
+			file.setLength(0);
+			file.setLength(size);
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			// in the order of the atomic writes of the sequence numbers
+			buffer.order(ByteOrder.nativeOrder());
+			buffer.putLong(0, MAGIC);
+			buffer.putInt(8, FORMAT_VERSION);
+			buffer.putInt(12, maxRecords);
+			names = new OutputStreamWriter(new FileOutputStream(namesFile), "UTF-8");
+		} catch( IOException e ) {
+			throw new CircuitBreakerWrappingException("Cannot create recording " + recording + ": " + e.getMessage());
+		}
+		atomics = new MappedAtomics(buffer);
+	}
+	
+	static File namesFileOf(File recording) {
+		return new File(recording.getPath() + ".names");
+	}
+	
+	/**
+	 * Returns the ID under which calls to the named method are recorded, giving it one if it
+	 * doesn't have one yet
+	 */
+	public synchronized int register(String name) {
+		Integer id = ids.get(name);
+		if( id == null ) {
+			id = ids.size();
+			ids.put(name, id);
+			try {
+				names.write(id + "\t" + name + "\n");
+				names.flush();
+			} catch( IOException e ) {
+				getLog().error("Error while writing method names of recording", e);
+			}
+		}
+		return id;
+	}
+	
+	/**
+	 * Records a call
+	 * 
+	 * @param reason: why the call was rejected, null if it wasn't
+	 * @param state: the breaker's state after the call
+	 */
+	public void record(int methodId, Outcome outcome, RejectionReason reason, long latencyNanos, CircuitBreakerState state) {
+		long sequence = next.getAndIncrement();
+		long claim = sequence + 1;
+		int offset = HEADER_SIZE + (int) (sequence % maxRecords) * RECORD_SIZE;
+		
+		// take the slot over, invalidating it while it is rewritten; if another writer is still
+		// in it, or already put a newer record there, drop this one rather than wait or tear both
+		long current = atomics.get(offset);
+		if( current < 0 || current > claim || !atomics.compareAndSet(offset, current, -claim) ) {
+			dropped.incrementAndGet();
+			return;
+		}
+		buffer.putLong(offset + 8, System.currentTimeMillis());
+		buffer.putInt(offset + 16, methodId);
+		buffer.putInt(offset + 20, (int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMicros(latencyNanos)));
+		buffer.putInt(offset + 24, (outcome.ordinal() << 24) | (state.ordinal() << 16) | ((reason == null ? 0xFF : reason.ordinal()) << 8));
+		atomics.set(offset, claim);
+	}
+	
+	/**
+	 * Returns the number of calls recorded so far, including the ones overwritten since
+	 */
+	public long getRecorded() {
+		return next.get();
+	}
+	
+	/**
+	 * Returns the number of calls that weren't recorded because a writer a full lap of the ring
+	 * ahead or behind was using their slot; more than a few means maxRecords is too small for
+	 * the rate of calls
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+	
+	/**
+	 * Flushes the recording to disk and closes it
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		buffer.force();
+		names.close();
+		file.close();
+	}
+	
+	/**
+	 * Reads the complete records of a recording, oldest first
+	 */
+	public static List<Record> read(File recording) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(recording, "r");
+		try {
+			MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+			buffer.order(ByteOrder.nativeOrder());
+			boolean swapped = false;
+			if( buffer.capacity() >= HEADER_SIZE && buffer.getLong(0) == Long.reverseBytes(MAGIC) ) {
+				// recorded on a machine of the other byte order
+				buffer.order(buffer.order() == ByteOrder.BIG_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+				swapped = true;
+			}
+			if( buffer.capacity() < HEADER_SIZE || buffer.getLong(0) != MAGIC ) {
+				throw new IOException(recording + " isn't a call recording");
+			}
+			if( buffer.getInt(8) != FORMAT_VERSION ) {
+				throw new IOException("Unknown recording format version " + buffer.getInt(8));
+			}
+			int maxRecords = buffer.getInt(12);
+			if( buffer.capacity() < HEADER_SIZE + (long) maxRecords * RECORD_SIZE ) {
+				throw new IOException("Truncated recording " + recording);
+			}
+			
+			// sequence numbers are read atomically, in the order the writers publish them
+			MappedAtomics atomics;
+			try {
+				atomics = new MappedAtomics(buffer);
+			} catch( CircuitBreakerWrappingException e ) {
+				throw new IOException(e.getMessage());
+			}
+			
+			List<Record> records = new ArrayList<Record>();
+			for( int i = 0; i < maxRecords; i++ ) {
+				int offset = HEADER_SIZE + i * RECORD_SIZE;
+				long sequence = sequenceAt(atomics, offset, swapped);
+				if( sequence < 0 || sequence % maxRecords != i ) {
+					continue;
+				}
+				int flags = buffer.getInt(offset + 24);
+				int outcome = flags >>> 24;
+				int state = (flags >>> 16) & 0xFF;
+				int reason = (flags >>> 8) & 0xFF;
+				if( outcome >= OUTCOMES.length || state >= STATES.length || (reason != 0xFF && reason >= REASONS.length) ) {
+					continue;
+				}
+				Record record = new Record(sequence, buffer.getLong(offset + 8), buffer.getInt(offset + 16), buffer.getInt(offset + 20),
+						OUTCOMES[outcome], STATES[state], reason == 0xFF ? null : REASONS[reason]);
+				// skip a record rewritten while it was being read from a live recording
+				atomics.loadFence();
+				if( sequenceAt(atomics, offset, swapped) == sequence ) {
+					records.add(record);
+				}
+			}
+			
+			Collections.sort(records, new Comparator<Record>() {
+				@Override
+				public int compare(Record a, Record b) {
+					return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+				}
+			});
+			return records;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Returns the sequence number of the record at the supplied offset, negative if there is 
+	 * no complete record there
+	 * 
+	 * @param swapped: whether the recording is in the other byte order
+	 */
+	private static long sequenceAt(MappedAtomics atomics, int offset, boolean swapped) {
+		long word = atomics.get(offset);
+		return (swapped ? Long.reverseBytes(word) : word) - 1;
+	}
+	
+	/**
+	 * Reads the names of the methods of a recording, by ID
+	 */
+	public static Map<Integer, String> readNames(File recording) throws IOException {
+		Map<Integer, String> names = new HashMap<Integer, String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(namesFileOf(recording)), "UTF-8"));
+		try {
+			for( String line = in.readLine(); line != null; line = in.readLine() ) {
+				int tab = line.indexOf('\t');
+				if( tab > 0 ) {
+					names.put(Integer.parseInt(line.substring(0, tab)), line.substring(tab + 1));
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return names;
+	}
+}
@@ -0,0 +1,163 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.io.File;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import com.hubspot.utils.HubSpotObject;
+import com.hubspot.utils.circuitbreaker.CallRecorder.Outcome;
+import com.hubspot.utils.circuitbreaker.CallRecorder.Record;
+import com.hubspot.utils.circuitbreaker.CircuitBreakerPolicy.CircuitBreakerState;
+
+/**
+ * Feeds a recording made by a CallRecorder back through a policy, on a virtual clock set to
+ * the recorded timestamps, to reproduce what the breaker decided and see whether another 
+ * policy or other settings would have decided the same. Only the breaker's own decisions are
+ * compared; calls rejected by gates or deadlines are skipped.
+ * 
+ * Also usable from the command line:
+ * 
+ * CallRecordingReplayer dump <recording>
+ * CallRecordingReplayer replay <recording> <tripThreshold> <halfOpenTimeout> <thresholdWindow>
+ */
+public class CallRecordingReplayer extends HubSpotObject {
+
+	/**
+	 * How a replay compares to the recording
+	 */
+	public static final class Result {
+		private long replayed;
+		private long decisionMismatches;
+		private long stateMismatches;
+		private long firstMismatch = -1;
+		
+		/**
+		 * Returns the number of records fed to the policy
+		 */
+		public long getReplayed() {
+			return replayed;
+		}
+		
+		/**
+		 * Returns the number of calls the policy would have rejected but weren't, or the 
+		 * other way around
+		 */
+		public long getDecisionMismatches() {
+			return decisionMismatches;
+		}
+		
+		/**
+		 * Returns the number of calls after which the policy wasn't in the recorded state
+		 */
+		public long getStateMismatches() {
+			return stateMismatches;
+		}
+		
+		/**
+		 * Returns the sequence number of the first record the replay diverged on, -1 if none
+		 */
+		public long getFirstMismatch() {
+			return firstMismatch;
+		}
+		
+		@Override
+		public String toString() {
+			return "replayed=" + replayed + " decisionMismatches=" + decisionMismatches + 
+					" stateMismatches=" + stateMismatches + " firstMismatch=" + firstMismatch;
+		}
+	}
+	
+	/**
+	 * Replays the records of one method, or of all of them if methodId is negative
+	 */
+	public Result replay(List<Record> records, int methodId, CircuitBreakerSimulator.PolicyFactory factory) throws CircuitBreakerWrappingException {
+		CircuitBreakerSimulator.VirtualClock clock = new CircuitBreakerSimulator.VirtualClock();
+		CircuitBreakerPolicy policy = factory.create(clock);
+		Result result = new Result();
+		
+		for( Record record : records ) {
+			if( methodId >= 0 && record.getMethodId() != methodId ) {
+				continue;
+			}
+			boolean breakerRejected = record.getOutcome() == Outcome.REJECTED && record.getReason() == RejectionReason.BREAKER_OPEN;
+			if( record.getOutcome() == Outcome.REJECTED && !breakerRejected ) {
+				continue;
+			}
+			
+			clock.advanceTo(record.getTimestampMillis());
+			result.replayed++;
+			boolean rejected = policy.getCurrentState() == CircuitBreakerState.OPEN && !policy.shouldAttemptReset();
+			if( rejected != breakerRejected ) {
+				result.decisionMismatches++;
+				mismatch(result, record);
+			}
+			
+			// what the resource did is known, whatever the replayed policy decided
+			if( record.getOutcome() == Outcome.FAILURE ) {
+				policy.failedBlacklistedCall(null);
+			} else if( record.getOutcome() == Outcome.SUCCESS ) {
+				policy.successfulCall(null);
+			}
+			if( policy.getCurrentState() != record.getState() ) {
+				result.stateMismatches++;
+				mismatch(result, record);
+			}
+		}
+		return result;
+	}
+	
+	private static void mismatch(Result result, Record record) {
+		if( result.firstMismatch < 0 ) {
+			result.firstMismatch = record.getSequence();
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		if( args.length == 2 && args[0].equals("dump") ) {
+			File recording = new File(args[1]);
+			Map<Integer, String> names = CallRecorder.readNames(recording);
+			for( Record record : CallRecorder.read(recording) ) {
+				System.out.println(record.getSequence() + "\t" + Instant.ofEpochMilli(record.getTimestampMillis()) + "\t" + 
+						names.get(record.getMethodId()) + "\t" + record.getOutcome() + 
+						(record.getReason() == null ? "" : " " + record.getReason()) + "\t" + 
+						record.getLatencyMicros() + "us\t" + record.getState());
+			}
+		} else if( args.length == 5 && args[0].equals("replay") ) {
+			final int tripThreshold = Integer.parseInt(args[2]);
+			final int halfOpenTimeout = Integer.parseInt(args[3]);
+			final int thresholdWindow = Integer.parseInt(args[4]);
+			Result result = new CallRecordingReplayer().replay(CallRecorder.read(new File(args[1])), -1, new CircuitBreakerSimulator.PolicyFactory() {
+				@Override
+				public CircuitBreakerPolicy create(Clock clock) throws CircuitBreakerWrappingException {
+					BaseCircuitBreakerPolicyImpl policy = new BaseCircuitBreakerPolicyImpl(tripThreshold, halfOpenTimeout, thresholdWindow);
+					policy.setClock(clock);
+					return policy;
+				}
+			});
+			System.out.println(result);
+		} else {
+			System.err.println("Usage: CallRecordingReplayer dump <recording>");
+			System.err.println("       CallRecordingReplayer replay <recording> <tripThreshold> <halfOpenTimeout> <thresholdWindow>");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,45 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.reflect.Method;
+
+import com.hubspot.utils.HubSpotObject;
+
+/**
+ * Simple object passed to rejection notification handlers when a call to a monitored
+ * method is turned away
+ */
+public class CallRejection extends HubSpotObject {
+	
+	private Method method;
+	private RejectionReason reason;
+	
+	public CallRejection(Method method, RejectionReason reason) {
+		this.method = method;
+		this.reason = reason;
+	}
+	
+	public Method getMethod() {
+		return method;
+	}
+	
+	public RejectionReason getReason() {
+		return reason;
+	}
+}
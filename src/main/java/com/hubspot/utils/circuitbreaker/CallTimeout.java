@@ -0,0 +1,88 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.hubspot.utils.HubSpotObject;
+
+/**
+ * Bounds how long a call made through the functional API may take: the call runs on an 
+ * executor, and if it hasn't completed after the timeout, or by the caller's Deadline if that 
+ * comes first, it is interrupted and a TimeoutException is thrown. Placed inside a 
+ * CircuitBreaker, timeouts count as failures unless the breaker's blacklist excludes them.
+ */
+public class CallTimeout extends HubSpotObject implements CallDecorator {
+
+	private final long timeoutNanos;
+	private final ExecutorService executor;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param executor: where calls are run; it needs a thread per call in flight
+	 */
+	public CallTimeout(long timeout, TimeUnit unit, ExecutorService executor) throws CircuitBreakerWrappingException {
+		if( timeout <= 0 || unit == null ) {
+			throw new CircuitBreakerWrappingException("Invalid timeout.");
+		}
+		
+		if( executor == null ) {
+			throw new CircuitBreakerWrappingException("Executor cannot be null.");
+		}
+		
+		this.timeoutNanos = unit.toNanos(timeout);
+		this.executor = executor;
+	}
+	
+	@Override
+	public <T> Callable<T> decorateCallable(final Callable<T> callable) {
+		return new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				long timeout = timeoutNanos;
+				Deadline deadline = Deadline.current();
+				if( deadline != null ) {
+					timeout = Math.min(timeout, deadline.remainingNanos());
+				}
+				
+				Future<T> future = executor.submit(Deadline.propagate(callable));
+				try {
+					return future.get(timeout, TimeUnit.NANOSECONDS);
+				} catch( TimeoutException e ) {
+					future.cancel(true);
+					throw new TimeoutException("Call timed out after "+TimeUnit.NANOSECONDS.toMillis(timeout)+"ms");
+				} catch( InterruptedException e ) {
+					future.cancel(true);
+					throw e;
+				} catch( ExecutionException e ) {
+					Throwable cause = e.getCause();
+					if( cause instanceof Error ) {
+						throw (Error) cause;
+					}
+					throw (Exception) cause;
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,199 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.Callable;
+import java.util.function.Supplier;
+
+import com.hubspot.utils.HubSpotObject;
+
+/**
+ * Circuit breaker guarding calls passed to it directly, for call sites that can't go through
+ * a wrapped interface, such as lambdas or methods of concrete classes:
+ * 
+ * CircuitBreaker breaker = new CircuitBreaker(policy, options, IOException.class);
+ * String page = breaker.call(new Callable<String>() { ... });
+ * 
+ * Calls are admitted and recorded by the same code as calls to a monitored method: by the 
+ * policy and the options' parent policy, gates, metrics and call recorder, and the current 
+ * thread's Deadline and CallPriority; a call that throws one of the blacklisted exceptions 
+ * (exact classes, as with the CircuitBreakerExceptionBlacklist annotation) counts as a 
+ * failure. Rejected calls throw a CircuitBreakerException. There is no proxy nor reflection 
+ * involved, so this is also the cheapest way to guard a call. Policies, gates and metrics are
+ * told about calls with a null Method, and the call recorder records them as calls to
+ * CircuitBreaker.call.
+ * 
+ * Being a CallDecorator, a breaker composes with other decorators, e.g.
+ * breaker.call(timeout.decorateCallable(bulkhead.decorateCallable(callable))) counts timeouts
+ * as failures if TimeoutException is blacklisted, but not bulkhead rejections.
+ */
+public class CircuitBreaker extends HubSpotObject implements CallDecorator {
+
+	private final CircuitBreakerPolicy policy;
+	private final CircuitBreakerMetrics metrics;
+	private final CallGuard guard;
+	
+	// what a call is governed by, as for a monitored method without a Method
+	private final MonitoredMethod monitored;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param policy: decides when the breaker trips
+	 * @param options: the parent policy, gates, metrics and call recorder to use
+	 * @param blacklist: exceptions that count as failures
+	 */
+	public CircuitBreaker(CircuitBreakerPolicy policy, CircuitBreakerOptions options, Class<?>... blacklist) throws CircuitBreakerWrappingException {
+		if( policy == null || options == null ) {
+			throw new CircuitBreakerWrappingException("Policy and options cannot be null.");
+		}
+		
+		if( blacklist.length == 0 ) {
+			throw new CircuitBreakerWrappingException("At least one exception must be blacklisted.");
+		}
+		for( Class<?> c : blacklist ) {
+			if( !Throwable.class.isAssignableFrom(c) ) {
+				throw new CircuitBreakerWrappingException(c.getName() + " isn't an exception");
+			}
+		}
+		
+		if( options.getParentPolicy() == policy ) {
+			throw new CircuitBreakerWrappingException("A policy cannot be its own parent");
+		}
+		
+		this.policy = policy;
+		this.metrics = options.getMetrics();
+		this.guard = new CallGuard(policy, options.getParentPolicy(), metrics);
+		this.monitored = new MonitoredMethod(null, blacklist.clone());
+		monitored.gates = options.getGates().toArray(new CircuitBreakerGate[0]);
+		if( options.getCallRecorder() != null ) {
+			monitored.recorder = options.getCallRecorder();
+			monitored.recordId = monitored.recorder.register(CircuitBreaker.class.getName() + ".call");
+		}
+	}
+	
+	/**
+	 * Constructor for a breaker with default options
+	 */
+	public CircuitBreaker(CircuitBreakerPolicy policy, Class<?>... blacklist) throws CircuitBreakerWrappingException {
+		this(policy, new CircuitBreakerOptions(), blacklist);
+	}
+	
+	/**
+	 * Makes the call unless it is rejected
+	 * 
+	 * @return what the call returned
+	 * @throws CircuitBreakerException if the call is rejected
+	 * @throws Exception whatever the call threw
+	 */
+	public <T> T call(Callable<T> callable) throws Exception {
+		guard.admit(monitored, null, false);
+		
+		Throwable fromCall = null;
+		boolean failed = false;
+		long start = System.nanoTime();
+		try {
+			return callable.call();
+		} catch (Throwable t) {
+			fromCall = t;
+			failed = monitored.isBlacklisted(t);
+			if (t instanceof Error) {
+				throw (Error) t;
+			}
+			if (t instanceof Exception) {
+				throw (Exception) t;
+			}
+			// a Throwable that is neither, which the Callable can only have thrown sneakily
+			throw new UndeclaredThrowableException(t);
+		} finally {
+			long latency = System.nanoTime() - start;
+			guard.completed(monitored, latency, failed);
+			guard.recordOutcome(monitored, null, failed, fromCall == null, latency);
+		}
+	}
+	
+	/**
+	 * Runs the task unless it is rejected
+	 * 
+	 * @throws CircuitBreakerException if the task is rejected
+	 */
+	public void run(final Runnable task) throws CircuitBreakerException {
+		try {
+			call(new Callable<Void>() {
+				@Override
+				public Void call() {
+					task.run();
+					return null;
+				}
+			});
+		} catch (CircuitBreakerException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			// a Runnable can't throw checked exceptions
+			throw new UndeclaredThrowableException(e);
+		}
+	}
+	
+	/**
+	 * Returns a Supplier getting its value from the supplied one through this breaker. Since
+	 * a Supplier can't throw checked exceptions, rejections are thrown as an 
+	 * UndeclaredThrowableException wrapping the CircuitBreakerException, as they are from a 
+	 * wrapped interface method that doesn't declare it.
+	 */
+	public <T> Supplier<T> decorate(final Supplier<T> supplier) {
+		final Callable<T> callable = new Callable<T>() {
+			@Override
+			public T call() {
+				return supplier.get();
+			}
+		};
+		return new Supplier<T>() {
+			@Override
+			public T get() {
+				try {
+					return call(callable);
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new UndeclaredThrowableException(e);
+				}
+			}
+		};
+	}
+	
+	@Override
+	public <T> Callable<T> decorateCallable(final Callable<T> callable) {
+		return new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				return CircuitBreaker.this.call(callable);
+			}
+		};
+	}
+	
+	public CircuitBreakerPolicy getPolicy() {
+		return policy;
+	}
+	
+	public CircuitBreakerMetrics getMetrics() {
+		return metrics;
+	}
+}
@@ -0,0 +1,42 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation linking a single-key method to a bulk method of the same interface, so that
+ * calls arriving within windowMillis of each other (or until maxBatchSize keys have been 
+ * collected) are served by a single call to the bulk method.
+ * 
+ * The annotated method must take exactly one argument, the key. The bulk method must take
+ * a single List, Set or Collection of keys and return a Map of key to value; keys missing
+ * from the map get null. The bulk call goes through the breaker and the gates of the 
+ * annotated method once, and its outcome is recorded once. The method must also be annotated
+ * with CircuitBreakerExceptionBlacklist.
+ */
+@Target({ ElementType.METHOD })
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CircuitBreakerBatch {
+	String bulkMethod();
+	int maxBatchSize() default 100;
+	long windowMillis() default 5;
+}
@@ -0,0 +1,245 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.hubspot.utils.HubSpotObject;
+
+/**
+ * Applies the settings found in a properties file to named policies, and applies them again
+ * whenever the file changes, without replacing the policies: their state and failure 
+ * windows are kept. Settings are given as <name>.<setting>=<value>, where setting is one of 
+ * tripThreshold, halfOpenTimeout, thresholdWindow, backoffMultiplier, maxHalfOpenTimeout, 
+ * backoffJitter or backoffResetPeriod; settings left out keep their current value.
+ * 
+ * A file that can't be read, or holds any unknown or invalid setting, is rejected in full: 
+ * no policy is changed, and the previous settings stay in place until the file is fixed.
+ * Settings for names that aren't registered are ignored, so one file can serve several 
+ * services.
+ */
+public class CircuitBreakerConfigFile extends HubSpotObject implements Closeable {
+
+	/**
+	 * Full set of settings of a policy, with the names used in the file
+	 */
+	private static final class Settings {
+		int tripThreshold;
+		int halfOpenTimeout;
+		int thresholdWindow;
+		double backoffMultiplier;
+		int maxHalfOpenTimeout;
+		double backoffJitter;
+		int backoffResetPeriod;
+		
+		Settings(BaseCircuitBreakerPolicyImpl policy) {
+			synchronized (policy) {
+				tripThreshold = policy.tripThreshold;
+				halfOpenTimeout = policy.halfOpenTimeout;
+				thresholdWindow = policy.thresholdWindow;
+				backoffMultiplier = policy.backoffMultiplier;
+				maxHalfOpenTimeout = policy.maxHalfOpenTimeout;
+				backoffJitter = policy.backoffJitter;
+				backoffResetPeriod = policy.backoffResetPeriod;
+			}
+		}
+		
+		void set(String setting, String value) throws CircuitBreakerWrappingException {
+			try {
+				if( setting.equals("tripThreshold") ) {
+					tripThreshold = Integer.parseInt(value);
+				} else if( setting.equals("halfOpenTimeout") ) {
+					halfOpenTimeout = Integer.parseInt(value);
+				} else if( setting.equals("thresholdWindow") ) {
+					thresholdWindow = Integer.parseInt(value);
+				} else if( setting.equals("backoffMultiplier") ) {
+					backoffMultiplier = Double.parseDouble(value);
+				} else if( setting.equals("maxHalfOpenTimeout") ) {
+					maxHalfOpenTimeout = Integer.parseInt(value);
+				} else if( setting.equals("backoffJitter") ) {
+					backoffJitter = Double.parseDouble(value);
+				} else if( setting.equals("backoffResetPeriod") ) {
+					backoffResetPeriod = Integer.parseInt(value);
+				} else {
+					throw new CircuitBreakerWrappingException("Unknown setting " + setting);
+				}
+			} catch( NumberFormatException e ) {
+				throw new CircuitBreakerWrappingException("Invalid value " + value + " for " + setting);
+			}
+		}
+		
+		void validate() throws CircuitBreakerWrappingException {
+			BaseCircuitBreakerPolicyImpl.validate(tripThreshold, halfOpenTimeout, thresholdWindow, backoffMultiplier, maxHalfOpenTimeout, backoffJitter, backoffResetPeriod);
+		}
+		
+		void applyTo(BaseCircuitBreakerPolicyImpl policy) throws CircuitBreakerWrappingException {
+			policy.reconfigure(tripThreshold, halfOpenTimeout, thresholdWindow, backoffMultiplier, maxHalfOpenTimeout, backoffJitter, backoffResetPeriod);
+		}
+	}
+	
+	private final File file;
+	private final Map<String, BaseCircuitBreakerPolicyImpl> policies = new ConcurrentHashMap<String, BaseCircuitBreakerPolicyImpl>();
+	private final ScheduledExecutorService scheduler;
+	
+	// modification time and length of the file when last loaded, to notice changes
+	private long lastModified = -1;
+	private long lastLength = -1;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param file: properties file holding the settings
+	 * @param pollMillis: how often the file is checked for changes; 0 to only load it on reload()
+	 */
+	public CircuitBreakerConfigFile(File file, long pollMillis) throws CircuitBreakerWrappingException {
+		if( file == null ) {
+			throw new CircuitBreakerWrappingException("Configuration file cannot be null.");
+		}
+		
+		if( pollMillis < 0 ) {
+			throw new CircuitBreakerWrappingException("Invalid poll interval.");
+		}
+		
+		this.file = file;
+		
+		if( pollMillis > 0 ) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "circuit-breaker-config");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					reloadIfChanged();
+				}
+			}, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+		} else {
+			scheduler = null;
+		}
+	}
+	
+	/**
+	 * Has the settings for the supplied name applied to the policy from now on
+	 */
+	public void register(String name, BaseCircuitBreakerPolicyImpl policy) {
+		policies.put(name, policy);
+	}
+	
+	/**
+	 * Loads the file if it changed since it was last loaded
+	 */
+	synchronized void reloadIfChanged() {
+		if( file.lastModified() != lastModified || file.length() != lastLength ) {
+			reload();
+		}
+	}
+	
+	/**
+	 * Loads the file and applies its settings to the registered policies, unless it is
+	 * invalid
+	 * 
+	 * @return whether the settings were applied
+	 */
+	public synchronized boolean reload() {
+		lastModified = file.lastModified();
+		lastLength = file.length();
+		
+		Properties properties = new Properties();
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+		} catch( IOException e ) {
+			getLog().error("Error while reading circuit breaker configuration "+file, e);
+			return false;
+		}
+		
+		// work out and check every policy's new settings before changing any
+		Map<String, Settings> updates = new LinkedHashMap<String, Settings>();
+		try {
+			for( String key : properties.stringPropertyNames() ) {
+				int dot = key.lastIndexOf('.');
+				if( dot <= 0 ) {
+					throw new CircuitBreakerWrappingException("Invalid key " + key);
+				}
+				
+				String name = key.substring(0, dot);
+				BaseCircuitBreakerPolicyImpl policy = policies.get(name);
+				if( policy == null ) {
+					continue;
+				}
+				Settings settings = updates.get(name);
+				if( settings == null ) {
+					settings = new Settings(policy);
+					updates.put(name, settings);
+				}
+				settings.set(key.substring(dot + 1), properties.getProperty(key).trim());
+			}
+			for( Map.Entry<String, Settings> entry : updates.entrySet() ) {
+				try {
+					entry.getValue().validate();
+				} catch( CircuitBreakerWrappingException e ) {
+					throw new CircuitBreakerWrappingException(entry.getKey() + ": " + e.getMessage());
+				}
+			}
+		} catch( CircuitBreakerWrappingException e ) {
+			getLog().error("Rejecting circuit breaker configuration "+file+": "+e.getMessage());
+			return false;
+		}
+		
+		for( Map.Entry<String, Settings> entry : updates.entrySet() ) {
+			try {
+				entry.getValue().applyTo(policies.get(entry.getKey()));
+			} catch( CircuitBreakerWrappingException e ) {
+				// can't happen, the settings were checked above
+				getLog().error("Error while applying circuit breaker configuration", e);
+			}
+		}
+		getLog().info("Applied circuit breaker configuration "+file+" to "+updates.size()+" policies");
+		return true;
+	}
+	
+	/**
+	 * Stops watching the file
+	 */
+	@Override
+	public void close() {
+		if( scheduler != null ) {
+			scheduler.shutdownNow();
+		}
+	}
+}
@@ -24,4 +24,25 @@ package com.hubspot.utils.circuitbreaker;
  */
 public class CircuitBreakerException extends Exception {
 
+	private RejectionReason reason = RejectionReason.BREAKER_OPEN;
+	
+	public CircuitBreakerException() {
+	}
+	
+	/**
+	 * Creates an exception without a stack trace; used for rejections that are
+	 * expected to happen often (e.g. while ramping up or rate limiting) and need
+	 * to stay cheap.
+	 */
+	public CircuitBreakerException(RejectionReason reason) {
+		super("Call rejected: " + reason, null, false, false);
+		this.reason = reason;
+	}
+	
+	/**
+	 * Returns why the call was rejected
+	 */
+	public RejectionReason getReason() {
+		return reason;
+	}
 }
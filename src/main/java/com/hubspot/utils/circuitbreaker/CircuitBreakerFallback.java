@@ -0,0 +1,39 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation naming a class whose method with the same name and parameter types is called
+ * instead of the annotated one when the call is rejected, or when it fails with a blacklisted
+ * exception. Typically the class implements the wrapped interface with cached or default 
+ * values.
+ * 
+ * The class must have a no-argument constructor; one instance is created per wrapped object
+ * and shared by all the methods naming it. The method must also be annotated with
+ * CircuitBreakerExceptionBlacklist.
+ */
+@Target({ ElementType.METHOD })
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CircuitBreakerFallback {
+	Class<?> value();
+}
@@ -0,0 +1,51 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.reflect.Method;
+
+/**
+ * A check consulted by the CircuitBreakerInvocationHandler before a monitored method
+ * is passed through to the wrapped object, after the breaker itself has decided to let
+ * the call through. Gates allow calls to be turned away even while the breaker is CLOSED,
+ * e.g. while ramping traffic back up after a reset.
+ */
+public interface CircuitBreakerGate {
+
+	/**
+	 * Invoked before a monitored method is called. Implementations should be cheap and
+	 * non-blocking since they sit on every call.
+	 * 
+	 * @return true if the call may proceed, false if it should be rejected with a 
+	 * CircuitBreakerException
+	 */
+	boolean admit(Method m);
+	
+	/**
+	 * Invoked once an admitted call has completed.
+	 * 
+	 * @param latencyNanos: how long the wrapped method took
+	 * @param failed: whether the call failed with a blacklisted exception
+	 */
+	void release(Method m, long latencyNanos, boolean failed);
+	
+	/**
+	 * Returns the reason reported for calls this gate rejects
+	 */
+	RejectionReason getRejectionReason();
+}
@@ -0,0 +1,39 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation that hedges calls to an idempotent monitored method: if a call hasn't completed
+ * after delayMillis, a second, duplicate call is made, and whichever completes first is 
+ * returned while the other is cancelled. When delayMillis is negative, the delay is the 
+ * given percentile of the method's observed latency.
+ * 
+ * Hedged calls draw from the breaker's hedge budget and are never made while the breaker
+ * is OPEN. The method must also be annotated with CircuitBreakerIdempotent.
+ */
+@Target({ ElementType.METHOD })
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CircuitBreakerHedge {
+	long delayMillis() default -1;
+	double percentile() default 0.95;
+}
@@ -20,12 +20,11 @@ package com.hubspot.utils.circuitbreaker;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 
-import org.apache.commons.lang.ArrayUtils;
-
 import com.hubspot.utils.HubSpotObject;
-import com.hubspot.utils.circuitbreaker.CircuitBreakerPolicy.CircuitBreakerState;
 
 /**
  * Invocation handler that transparently wraps an object and will trip a method "circuit breaker" should
@@ -34,9 +33,11 @@ import com.hubspot.utils.circuitbreaker.CircuitBreakerPolicy.CircuitBreakerState
  */
 public class CircuitBreakerInvocationHandler extends HubSpotObject implements InvocationHandler {
 
-	private Object realObj;
-	private Map<Method, Class[]> blacklist;    	// map of method-->Exception types that may trip the breaker
-	private CircuitBreakerPolicy policy;		// policy that determines when we move between states
+	private final Object realObj;
+	private final Map<Method, MonitoredMethod> monitoredMethods;	// map of method-->what we need to know to monitor it
+	private final CircuitBreakerPolicy policy;		// policy that determines when we move between states
+	private final CircuitBreakerMetrics metrics;	// counts call outcomes and publishes rejections
+	private final CallGuard guard;					// admits calls and records their outcome
 	
 	/**
 	 * Constructor
@@ -48,69 +49,389 @@ public class CircuitBreakerInvocationHandler extends HubSpotObject implements In
 	protected CircuitBreakerInvocationHandler(Object realObj,
 										   Map<Method, Class[]> blacklist,
 										   CircuitBreakerPolicy policy) {
-		if( realObj == null || blacklist == null || policy == null )  {
+		this(realObj, toMonitoredMethods(blacklist), policy, null, new CircuitBreakerMetrics());
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param monitoredMethods: map of <method, monitoring details> pairs, resolved at wrap time
+	 * @param parent: policy whose OPEN state rejects our calls too, and into which our
+	 * failures and successes roll up; null if there is none
+	 * @param metrics: where call outcomes and rejections are recorded
+	 */
+	CircuitBreakerInvocationHandler(Object realObj,
+								   Map<Method, MonitoredMethod> monitoredMethods,
+								   CircuitBreakerPolicy policy,
+								   CircuitBreakerPolicy parent,
+								   CircuitBreakerMetrics metrics) {
+		if( realObj == null || monitoredMethods == null || policy == null || metrics == null )  {
 			throw new IllegalArgumentException("Constructor parameters cannot be null");
 		}
 		
 		this.realObj = realObj;
-		this.blacklist = blacklist;
+		this.monitoredMethods = monitoredMethods;
 		this.policy = policy;
+		this.metrics = metrics;
+		this.guard = new CallGuard(policy, parent, metrics);
+	}
+	
+	private static Map<Method, MonitoredMethod> toMonitoredMethods(Map<Method, Class[]> blacklist) {
+		if( blacklist == null ) {
+			return null;
+		}
+		
+		Map<Method, MonitoredMethod> monitoredMethods = new HashMap<Method, MonitoredMethod>();
+		for( Map.Entry<Method, Class[]> entry : blacklist.entrySet() ) {
+			monitoredMethods.put(entry.getKey(), new MonitoredMethod(entry.getKey(), entry.getValue()));
+		}
+		return monitoredMethods;
 	}
 	
 	/**
 	 *  Called from a Proxy instance to invoke a method on the realObj stored by this handler.
 	 *  
-	 *  If a "blacklisted" exception is thrown, we inform our CircuitBreakerPolicy let it
-	 *  tell us whether we should move states.
+	 *  If a "blacklisted" exception is thrown, or the method's result classifier says the returned
+	 *  value is a failure, we inform our CircuitBreakerPolicy let it tell us whether we should move states.
+	 *  
+	 *  Once the breaker lets a monitored call through, each of the method's gates gets a chance
+	 *  to reject it as well; gates that admitted the call are released when it completes.
+	 *  
+	 *  If the method has a response cache or a fallback, the last known good value or the fallback
+	 *  is served instead of throwing when the call is rejected or fails with a blacklisted exception.
+	 *  
+	 *  Concurrent calls to single flight methods with equal arguments share a single call, and
+	 *  calls to batched methods arriving close together are served by a single bulk call.
 	 */
 	@Override
 	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		return invoke(proxy, method, args, false);
+	}
+	
+	/**
+	 * Invokes a method on the realObj as invoke() does
+	 * 
+	 * @param throughOpen: true to let the call through even though the breaker is OPEN, as 
+	 * for a replica that has to stay in rotation; its outcome is recorded as usual, so a 
+	 * success closes the breaker
+	 */
+	Object invoke(Object proxy, Method method, Object[] args, final boolean throughOpen) throws Throwable {
 		getLog().debug("circuit breaker wrapped method invocation = " + method.toGenericString());
 
-        Throwable fromInvocation = null;
-        Object ret = null;
-        try {
-        	if (blacklist.containsKey(method) &&
-        	    policy.getCurrentState() == CircuitBreakerState.OPEN &&
-        	   !policy.shouldAttemptReset() ) {
-        		// breaker is open, just throw our standard CircuitBreakerException
-        		throw new CircuitBreakerException();
-        	}
-        	
-        	// circuit breaker is either open or half-open, do our invocation
-        	ret = method.invoke(realObj, args);
-        } catch (InvocationTargetException e) {
-            // The underlying method was called successfully, but threw an exception.
-            // we want to pass that exception on.
-            fromInvocation = e.getCause();
-        } catch (IllegalArgumentException e) {
-            // "In a properly constructed proxy, this should never happen."
-        	getLog().debug("Illegal argument exception in circuit breaker handler"+ e);
-            throw e;
-            
-        } catch (IllegalAccessException e) {
-            // "In a properly constructed proxy, this should never happen."
-        	getLog().debug("Illegal access exception in circuit breaker handler"+ e);
-            throw e;
-        }
-        
-        // exception was thrown, determine if it was blacklisted and if we should trip
-        if (fromInvocation != null) {
-        	if( blacklist.containsKey(method)) {
-        		Class[] blacklistedExceptionTypes = blacklist.get(method);
-        		if(ArrayUtils.contains(blacklistedExceptionTypes, fromInvocation.getClass()) ) {
-        			policy.failedBlacklistedCall(method);
-        		}
-        	} else {
-        		policy.successfulCall(method);
-        	}
-            throw fromInvocation;
-        }
-        
-        if(blacklist.containsKey(method)) 
-        	policy.successfulCall(method);
-        
-        return ret;
-    }
+		final MonitoredMethod monitored = monitoredMethods.get(method);
+		if (monitored == null) {
+			return invokeUnmonitored(method, args);
+		}
+		
+		final Object[] callArgs = args;
+		Invocation invocation = new Invocation() {
+			@Override
+			public Object proceed() throws Throwable {
+				if (monitored.batcher != null) {
+					return invokeBatched(monitored, callArgs, throughOpen);
+				}
+				return invokeMonitored(monitored, callArgs, throughOpen);
+			}
+		};
+		
+		if (monitored.singleFlight != null) {
+			return monitored.singleFlight.execute(monitored, args, invocation, metrics);
+		}
+		return invocation.proceed();
+	}
+	
+	/**
+	 * Carries out a single call to a monitored method: admission, invocation, recording of its
+	 * outcome, retrying it if it fails and may be retried and, when it is rejected or fails, 
+	 * degrading to a cached value or fallback.
+	 */
+	private Object invokeMonitored(MonitoredMethod monitored, Object[] args, boolean throughOpen) throws Throwable {
+		if (monitored.retrier != null) {
+			monitored.retrier.budget.deposit();
+		}
+		
+		for (int attempt = 1; ; attempt++) {
+			try {
+				guard.admit(monitored, args, throughOpen);
+			} catch (CircuitBreakerException e) {
+				return degrade(monitored, args, e);
+			}
+			
+			try {
+				if (monitored.hedger != null) {
+					return callHedged(monitored, args);
+				}
+				return callAdmitted(monitored, monitored.method, args);
+			} catch (Throwable t) {
+				if (!monitored.isBlacklisted(t)) {
+					throw t;
+				}
+				if (!retry(monitored, args, attempt)) {
+					return degrade(monitored, args, t);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Decides whether a failed attempt at a call is retried, waiting out the backoff if it is.
+	 * Retries are only made while the breaker isn't OPEN, the retry budget allows them and
+	 * the caller's deadline, if any, won't have passed by the end of the backoff.
+	 * 
+	 * @param attempt: the attempt that just failed, starting from 1
+	 */
+	private boolean retry(MonitoredMethod monitored, Object[] args, int attempt) {
+		Retrier retrier = monitored.retrier;
+		if (retrier == null || attempt >= retrier.maxAttempts || guard.isOpen(monitored, args)) {
+			return false;
+		}
+		
+		long backoffNanos = retrier.backoffNanos(attempt);
+		Deadline deadline = Deadline.current();
+		if ((deadline != null && deadline.remainingNanos() <= backoffNanos) ||
+				!retrier.budget.tryWithdraw()) {
+			return false;
+		}
+		
+		// the breaker may have tripped while we were waiting
+		if (!retrier.backoff(backoffNanos) || guard.isOpen(monitored, args)) {
+			return false;
+		}
+		metrics.retriedCall(monitored.method);
+		return true;
+	}
+	
+	/**
+	 * Carries out a call to a batched method by joining a batch; the bulk call serving the
+	 * batch goes through the method's gates and is recorded once. Each caller degrades on 
+	 * its own if the bulk call is rejected or fails.
+	 */
+	private Object invokeBatched(final MonitoredMethod monitored, Object[] args, boolean throughOpen) throws Throwable {
+		try {
+			guard.checkDeadline(monitored);
+			guard.checkBreaker(monitored, args, throughOpen);
+		} catch (CircuitBreakerException e) {
+			return degrade(monitored, args, e);
+		}
+		
+		Object ret;
+		try {
+			ret = monitored.batcher.get(monitored, args[0], new Batcher.BulkInvocation() {
+				@Override
+				public Object proceed(Collection<Object> keys) throws Throwable {
+					guard.admitGates(monitored);
+					return callAdmitted(monitored, monitored.batcher.bulkMethod, new Object[] { keys });
+				}
+			}, metrics);
+		} catch (Throwable t) {
+			if (t instanceof CircuitBreakerException || monitored.isBlacklisted(t)) {
+				return degrade(monitored, args, t);
+			}
+			throw t;
+		}
+		
+		if (monitored.responseCache != null) {
+			monitored.responseCache.put(args, ret);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Carries out an admitted call to a hedged method on the hedger's executor, making a 
+	 * duplicate call if the first one is slow. Duplicate calls are only made while the breaker 
+	 * isn't OPEN, the hedge budget allows them and the method's gates admit them.
+	 * 
+	 * @return the value returned by the first attempt to succeed
+	 * @throws Throwable what the last attempt to complete threw, if none succeeded
+	 */
+	private Object callHedged(final MonitoredMethod monitored, final Object[] args) throws Throwable {
+		final Hedger hedger = monitored.hedger;
+		hedger.budget.deposit();
+		return hedger.execute(new Hedger.Attempts() {
+			@Override
+			public Object attempt(Hedger.Attempt attempt) throws Throwable {
+				return callAdmitted(monitored, monitored.method, args, attempt);
+			}
+			
+			@Override
+			public boolean admitHedge() {
+				if (guard.isOpen(monitored, args) ||
+						!hedger.budget.tryWithdraw() ||
+						!guard.tryAdmitGates(monitored)) {
+					return false;
+				}
+				metrics.hedgedCall(monitored.method);
+				return true;
+			}
+			
+			@Override
+			public void decided(Hedger.Attempt attempt) {
+				if (attempt.completed) {
+					guard.recordOutcome(monitored, args, attempt.failed, attempt.returned, attempt.latencyNanos);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Invokes target on the realObj on behalf of an admitted call to the monitored method, 
+	 * releases the method's gates and records the outcome of the call. 
+	 */
+	private Object callAdmitted(MonitoredMethod monitored, Method target, Object[] args) throws Throwable {
+		return callAdmitted(monitored, target, args, null);
+	}
+	
+	/**
+	 * Invokes target on the realObj on behalf of an admitted call to the monitored method, 
+	 * releases the method's gates and records the outcome of the call. The method's result
+	 * classifier and response cache only apply when the target is the method itself. 
+	 * 
+	 * When the call is an attempt at a hedged call, its outcome is only kept in the attempt:
+	 * the hedged call's outcome is recorded once, from the attempt that decided it. The 
+	 * outcome of a hedged attempt is also reported to policies implementing 
+	 * HedgedCallListener, unless it failed because it was abandoned in favor of the other.
+	 * 
+	 * @param attempt: the attempt at a hedged call, or null if the call isn't hedged
+	 * @return the value returned by the target
+	 * @throws Throwable whatever the target threw
+	 */
+	private Object callAdmitted(MonitoredMethod monitored, Method target, Object[] args, Hedger.Attempt attempt) throws Throwable {
+		Method method = monitored.method;
+		boolean direct = target == method;
+		Throwable fromInvocation = null;
+		Object ret = null;
+		boolean failed = false;
+		long latency = 0;
+		long start = System.nanoTime();
+		try {
+			// circuit breaker is either closed or half-open, do our invocation
+			ret = target.invoke(realObj, args);
+		} catch (InvocationTargetException e) {
+			// The underlying method was called successfully, but threw an exception.
+			// we want to pass that exception on.
+			fromInvocation = e.getCause();
+		} catch (IllegalArgumentException e) {
+			// "In a properly constructed proxy, this should never happen."
+			getLog().debug("Illegal argument exception in circuit breaker handler"+ e);
+			throw e;
+			
+		} catch (IllegalAccessException e) {
+			// "In a properly constructed proxy, this should never happen."
+			getLog().debug("Illegal access exception in circuit breaker handler"+ e);
+			throw e;
+		} finally {
+			if (fromInvocation != null) {
+				failed = monitored.isBlacklisted(fromInvocation);
+			} else if (direct) {
+				failed = isFailedResult(monitored, ret);
+			}
+			latency = System.nanoTime() - start;
+			guard.completed(monitored, latency, failed);
+		}
+		
+		// determine if the call failed and if we should trip
+		if (attempt != null) {
+			attempt.completed(failed, fromInvocation == null, latency);
+			if (attempt.hedge && policy instanceof HedgedCallListener && !(attempt.abandoned && fromInvocation != null)) {
+				((HedgedCallListener) policy).hedgedCall(method, failed);
+			}
+		} else {
+			guard.recordOutcome(monitored, args, failed, fromInvocation == null, latency);
+		}
+		
+		if (fromInvocation != null) {
+			throw fromInvocation;
+		}
+		
+		if (!failed && direct && monitored.responseCache != null) {
+			monitored.responseCache.put(args, ret);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Serves a rejected or failed call from the method's response cache or its fallback, if
+	 * it has either, and otherwise throws the supplied exception.
+	 */
+	private Object degrade(MonitoredMethod monitored, Object[] args, Throwable cause) throws Throwable {
+		if (monitored.responseCache != null) {
+			ResponseCache.Entry cached = monitored.responseCache.get(args);
+			if (cached != null) {
+				metrics.cachedCall(monitored.method);
+				return cached.value;
+			}
+		}
+		
+		if (monitored.fallback != null) {
+			metrics.fallbackCall(monitored.method);
+			return monitored.fallback.invoke(args);
+		}
+		throw cause;
+	}
+	
+	/**
+	 * Passes a call to a method that isn't monitored straight through to the realObj
+	 */
+	private Object invokeUnmonitored(Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(realObj, args);
+		} catch (InvocationTargetException e) {
+			policy.successfulCall(method);
+			throw e.getCause();
+		} catch (IllegalArgumentException e) {
+			// "In a properly constructed proxy, this should never happen."
+			getLog().debug("Illegal argument exception in circuit breaker handler"+ e);
+			throw e;
+		} catch (IllegalAccessException e) {
+			// "In a properly constructed proxy, this should never happen."
+			getLog().debug("Illegal access exception in circuit breaker handler"+ e);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Runs the method's result classifier, if it has one, on a value it returned. A classifier 
+	 * that blows up is logged and treated as having accepted the result.
+	 */
+	private boolean isFailedResult(MonitoredMethod monitored, Object ret) {
+		try {
+			return monitored.isFailedResult(ret);
+		} catch (RuntimeException e) {
+			getLog().error("Error while classifying result of " + monitored.method.getName(), e);
+			return false;
+		}
+	}
+	
+	/**
+	 * Returns the per-key breaker state kept for the supplied method, or null if it isn't 
+	 * partitioned
+	 */
+	public PartitionedBreaker getPartitionedBreaker(Method m) {
+		MonitoredMethod monitored = monitoredMethods.get(m);
+		return monitored == null ? null : monitored.partitions;
+	}
+	
+	/**
+	 * Returns the cache of last known good values kept for the supplied method, or null if it
+	 * doesn't have one
+	 */
+	public ResponseCache getResponseCache(Method m) {
+		MonitoredMethod monitored = monitoredMethods.get(m);
+		return monitored == null ? null : monitored.responseCache;
+	}
+	
+	/**
+	 * Returns the metrics recorded by this handler
+	 */
+	public CircuitBreakerMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Returns the policy guarding the realObj
+	 */
+	public CircuitBreakerPolicy getPolicy() {
+		return policy;
+	}
 
 }
@@ -0,0 +1,229 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.hubspot.utils.HubSpotObject;
+
+/**
+ * Counts the outcome of calls to the monitored methods of a wrapped object, and notifies
+ * interested parties whenever a call is rejected (whether by the breaker itself or by one
+ * of its gates).
+ * 
+ * Counters are striped so that updating them doesn't contend across threads; reading them
+ * sums the stripes.
+ */
+public class CircuitBreakerMetrics extends HubSpotObject implements Notifier<CallRejection> {
+
+	private final LongAdder successfulCalls = new LongAdder();
+	private final LongAdder failedCalls = new LongAdder();
+	private final LongAdder fallbackCalls = new LongAdder();
+	private final LongAdder cachedCalls = new LongAdder();
+	private final LongAdder coalescedCalls = new LongAdder();
+	private final LongAdder batchedCalls = new LongAdder();
+	private final LongAdder retriedCalls = new LongAdder();
+	private final LongAdder hedgedCalls = new LongAdder();
+	private final LongAdder[] rejectedCalls = new LongAdder[RejectionReason.values().length];
+	
+	// latencies of the calls that reached the wrapped object, decayed by whoever reads them
+	private final LatencyHistogram latencies = new LatencyHistogram(10000);
+	
+	// list of parties interested in receiving rejection notifications
+	private final List<NotificationHandler<CallRejection>> notificationChain = new CopyOnWriteArrayList<NotificationHandler<CallRejection>>();
+	
+	public CircuitBreakerMetrics() {
+		for (int i = 0; i < rejectedCalls.length; i++) {
+			rejectedCalls[i] = new LongAdder();
+		}
+	}
+	
+	/**
+	 * Records a call that completed without a blacklisted exception
+	 */
+	public void successfulCall(Method m) {
+		successfulCalls.increment();
+	}
+	
+	/**
+	 * Records a call that failed with a blacklisted exception
+	 */
+	public void failedCall(Method m) {
+		failedCalls.increment();
+	}
+	
+	/**
+	 * Records a call that was served by a fallback after being rejected or failing
+	 */
+	public void fallbackCall(Method m) {
+		fallbackCalls.increment();
+	}
+	
+	/**
+	 * Records a call that was served a cached value after being rejected or failing
+	 */
+	public void cachedCall(Method m) {
+		cachedCalls.increment();
+	}
+	
+	/**
+	 * Records a call that shared the outcome of an identical call already in flight
+	 */
+	public void coalescedCall(Method m) {
+		coalescedCalls.increment();
+	}
+	
+	/**
+	 * Records a call that joined a batch opened by another call
+	 */
+	public void batchedCall(Method m) {
+		batchedCalls.increment();
+	}
+	
+	/**
+	 * Records a retry of a failed call
+	 */
+	public void retriedCall(Method m) {
+		retriedCalls.increment();
+	}
+	
+	/**
+	 * Records a hedged call, made because the first attempt at a call was slow
+	 */
+	public void hedgedCall(Method m) {
+		hedgedCalls.increment();
+	}
+	
+	/**
+	 * Records how long a call that reached the wrapped object took
+	 */
+	public void callLatency(Method m, long latencyNanos) {
+		latencies.record(latencyNanos);
+	}
+	
+	/**
+	 * Records a call that was turned away, and notifies our handlers
+	 */
+	public void rejectedCall(Method m, RejectionReason reason) {
+		rejectedCalls[reason.ordinal()].increment();
+		if (!notificationChain.isEmpty()) {
+			notifyHandlers(new CallRejection(m, reason));
+		}
+	}
+	
+	public long getSuccessfulCalls() {
+		return successfulCalls.sum();
+	}
+	
+	public long getFailedCalls() {
+		return failedCalls.sum();
+	}
+	
+	public long getFallbackCalls() {
+		return fallbackCalls.sum();
+	}
+	
+	public long getCachedCalls() {
+		return cachedCalls.sum();
+	}
+	
+	public long getCoalescedCalls() {
+		return coalescedCalls.sum();
+	}
+	
+	public long getBatchedCalls() {
+		return batchedCalls.sum();
+	}
+	
+	public long getRetriedCalls() {
+		return retriedCalls.sum();
+	}
+	
+	public long getHedgedCalls() {
+		return hedgedCalls.sum();
+	}
+	
+	/**
+	 * Returns the latency under which the supplied fraction (0.0 - 1.0) of recent calls 
+	 * completed, or 0 if no call was made yet
+	 */
+	public long getLatencyPercentileNanos(double percentile) {
+		return latencies.getPercentileNanos(percentile);
+	}
+	
+	/**
+	 * Halves the latency counts if enough calls were recorded since they were last halved, so
+	 * that percentiles follow recent calls. Left to the reader of the percentiles (such as 
+	 * CircuitBreakerMetricsServer) rather than done by the calls being measured.
+	 */
+	public void decayLatencies() {
+		latencies.decay();
+	}
+	
+	public long getRejectedCalls(RejectionReason reason) {
+		return rejectedCalls[reason.ordinal()].sum();
+	}
+	
+	/**
+	 * Returns the number of rejected calls for every reason
+	 */
+	public long getRejectedCalls() {
+		long total = 0;
+		for (LongAdder rejected : rejectedCalls) {
+			total += rejected.sum();
+		}
+		return total;
+	}
+
+	/**
+	 * Adds the supplied object to the list of objects to be 
+	 * notified on a rejection.
+	 */
+	@Override
+	public void attachHandler(NotificationHandler<CallRejection> n) {
+		if( !notificationChain.contains(n)) {
+			notificationChain.add(n);
+		}
+	}
+
+	/**
+	 * Removes a handler from the list of entities to be notified on
+	 * a rejection
+	 */
+	@Override
+	public void detachHandler(NotificationHandler<CallRejection> n) {
+		notificationChain.remove(n);
+	}
+
+	/**
+	 * Notifies all entities in the notification chain of a rejection
+	 */
+	@Override
+	public void notifyHandlers(CallRejection rejection) {
+		for( NotificationHandler<CallRejection> handler : notificationChain ) {
+			try {
+				handler.onChanged(rejection);
+			} catch( Exception e ) {
+				getLog().error("Error while notifying of circuit breaker call rejection", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,336 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.hubspot.utils.HubSpotObject;
+import com.hubspot.utils.circuitbreaker.CircuitBreakerPolicy.CircuitBreakerState;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP server, on the JDK's built-in server, exposing the state and metrics of named
+ * breakers for live dashboards:
+ * 
+ * /stream: Server-Sent Events, one JSON snapshot of every breaker per interval
+ * /metrics: the latest snapshot in the Prometheus text format
+ * 
+ * Snapshots are built once per interval on a background thread, from the counters that
+ * CircuitBreakerMetrics maintains anyway, and the same rendered bytes are sent to every 
+ * client; so the number of clients connected makes no difference to the calls being 
+ * measured. Rates are per second over the last interval, and latency percentiles follow 
+ * recent calls. Every streaming client holds one of the server's threads.
+ */
+public class CircuitBreakerMetricsServer extends HubSpotObject implements Closeable {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private static final double[] PERCENTILES = { 0.5, 0.9, 0.99 };
+	
+	/**
+	 * A breaker being exposed, and its counters at the previous snapshot to compute rates
+	 */
+	private static final class Breaker {
+		final CircuitBreakerPolicy policy;
+		final CircuitBreakerMetrics metrics;
+		long successfulCalls;
+		long failedCalls;
+		long rejectedCalls;
+		
+		Breaker(CircuitBreakerPolicy policy, CircuitBreakerMetrics metrics) {
+			this.policy = policy;
+			this.metrics = metrics;
+		}
+	}
+	
+	/**
+	 * Snapshot of every breaker, rendered in both formats
+	 */
+	private static final class Snapshot {
+		final long sequence;
+		final byte[] event;
+		final byte[] prometheus;
+		
+		Snapshot(long sequence, byte[] event, byte[] prometheus) {
+			this.sequence = sequence;
+			this.event = event;
+			this.prometheus = prometheus;
+		}
+	}
+	
+	// sorted so that snapshots list breakers in a stable order
+	private final Map<String, Breaker> breakers = new ConcurrentSkipListMap<String, Breaker>();
+	private final long intervalMillis;
+	private final HttpServer server;
+	private final ExecutorService serverExecutor;
+	private final ScheduledExecutorService scheduler;
+	
+	// latest snapshot; streaming clients wait on this object for the next one
+	private volatile Snapshot snapshot = new Snapshot(0, new byte[0], new byte[0]);
+	private long lastSnapshotNanos = System.nanoTime();
+	private volatile boolean closed;
+	
+	/**
+	 * Constructor; starts serving right away
+	 * 
+	 * @param address: address to listen on; port 0 picks a free port
+	 * @param intervalMillis: how often snapshots are taken and streamed
+	 */
+	public CircuitBreakerMetricsServer(InetSocketAddress address, long intervalMillis) throws CircuitBreakerWrappingException {
+		if( address == null ) {
+			throw new CircuitBreakerWrappingException("Address cannot be null.");
+		}
+		
+		if( intervalMillis <= 0 ) {
+			throw new CircuitBreakerWrappingException("Invalid snapshot interval.");
+		}
+		
+		this.intervalMillis = intervalMillis;
+		try {
+			server = HttpServer.create(address, 0);
+		} catch( IOException e ) {
+			throw new CircuitBreakerWrappingException("Cannot listen on " + address + ": " + e.getMessage());
+		}
+		
+		serverExecutor = Executors.newCachedThreadPool(daemonThreads("circuit-breaker-metrics-"));
+		server.setExecutor(serverExecutor);
+		server.createContext("/stream", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				stream(exchange);
+			}
+		});
+		server.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = snapshot.prometheus;
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		
+		scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("circuit-breaker-metrics-snapshot-"));
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					takeSnapshot();
+				} catch( RuntimeException e ) {
+					getLog().error("Error while taking circuit breaker metrics snapshot", e);
+				}
+			}
+		}, 0, intervalMillis, TimeUnit.MILLISECONDS);
+		server.start();
+	}
+	
+	private static ThreadFactory daemonThreads(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, prefix + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+	
+	/**
+	 * Exposes a breaker under the supplied name
+	 */
+	public void register(String name, CircuitBreakerPolicy policy, CircuitBreakerMetrics metrics) {
+		breakers.put(name, new Breaker(policy, metrics));
+	}
+	
+	/**
+	 * Returns the address the server listens on
+	 */
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+	
+	/**
+	 * Sends every new snapshot to a client as an event, until it disconnects
+	 */
+	private void stream(HttpExchange exchange) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+		exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+		exchange.sendResponseHeaders(200, 0);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			long sent = 0;
+			while( !closed ) {
+				Snapshot current = awaitSnapshot(sent);
+				if( current.sequence > sent ) {
+					out.write(current.event);
+					out.flush();
+					sent = current.sequence;
+				}
+			}
+		} catch( IOException e ) {
+			// client went away
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		} finally {
+			exchange.close();
+		}
+	}
+	
+	/**
+	 * Waits for a snapshot newer than the supplied sequence, or an interval at most
+	 */
+	private Snapshot awaitSnapshot(long after) throws InterruptedException {
+		synchronized (this) {
+			if( snapshot.sequence <= after && !closed ) {
+				wait(intervalMillis);
+			}
+			return snapshot;
+		}
+	}
+	
+	/**
+	 * Reads every breaker's counters once, renders them, and wakes up streaming clients
+	 */
+	void takeSnapshot() {
+		long now = System.nanoTime();
+		double seconds = Math.max(1, now - lastSnapshotNanos) / 1e9;
+		lastSnapshotNanos = now;
+		
+		StringBuilder json = new StringBuilder("{\"timestamp\":").append(System.currentTimeMillis()).append(",\"breakers\":[");
+		StringBuilder states = new StringBuilder("# TYPE circuit_breaker_state gauge\n");
+		StringBuilder calls = new StringBuilder("# TYPE circuit_breaker_calls_total counter\n");
+		StringBuilder rejections = new StringBuilder("# TYPE circuit_breaker_rejected_calls_total counter\n");
+		StringBuilder latencies = new StringBuilder("# TYPE circuit_breaker_latency_seconds summary\n");
+		
+		boolean first = true;
+		for( Map.Entry<String, Breaker> entry : breakers.entrySet() ) {
+			String name = entry.getKey();
+			Breaker breaker = entry.getValue();
+			CircuitBreakerMetrics metrics = breaker.metrics;
+			CircuitBreakerState state = breaker.policy.getCurrentState();
+			long successful = metrics.getSuccessfulCalls();
+			long failed = metrics.getFailedCalls();
+			long rejected = metrics.getRejectedCalls();
+			String label = "breaker=\"" + escapeLabel(name) + "\"";
+			
+			if( !first ) {
+				json.append(',');
+			}
+			first = false;
+			json.append("{\"name\":").append(quote(name))
+				.append(",\"state\":\"").append(state).append('"')
+				.append(",\"successfulCalls\":").append(successful)
+				.append(",\"failedCalls\":").append(failed)
+				.append(",\"rejectedCalls\":").append(rejected)
+				.append(",\"successRate\":").append(rate(successful - breaker.successfulCalls, seconds))
+				.append(",\"failureRate\":").append(rate(failed - breaker.failedCalls, seconds))
+				.append(",\"rejectionRate\":").append(rate(rejected - breaker.rejectedCalls, seconds))
+				.append(",\"rejections\":{");
+			breaker.successfulCalls = successful;
+			breaker.failedCalls = failed;
+			breaker.rejectedCalls = rejected;
+			
+			for( CircuitBreakerState s : CircuitBreakerState.values() ) {
+				states.append("circuit_breaker_state{").append(label).append(",state=\"").append(s).append("\"} ")
+					.append(s == state ? 1 : 0).append('\n');
+			}
+			calls.append("circuit_breaker_calls_total{").append(label).append(",outcome=\"success\"} ").append(successful).append('\n');
+			calls.append("circuit_breaker_calls_total{").append(label).append(",outcome=\"failure\"} ").append(failed).append('\n');
+			
+			RejectionReason[] reasons = RejectionReason.values();
+			for( int i = 0; i < reasons.length; i++ ) {
+				long count = metrics.getRejectedCalls(reasons[i]);
+				json.append(i == 0 ? "" : ",").append('"').append(reasons[i]).append("\":").append(count);
+				rejections.append("circuit_breaker_rejected_calls_total{").append(label).append(",reason=\"").append(reasons[i]).append("\"} ")
+					.append(count).append('\n');
+			}
+			json.append("},\"latencyMillis\":{");
+			metrics.decayLatencies();
+			for( int i = 0; i < PERCENTILES.length; i++ ) {
+				long nanos = metrics.getLatencyPercentileNanos(PERCENTILES[i]);
+				json.append(i == 0 ? "" : ",").append("\"p").append(Math.round(PERCENTILES[i] * 100)).append("\":").append(nanos / 1e6);
+				latencies.append("circuit_breaker_latency_seconds{").append(label).append(",quantile=\"").append(PERCENTILES[i]).append("\"} ")
+					.append(nanos / 1e9).append('\n');
+			}
+			json.append("}}");
+		}
+		json.append("]}");
+		
+		byte[] event = ("data: " + json + "\n\n").getBytes(UTF8);
+		byte[] prometheus = states.append(calls).append(rejections).append(latencies).toString().getBytes(UTF8);
+		synchronized (this) {
+			snapshot = new Snapshot(snapshot.sequence + 1, event, prometheus);
+			notifyAll();
+		}
+	}
+	
+	private static double rate(long delta, double seconds) {
+		return Math.round(delta / seconds * 100) / 100.0;
+	}
+	
+	private static String quote(String s) {
+		StringBuilder quoted = new StringBuilder("\"");
+		for( int i = 0; i < s.length(); i++ ) {
+			char c = s.charAt(i);
+			if( c == '"' || c == '\\' ) {
+				quoted.append('\\').append(c);
+			} else if( c < 0x20 ) {
+				quoted.append(String.format("\\u%04x", (int) c));
+			} else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+	
+	private static String escapeLabel(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+	
+	/**
+	 * Stops the server, disconnecting streaming clients
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		synchronized (this) {
+			notifyAll();
+		}
+		scheduler.shutdownNow();
+		server.stop(0);
+		serverExecutor.shutdownNow();
+	}
+}
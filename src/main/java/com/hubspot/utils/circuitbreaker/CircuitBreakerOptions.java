@@ -0,0 +1,219 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.hubspot.utils.HubSpotObject;
+
+/**
+ * Optional settings applied when wrapping an object in a circuit breaker, in
+ * addition to its CircuitBreakerPolicy.
+ */
+public class CircuitBreakerOptions extends HubSpotObject {
+
+	// gates consulted, in order, before every monitored call
+	private List<CircuitBreakerGate> gates = new ArrayList<CircuitBreakerGate>();
+	
+	// where call outcomes and rejections are recorded
+	private CircuitBreakerMetrics metrics = new CircuitBreakerMetrics();
+	
+	// policy shared by the breakers of a whole service or host, null if there is none
+	private CircuitBreakerPolicy parentPolicy;
+	
+	// result classifiers registered for individual methods
+	private Map<Method, ResultClassifier<?>> resultClassifiers = new HashMap<Method, ResultClassifier<?>>();
+	
+	// objects providing fallbacks for individual methods
+	private Map<Method, Object> fallbacks = new HashMap<Method, Object>();
+	
+	// caps the retries of methods annotated with CircuitBreakerRetry, created when first needed
+	private RetryBudget retryBudget;
+	
+	// caps the hedged calls of methods annotated with CircuitBreakerHedge, created when first needed
+	private RetryBudget hedgeBudget;
+	
+	// runs the calls of methods annotated with CircuitBreakerHedge, created when first needed
+	private Executor hedgeExecutor;
+	
+	// records the outcome of every monitored call, null if calls aren't recorded
+	private CallRecorder callRecorder;
+	
+	/**
+	 * Adds a gate that will be consulted before every monitored call
+	 */
+	public void addGate(CircuitBreakerGate gate) {
+		if( gate == null ) {
+			throw new IllegalArgumentException("Gate cannot be null");
+		}
+		gates.add(gate);
+	}
+	
+	public List<CircuitBreakerGate> getGates() {
+		return gates;
+	}
+	
+	/**
+	 * Sets where call outcomes and rejections are recorded; objects wrapped with the
+	 * same metrics instance share their counters
+	 */
+	public void setMetrics(CircuitBreakerMetrics metrics) {
+		if( metrics == null ) {
+			throw new IllegalArgumentException("Metrics cannot be null");
+		}
+		this.metrics = metrics;
+	}
+	
+	public CircuitBreakerMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Sets a parent policy, typically shared by the breakers of every interface of a service or
+	 * host: while it is OPEN, calls to our monitored methods are rejected, and their failures
+	 * and successes are recorded with it as well as with our own policy. This way, a service 
+	 * that is down trips every breaker sharing the parent after tripThreshold failures in total,
+	 * rather than tripThreshold failures each.
+	 */
+	public void setParentPolicy(CircuitBreakerPolicy parentPolicy) {
+		this.parentPolicy = parentPolicy;
+	}
+	
+	public CircuitBreakerPolicy getParentPolicy() {
+		return parentPolicy;
+	}
+	
+	/**
+	 * Sets a recorder to which the outcome of every call to a monitored method is recorded,
+	 * the method being registered under its interface and method name
+	 */
+	public void setCallRecorder(CallRecorder callRecorder) {
+		this.callRecorder = callRecorder;
+	}
+	
+	public CallRecorder getCallRecorder() {
+		return callRecorder;
+	}
+	
+	/**
+	 * Registers the classifier that decides whether values returned by the supplied monitored
+	 * method count as failures; takes precedence over a CircuitBreakerResultClassifier annotation
+	 */
+	public void setResultClassifier(Method m, ResultClassifier<?> classifier) {
+		if( m == null || classifier == null ) {
+			throw new IllegalArgumentException("Method and classifier cannot be null");
+		}
+		resultClassifiers.put(m, classifier);
+	}
+	
+	public Map<Method, ResultClassifier<?>> getResultClassifiers() {
+		return resultClassifiers;
+	}
+	
+	/**
+	 * Registers the object whose method with the same name and parameter types is served when 
+	 * a call to the supplied monitored method is rejected or fails with a blacklisted exception;
+	 * takes precedence over a CircuitBreakerFallback annotation
+	 */
+	public void setFallback(Method m, Object fallback) {
+		if( m == null || fallback == null ) {
+			throw new IllegalArgumentException("Method and fallback cannot be null");
+		}
+		fallbacks.put(m, fallback);
+	}
+	
+	public Map<Method, Object> getFallbacks() {
+		return fallbacks;
+	}
+	
+	/**
+	 * Sets the budget retries are drawn from; objects wrapped with the same budget share it.
+	 * Defaults to a budget allowing retries for 10% of calls, plus 10 retries.
+	 */
+	public void setRetryBudget(RetryBudget retryBudget) {
+		if( retryBudget == null ) {
+			throw new IllegalArgumentException("Retry budget cannot be null");
+		}
+		this.retryBudget = retryBudget;
+	}
+	
+	public RetryBudget getRetryBudget() throws CircuitBreakerWrappingException {
+		if (retryBudget == null) {
+			retryBudget = new RetryBudget(0.1, 10);
+		}
+		return retryBudget;
+	}
+	
+	/**
+	 * Sets the budget hedged calls are drawn from; objects wrapped with the same budget share it.
+	 * Defaults to a budget allowing hedged calls for 5% of calls, plus 10 hedged calls.
+	 */
+	public void setHedgeBudget(RetryBudget hedgeBudget) {
+		if( hedgeBudget == null ) {
+			throw new IllegalArgumentException("Hedge budget cannot be null");
+		}
+		this.hedgeBudget = hedgeBudget;
+	}
+	
+	public RetryBudget getHedgeBudget() throws CircuitBreakerWrappingException {
+		if (hedgeBudget == null) {
+			hedgeBudget = new RetryBudget(0.05, 10);
+		}
+		return hedgeBudget;
+	}
+	
+	/**
+	 * Sets the executor running both the first and the hedged attempts of hedged calls. 
+	 * It must be able to run them concurrently; defaults to a cached pool of daemon threads.
+	 */
+	public void setHedgeExecutor(Executor hedgeExecutor) {
+		if( hedgeExecutor == null ) {
+			throw new IllegalArgumentException("Hedge executor cannot be null");
+		}
+		this.hedgeExecutor = hedgeExecutor;
+	}
+	
+	public Executor getHedgeExecutor() {
+		if (hedgeExecutor == null) {
+			hedgeExecutor = newDaemonPool("circuit-breaker-hedge-");
+		}
+		return hedgeExecutor;
+	}
+	
+	private static ExecutorService newDaemonPool(final String prefix) {
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, prefix + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+}
@@ -0,0 +1,45 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation that gives every key derived from the arguments of a monitored method its own
+ * breaker state, so that one bad shard or host doesn't trip the breaker for all of them.
+ * The key is the argument at position argument, unless a keyExtractor is named.
+ * 
+ * Per-key state trips after tripThreshold failures within thresholdWindow seconds and lets 
+ * calls through again after halfOpenTimeout seconds, like BaseCircuitBreakerPolicyImpl. At
+ * most maxKeys keys are tracked, and keys that haven't been called for idleSeconds are 
+ * forgotten. The method must also be annotated with CircuitBreakerExceptionBlacklist.
+ */
+@Target({ ElementType.METHOD })
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CircuitBreakerPartition {
+	int argument() default 0;
+	Class<? extends PartitionKeyExtractor> keyExtractor() default PartitionKeyExtractor.class;
+	int tripThreshold() default 5;
+	int thresholdWindow() default 60;
+	int halfOpenTimeout() default 30;
+	int maxKeys() default 10000;
+	int idleSeconds() default 600;
+}
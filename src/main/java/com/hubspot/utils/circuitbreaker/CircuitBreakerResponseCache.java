@@ -0,0 +1,44 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation that keeps the last value successfully returned by the annotated method for
+ * each set of arguments, and serves it when a later call with the same arguments is rejected
+ * or fails with a blacklisted exception. Meant for read-mostly methods where a stale value is
+ * better than no value. The method must also be annotated with CircuitBreakerExceptionBlacklist.
+ * 
+ * maxEntries: number of argument sets remembered; the least recently used are evicted first
+ * maxBytes: rough upper bound on the memory used by the cache, 0 for no bound
+ * ttlSeconds: values older than this are never served
+ * refreshSeconds: a remembered value is only replaced once it is at least this old, so that
+ * frequently made calls don't write to the cache every time
+ */
+@Target({ ElementType.METHOD })
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CircuitBreakerResponseCache {
+	int maxEntries() default 1000;
+	long maxBytes() default 0;
+	int ttlSeconds() default 3600;
+	int refreshSeconds() default 1;
+}
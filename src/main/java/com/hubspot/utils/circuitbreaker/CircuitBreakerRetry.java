@@ -0,0 +1,42 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation that retries calls to an idempotent monitored method failing with a blacklisted
+ * exception, waiting initialBackoffMillis before the first retry and multiplying the wait
+ * by backoffMultiplier (up to maxBackoffMillis) before each following one. jitter (0.0 - 1.0)
+ * randomly shortens each wait by up to that fraction.
+ * 
+ * Retries draw from the breaker's RetryBudget, and are never attempted while the breaker 
+ * is OPEN. The method must also be annotated with CircuitBreakerIdempotent.
+ */
+@Target({ ElementType.METHOD })
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CircuitBreakerRetry {
+	int maxAttempts() default 3;
+	long initialBackoffMillis() default 10;
+	long maxBackoffMillis() default 1000;
+	double backoffMultiplier() default 2.0;
+	double jitter() default 0.5;
+}
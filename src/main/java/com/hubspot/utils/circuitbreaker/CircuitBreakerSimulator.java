@@ -0,0 +1,385 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import com.hubspot.utils.HubSpotObject;
+import com.hubspot.utils.circuitbreaker.CircuitBreakerPolicy.CircuitBreakerState;
+
+/**
+ * Runs a policy against synthetic or recorded traffic on a virtual clock, to compare settings
+ * and policies offline: hours of traffic take seconds, and a run always gives the same result.
+ * 
+ * Calls are admitted the way the CircuitBreakerInvocationHandler admits them, and their 
+ * outcome is reported to the policy once their latency has elapsed. Each call says whether
+ * the resource was healthy when it was made, which is what the report judges the policy 
+ * against: trips while the resource is healthy are false trips, healthy calls rejected are 
+ * lost, and the time the breaker takes to trip after the resource turns unhealthy, and to 
+ * close once it is healthy again, are measured.
+ * 
+ * The policy is created for each run by a PolicyFactory, given the virtual clock; policies
+ * that read the time otherwise can't be simulated.
+ */
+public class CircuitBreakerSimulator extends HubSpotObject {
+
+	/**
+	 * Creates the policy to simulate
+	 */
+	public interface PolicyFactory {
+		CircuitBreakerPolicy create(Clock clock) throws CircuitBreakerWrappingException;
+	}
+	
+	/**
+	 * A call in the simulated traffic
+	 */
+	public static final class Call {
+		final long timeMillis;
+		final long latencyMillis;
+		final boolean failed;
+		final boolean healthy;
+		
+		/**
+		 * @param timeMillis: when the call is made, from the start of the traffic
+		 * @param latencyMillis: how long it takes if it is admitted
+		 * @param failed: whether it fails (with a blacklisted exception) if it is admitted
+		 * @param healthy: whether the resource was healthy when the call was made
+		 */
+		public Call(long timeMillis, long latencyMillis, boolean failed, boolean healthy) {
+			this.timeMillis = timeMillis;
+			this.latencyMillis = latencyMillis;
+			this.failed = failed;
+			this.healthy = healthy;
+		}
+	}
+	
+	/**
+	 * A stretch of synthetic traffic: calls arriving at random at a given rate, failing with
+	 * a given probability, with latencies exponentially distributed around a mean
+	 */
+	public static final class Phase {
+		final long durationMillis;
+		final double callsPerSecond;
+		final double failureRate;
+		final double meanLatencyMillis;
+		final boolean healthy;
+		
+		private Phase(long durationMillis, double callsPerSecond, double failureRate, double meanLatencyMillis, boolean healthy) {
+			this.durationMillis = durationMillis;
+			this.callsPerSecond = callsPerSecond;
+			this.failureRate = failureRate;
+			this.meanLatencyMillis = meanLatencyMillis;
+			this.healthy = healthy;
+		}
+		
+		/**
+		 * A phase where the resource is healthy, though some calls may still fail
+		 */
+		public static Phase healthy(long durationMillis, double callsPerSecond, double failureRate, double meanLatencyMillis) {
+			return new Phase(durationMillis, callsPerSecond, failureRate, meanLatencyMillis, true);
+		}
+		
+		/**
+		 * A phase where the resource is down or degraded, and the breaker should trip
+		 */
+		public static Phase outage(long durationMillis, double callsPerSecond, double failureRate, double meanLatencyMillis) {
+			return new Phase(durationMillis, callsPerSecond, failureRate, meanLatencyMillis, false);
+		}
+	}
+	
+	/**
+	 * How a policy fared over a run
+	 */
+	public static final class Report {
+		private long calls;
+		private long admittedCalls;
+		private long failedCalls;
+		private long rejectedGoodCalls;
+		private long rejectedBadCalls;
+		private int falseTrips;
+		private final List<Long> tripTimes = new ArrayList<Long>();
+		private final List<Long> detectionDelays = new ArrayList<Long>();
+		private final List<Long> recoveryDelays = new ArrayList<Long>();
+		
+		public long getCalls() {
+			return calls;
+		}
+		
+		public long getAdmittedCalls() {
+			return admittedCalls;
+		}
+		
+		/**
+		 * Returns the number of admitted calls that failed
+		 */
+		public long getFailedCalls() {
+			return failedCalls;
+		}
+		
+		/**
+		 * Returns the number of rejected calls that would have succeeded
+		 */
+		public long getRejectedGoodCalls() {
+			return rejectedGoodCalls;
+		}
+		
+		/**
+		 * Returns the number of rejected calls that would have failed, i.e. spared the resource
+		 */
+		public long getRejectedBadCalls() {
+			return rejectedBadCalls;
+		}
+		
+		/**
+		 * Returns the virtual times, in milliseconds, at which the breaker tripped
+		 */
+		public List<Long> getTripTimes() {
+			return Collections.unmodifiableList(tripTimes);
+		}
+		
+		/**
+		 * Returns the number of trips while the resource was healthy
+		 */
+		public int getFalseTrips() {
+			return falseTrips;
+		}
+		
+		/**
+		 * Returns, for every time the resource turned unhealthy and the breaker tripped before
+		 * it recovered, how long the trip took in milliseconds
+		 */
+		public List<Long> getDetectionDelays() {
+			return Collections.unmodifiableList(detectionDelays);
+		}
+		
+		/**
+		 * Returns, for every time the resource recovered while the breaker wasn't CLOSED, how 
+		 * long the breaker took to close in milliseconds
+		 */
+		public List<Long> getRecoveryDelays() {
+			return Collections.unmodifiableList(recoveryDelays);
+		}
+		
+		@Override
+		public String toString() {
+			return "calls=" + calls + " admitted=" + admittedCalls + " failed=" + failedCalls + 
+					" rejectedGood=" + rejectedGoodCalls + " rejectedBad=" + rejectedBadCalls + 
+					" trips=" + tripTimes.size() + " falseTrips=" + falseTrips + 
+					" detectionDelays=" + detectionDelays + " recoveryDelays=" + recoveryDelays;
+		}
+	}
+	
+	/**
+	 * Clock whose time only moves when the simulation moves it
+	 */
+	static final class VirtualClock extends Clock {
+		private long millis;
+		
+		@Override
+		public long millis() {
+			return millis;
+		}
+		
+		@Override
+		public Instant instant() {
+			return Instant.ofEpochMilli(millis);
+		}
+		
+		@Override
+		public ZoneId getZone() {
+			return ZoneOffset.UTC;
+		}
+		
+		@Override
+		public Clock withZone(ZoneId zone) {
+			throw new UnsupportedOperationException();
+		}
+		
+		void advanceTo(long millis) {
+			this.millis = Math.max(this.millis, millis);
+		}
+	}
+	
+	/**
+	 * Returns synthetic traffic made of the supplied phases in turn. The same seed always 
+	 * gives the same traffic; calls are generated as the simulation goes, so long runs don't 
+	 * take up memory.
+	 */
+	public static Iterator<Call> traffic(final long seed, final Phase... phases) {
+		return new Iterator<Call>() {
+			private final Random random = new Random(seed);
+			private int phase = 0;
+			private long phaseStart = 0;
+			private long time = 0;
+			private Call next = advance();
+			
+			private Call advance() {
+				while( phase < phases.length ) {
+					Phase p = phases[phase];
+					if( p.callsPerSecond > 0 ) {
+						time += Math.max(1, Math.round(-Math.log(1 - random.nextDouble()) * 1000 / p.callsPerSecond));
+						if( time < phaseStart + p.durationMillis ) {
+							long latency = Math.round(-Math.log(1 - random.nextDouble()) * p.meanLatencyMillis);
+							return new Call(time, latency, random.nextDouble() < p.failureRate, p.healthy);
+						}
+					}
+					phaseStart += p.durationMillis;
+					time = phaseStart;
+					phase++;
+				}
+				return null;
+			}
+			
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+			
+			@Override
+			public Call next() {
+				if( next == null ) {
+					throw new NoSuchElementException();
+				}
+				Call call = next;
+				next = advance();
+				return call;
+			}
+			
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+	
+	/**
+	 * Runs a new policy against the supplied traffic, whose calls must be in time order
+	 */
+	public Report run(PolicyFactory factory, Iterator<Call> traffic) throws CircuitBreakerWrappingException {
+		final VirtualClock clock = new VirtualClock();
+		final CircuitBreakerPolicy policy = factory.create(clock);
+		final Report report = new Report();
+		
+		// admitted calls in flight, by completion time
+		PriorityQueue<Call> inFlight = new PriorityQueue<Call>(11, new Comparator<Call>() {
+			@Override
+			public int compare(Call a, Call b) {
+				long ta = a.timeMillis + a.latencyMillis;
+				long tb = b.timeMillis + b.latencyMillis;
+				return ta < tb ? -1 : (ta == tb ? 0 : 1);
+			}
+		});
+		
+		CircuitBreakerState state = policy.getCurrentState();
+		boolean healthy = true;
+		long unhealthySince = -1;
+		long recoveredSince = -1;
+		
+		while( traffic.hasNext() ) {
+			Call call = traffic.next();
+			
+			// report the calls completing before this one is made
+			while( !inFlight.isEmpty() && inFlight.peek().timeMillis + inFlight.peek().latencyMillis <= call.timeMillis ) {
+				Call completed = inFlight.poll();
+				clock.advanceTo(completed.timeMillis + completed.latencyMillis);
+				if( completed.failed ) {
+					policy.failedBlacklistedCall(null);
+				} else {
+					policy.successfulCall(null);
+				}
+				state = observe(policy, state, healthy, clock.millis(), report, unhealthySince, recoveredSince);
+				if( state == CircuitBreakerState.OPEN ) {
+					unhealthySince = -1;
+				} else if( state == CircuitBreakerState.CLOSED ) {
+					recoveredSince = -1;
+				}
+			}
+			clock.advanceTo(call.timeMillis);
+			
+			// track the resource's health as the traffic reports it
+			if( call.healthy != healthy ) {
+				healthy = call.healthy;
+				if( healthy ) {
+					unhealthySince = -1;
+					recoveredSince = state == CircuitBreakerState.CLOSED ? -1 : call.timeMillis;
+				} else {
+					recoveredSince = -1;
+					unhealthySince = state == CircuitBreakerState.OPEN ? -1 : call.timeMillis;
+				}
+			}
+			
+			report.calls++;
+			boolean rejected = policy.getCurrentState() == CircuitBreakerState.OPEN && !policy.shouldAttemptReset();
+			state = observe(policy, state, healthy, clock.millis(), report, unhealthySince, recoveredSince);
+			if( state == CircuitBreakerState.OPEN ) {
+				unhealthySince = -1;
+			} else if( state == CircuitBreakerState.CLOSED ) {
+				recoveredSince = -1;
+			}
+			
+			if( rejected ) {
+				if( call.failed ) {
+					report.rejectedBadCalls++;
+				} else {
+					report.rejectedGoodCalls++;
+				}
+			} else {
+				report.admittedCalls++;
+				if( call.failed ) {
+					report.failedCalls++;
+				}
+				inFlight.add(call);
+			}
+		}
+		return report;
+	}
+	
+	/**
+	 * Records a change of the policy's state in the report, and returns the new state
+	 */
+	private static CircuitBreakerState observe(CircuitBreakerPolicy policy, CircuitBreakerState previous, boolean healthy, long now, 
+			Report report, long unhealthySince, long recoveredSince) {
+		CircuitBreakerState state = policy.getCurrentState();
+		if( state == previous ) {
+			return state;
+		}
+		
+		if( state == CircuitBreakerState.OPEN && previous != CircuitBreakerState.OPEN ) {
+			report.tripTimes.add(now);
+			if( healthy ) {
+				report.falseTrips++;
+			} else if( unhealthySince >= 0 ) {
+				report.detectionDelays.add(now - unhealthySince);
+			}
+		} else if( state == CircuitBreakerState.CLOSED && recoveredSince >= 0 ) {
+			report.recoveryDelays.add(now - recoveredSince);
+		}
+		return state;
+	}
+}
@@ -0,0 +1,328 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import com.hubspot.utils.HubSpotObject;
+import com.hubspot.utils.circuitbreaker.CircuitBreakerPolicy.CircuitBreakerState;
+
+/**
+ * Writes the states and failure windows of named breakers to a local file, and restores them
+ * when the process starts again, so that a restart during an outage doesn't send a burst of
+ * calls to the failing resource from breakers that forgot it was failing.
+ * 
+ * Snapshots are written to a temporary file which then replaces the previous snapshot in a
+ * single atomic move, so a crash while writing leaves the previous snapshot intact. They are 
+ * in a versioned binary format ending with a checksum; a snapshot that is corrupt, truncated
+ * or in an unknown version is ignored, leaving the breakers as they are.
+ * 
+ * Timestamps are stored as milliseconds on each policy's clock, wall-clock time unless it was
+ * replaced with setClock(), so time spent down counts: failures that have left their window 
+ * are dropped, and a breaker that should have moved to HALF_OPEN in the meantime does so on 
+ * the next call.
+ */
+public class CircuitBreakerSnapshots extends HubSpotObject implements Closeable {
+
+	private static final int MAGIC = 0x43425353; // "CBSS"
+	static final short FORMAT_VERSION = 2;
+	
+	private static final CircuitBreakerState[] STATES = CircuitBreakerState.values();
+	
+	private final File file;
+	private final Map<String, BaseCircuitBreakerPolicyImpl> policies = new ConcurrentHashMap<String, BaseCircuitBreakerPolicyImpl>();
+	private final ScheduledExecutorService scheduler;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param file: where snapshots are written
+	 * @param intervalMillis: how often snapshots are written; 0 to only write them on write()
+	 */
+	public CircuitBreakerSnapshots(File file, long intervalMillis) throws CircuitBreakerWrappingException {
+		if( file == null ) {
+			throw new CircuitBreakerWrappingException("Snapshot file cannot be null.");
+		}
+		
+		if( intervalMillis < 0 ) {
+			throw new CircuitBreakerWrappingException("Invalid snapshot interval.");
+		}
+		
+		this.file = file.getAbsoluteFile();
+		
+		if( intervalMillis > 0 ) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "circuit-breaker-snapshots");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						write();
+					} catch( IOException e ) {
+						getLog().error("Error while writing circuit breaker snapshot", e);
+					}
+				}
+			}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		} else {
+			scheduler = null;
+		}
+	}
+	
+	/**
+	 * Includes a policy in the snapshots under the supplied name, which must stay the same 
+	 * across restarts
+	 */
+	public void register(String name, BaseCircuitBreakerPolicyImpl policy) {
+		policies.put(name, policy);
+	}
+	
+	/**
+	 * Restores the registered policies found in the last snapshot; to be called once they 
+	 * are all registered, before they are used
+	 * 
+	 * @return the number of policies restored
+	 */
+	public int restore() {
+		if( !file.exists() ) {
+			return 0;
+		}
+		
+		byte[] bytes;
+		try {
+			bytes = Files.readAllBytes(file.toPath());
+		} catch( IOException e ) {
+			getLog().error("Error while reading circuit breaker snapshot "+file, e);
+			return 0;
+		}
+		
+		// magic, version and checksum
+		if( bytes.length < 4 + 2 + 8 ) {
+			getLog().warn("Ignoring truncated circuit breaker snapshot "+file);
+			return 0;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		if( buffer.getInt(0) != MAGIC ) {
+			getLog().warn("Ignoring "+file+", which isn't a circuit breaker snapshot");
+			return 0;
+		}
+		short version = buffer.getShort(4);
+		if( version != FORMAT_VERSION ) {
+			getLog().warn("Ignoring circuit breaker snapshot in unknown format version "+version);
+			return 0;
+		}
+		
+		// nothing is read from a snapshot whose checksum doesn't match
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length - 8);
+		if( buffer.getLong(bytes.length - 8) != crc.getValue() ) {
+			getLog().warn("Ignoring corrupt circuit breaker snapshot "+file);
+			return 0;
+		}
+		
+		List<Runnable> restores = new ArrayList<Runnable>();
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 6, bytes.length - 6 - 8));
+			int count = in.readInt();
+			if( count < 0 ) {
+				throw new IOException("Invalid number of breakers "+count);
+			}
+			for( int i = 0; i < count; i++ ) {
+				String name = in.readUTF();
+				BaseCircuitBreakerPolicyImpl policy = policies.get(name);
+				long written = in.readLong();
+				int ordinal = in.readUnsignedByte();
+				if( ordinal >= STATES.length ) {
+					throw new IOException("Invalid state "+ordinal);
+				}
+				CircuitBreakerState state = STATES[ordinal];
+				long tripped = in.readLong();
+				long openDuration = in.readLong();
+				int backoffLevel = in.readInt();
+				long closed = in.readLong();
+				int failureCount = in.readInt();
+				if( failureCount < 0 || failureCount > in.available() / 8 ) {
+					throw new IOException("Invalid number of failures "+failureCount);
+				}
+				long[] failures = new long[failureCount];
+				for( int j = 0; j < failures.length; j++ ) {
+					failures[j] = in.readLong();
+				}
+				
+				if( policy != null ) {
+					restores.add(restoreTask(policy, written, state, tripped, openDuration, backoffLevel, closed, failures));
+				}
+			}
+		} catch( IOException e ) {
+			// also covers running out of bytes: the checksum matched, so the snapshot was written wrong
+			getLog().warn("Ignoring invalid circuit breaker snapshot "+file+": "+e);
+			return 0;
+		}
+		
+		for( Runnable r : restores ) {
+			r.run();
+		}
+		return restores.size();
+	}
+	
+	/**
+	 * Creates the task restoring a policy, with its timestamps shifted if the policy's clock 
+	 * went back since the snapshot was written
+	 */
+	private Runnable restoreTask(final BaseCircuitBreakerPolicyImpl policy, final long written, final CircuitBreakerState state, final long tripped, 
+			final long openDuration, final int backoffLevel, final long closed, final long[] failures) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				long shift = Math.min(0, clockOf(policy).millis() - written);
+				for( int i = 0; i < failures.length; i++ ) {
+					failures[i] = shifted(failures[i], shift);
+				}
+				restore(policy, state, shifted(tripped, shift), openDuration, backoffLevel, shifted(closed, shift), failures);
+			}
+		};
+	}
+	
+	private static Clock clockOf(BaseCircuitBreakerPolicyImpl policy) {
+		synchronized (policy) {
+			return policy.clock;
+		}
+	}
+	
+	private static long shifted(long millis, long shift) {
+		return millis < 0 ? millis : millis + shift;
+	}
+	
+	private void restore(BaseCircuitBreakerPolicyImpl policy, CircuitBreakerState state, long tripped, long openDuration, int backoffLevel, long closed, long[] failures) {
+		CircuitBreakerState previous;
+		synchronized (policy) {
+			long cutoff = policy.clock.millis() - policy.thresholdWindow * 1000L;
+			previous = policy.currentState;
+			policy.failures.clear();
+			for( long failure : failures ) {
+				if( failure >= cutoff ) {
+					policy.failures.addLast(new Date(failure));
+				}
+			}
+			policy.trippedTimestamp = tripped < 0 ? null : new Date(tripped);
+			policy.openDurationMillis = openDuration;
+			policy.backoffLevel = backoffLevel;
+			policy.closedTimestamp = closed < 0 ? null : new Date(closed);
+			policy.currentState = state;
+		}
+		if( previous != state ) {
+			policy.notifyHandlers(new StateChange(previous, state, null));
+		}
+	}
+	
+	/**
+	 * Writes a snapshot of the registered policies, replacing the previous one atomically
+	 */
+	public synchronized void write() throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream stream = new FileOutputStream(temp);
+		try {
+			CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(stream), new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+			out.writeInt(MAGIC);
+			out.writeShort(FORMAT_VERSION);
+			out.writeInt(policies.size());
+			for( Map.Entry<String, BaseCircuitBreakerPolicyImpl> entry : policies.entrySet() ) {
+				write(out, entry.getKey(), entry.getValue());
+			}
+			out.writeLong(checked.getChecksum().getValue());
+			out.flush();
+			stream.getFD().sync();
+		} finally {
+			stream.close();
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	/**
+	 * Writes a breaker: name, the time on the policy's clock, state, tripped timestamp, open duration, backoff level, closed
+	 * timestamp, then its failures from the newest; missing timestamps are written as -1
+	 */
+	private void write(DataOutputStream out, String name, BaseCircuitBreakerPolicyImpl policy) throws IOException {
+		CircuitBreakerState state;
+		long now, tripped, openDuration, closed;
+		int backoffLevel;
+		Deque<Date> failures;
+		synchronized (policy) {
+			now = policy.clock.millis();
+			state = policy.currentState;
+			tripped = policy.trippedTimestamp == null ? -1 : policy.trippedTimestamp.getTime();
+			openDuration = policy.openDurationMillis;
+			backoffLevel = policy.backoffLevel;
+			closed = policy.closedTimestamp == null ? -1 : policy.closedTimestamp.getTime();
+			failures = new ArrayDeque<Date>(policy.failures);
+		}
+		
+		out.writeUTF(name);
+		out.writeLong(now);
+		out.writeByte(state.ordinal());
+		out.writeLong(tripped);
+		out.writeLong(openDuration);
+		out.writeInt(backoffLevel);
+		out.writeLong(closed);
+		out.writeInt(failures.size());
+		for( Iterator<Date> it = failures.iterator(); it.hasNext(); ) {
+			out.writeLong(it.next().getTime());
+		}
+	}
+	
+	/**
+	 * Stops writing snapshots periodically
+	 */
+	@Override
+	public void close() {
+		if( scheduler != null ) {
+			scheduler.shutdownNow();
+		}
+	}
+}
@@ -17,11 +17,16 @@
 
 package com.hubspot.utils.circuitbreaker;
 
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
@@ -35,6 +40,21 @@ import com.hubspot.utils.HubSpotObject;
  */
 public class CircuitBreakerWrapper extends HubSpotObject {
 	
+	// annotations that only make sense on methods monitored by the breaker
+	private static final List<Class<? extends Annotation>> MONITORING_ANNOTATIONS = Arrays.asList(
+			CircuitBreakerRateLimit.class,
+			CircuitBreakerResultClassifier.class,
+			CircuitBreakerFallback.class,
+			CircuitBreakerResponseCache.class,
+			CircuitBreakerSingleFlight.class,
+			CircuitBreakerBatch.class,
+			CircuitBreakerIdempotent.class,
+			CircuitBreakerRetry.class,
+			CircuitBreakerHedge.class,
+			CircuitBreakerPartition.class,
+			CircuitBreakerPriority.class,
+			CircuitBreakerExpectedLatency.class);
+	
 	CircuitBreakerWrapper() {
 	}
 	
@@ -43,14 +63,71 @@ public class CircuitBreakerWrapper extends HubSpotObject {
 	 * Wraps the supplied object toWrap in a CircuitBreaker conforming to the supplied CircuitBreakerPolicy.
 	 */
 	public <T, W extends T> T wrap(W toWrap, Class<T> interfaceToProxy, CircuitBreakerPolicy policy) throws CircuitBreakerWrappingException  {
+		return wrap(toWrap, interfaceToProxy, policy, new CircuitBreakerOptions());
+	}
+	
+	/**
+	 * Wraps the supplied object toWrap in a CircuitBreaker conforming to the supplied CircuitBreakerPolicy,
+	 * applying the supplied options.
+	 */
+	public <T, W extends T> T wrap(W toWrap, Class<T> interfaceToProxy, CircuitBreakerPolicy policy, CircuitBreakerOptions options) throws CircuitBreakerWrappingException  {
+		InvocationHandler handler = createHandler(toWrap, interfaceToProxy, policy, options);
+		
+		Class<?>[] interfaces = new Class<?>[] { interfaceToProxy };
+		T newProxyInstance = (T) Proxy.newProxyInstance(getClass().getClassLoader(), interfaces, handler);
+		return newProxyInstance;
+	}
+	
+	/**
+	 * Wraps a set of identical replicas in a single proxy that routes each call to one of them,
+	 * each replica being guarded by its own CircuitBreakerPolicy. Calls go to the less busy
+	 * of two randomly chosen replicas whose breaker isn't OPEN; replicas whose breaker is 
+	 * OPEN are ejected from the rotation, unless that would eject more than maxEjectedFraction
+	 * of them. The supplied options apply to every replica.
+	 */
+	public <T> T wrapReplicas(List<? extends T> replicas, Class<T> interfaceToProxy, List<? extends CircuitBreakerPolicy> policies, double maxEjectedFraction, CircuitBreakerOptions options) throws CircuitBreakerWrappingException {
+		if (replicas == null || replicas.isEmpty()) {
+			throw new CircuitBreakerWrappingException("Cannot wrap an empty set of replicas");
+		}
+		if (policies == null || policies.size() != replicas.size()) {
+			throw new CircuitBreakerWrappingException("Every replica needs its own policy");
+		}
+		if (maxEjectedFraction < 0.0 || maxEjectedFraction > 1.0) {
+			throw new CircuitBreakerWrappingException("Maximum ejected fraction must be between 0.0 and 1.0");
+		}
+		
+		CircuitBreakerInvocationHandler[] handlers = new CircuitBreakerInvocationHandler[replicas.size()];
+		for (int i = 0; i < handlers.length; i++) {
+			for (int j = 0; j < i; j++) {
+				if (policies.get(j) == policies.get(i)) {
+					throw new CircuitBreakerWrappingException("Every replica needs its own policy");
+				}
+			}
+			handlers[i] = createHandler(replicas.get(i), interfaceToProxy, policies.get(i), options);
+		}
+		
+		InvocationHandler handler = new ReplicaSetInvocationHandler(handlers, maxEjectedFraction);
+		Class<?>[] interfaces = new Class<?>[] { interfaceToProxy };
+		T newProxyInstance = (T) Proxy.newProxyInstance(getClass().getClassLoader(), interfaces, handler);
+		return newProxyInstance;
+	}
+	
+	/**
+	 * Creates the handler guarding the supplied object toWrap
+	 */
+	private <T> CircuitBreakerInvocationHandler createHandler(T toWrap, Class<T> interfaceToProxy, CircuitBreakerPolicy policy, CircuitBreakerOptions options) throws CircuitBreakerWrappingException {
 		sanityCheck(toWrap, interfaceToProxy, policy);
+		if (options == null) {
+			throw new CircuitBreakerWrappingException("Options cannot be null");
+		}
 		
 		// walk the chain of interfaces implemented by T and check for their blacklisted methods
 		Stack<Class<?>> implementedInterfaces = new Stack<Class<?>>();
 		implementedInterfaces.addAll(Arrays.asList(interfaceToProxy.getInterfaces()));
 		implementedInterfaces.add(interfaceToProxy);
 		
-        Map<Method, Class[]> blacklist = new HashMap();
+        Map<Method, MonitoredMethod> monitoredMethods = new HashMap<Method, MonitoredMethod>();
+        Map<Class<?>, Object> fallbackInstances = new HashMap<Class<?>, Object>();
         while( !implementedInterfaces.isEmpty() ) {
         	Class<?> implementedInterface = implementedInterfaces.pop();
         	
@@ -63,20 +140,277 @@ public class CircuitBreakerWrapper extends HubSpotObject {
 	        		}
 	
 	            	CircuitBreakerExceptionBlacklist a = (CircuitBreakerExceptionBlacklist)m.getAnnotation(CircuitBreakerExceptionBlacklist.class);
-	            	blacklist.put(m,a.blacklist());
-	        	} 
+	            	MonitoredMethod monitored = new MonitoredMethod(m, a.blacklist());
+	            	monitored.gates = gatesFor(m, options);
+	            	monitored.resultClassifier = resultClassifierFor(m, options);
+	            	monitored.fallback = fallbackFor(m, options, fallbackInstances);
+	            	monitored.responseCache = responseCacheFor(m);
+	            	if (m.isAnnotationPresent(CircuitBreakerSingleFlight.class)) {
+	            		monitored.singleFlight = new SingleFlight();
+	            	}
+	            	monitored.batcher = batcherFor(m, interfaceToProxy);
+	            	if (monitored.batcher != null && monitored.resultClassifier != null) {
+	            		throw new CircuitBreakerWrappingException("Batched methods cannot have a result classifier");
+	            	}
+	            	monitored.retrier = retrierFor(m, options);
+	            	if (monitored.batcher != null && monitored.retrier != null) {
+	            		throw new CircuitBreakerWrappingException("Batched methods cannot be retried");
+	            	}
+	            	monitored.hedger = hedgerFor(m, options);
+	            	if (monitored.batcher != null && monitored.hedger != null) {
+	            		throw new CircuitBreakerWrappingException("Batched methods cannot be hedged");
+	            	}
+	            	partition(monitored);
+	            	monitored.expectedLatency = expectedLatencyFor(m);
+	            	if (m.isAnnotationPresent(CircuitBreakerPriority.class)) {
+	            		monitored.priority = m.getAnnotation(CircuitBreakerPriority.class).value();
+	            	}
+	            	if (monitored.batcher != null && monitored.partitions != null) {
+	            		throw new CircuitBreakerWrappingException("Batched methods cannot be partitioned");
+	            	}
+	            	if (options.getCallRecorder() != null) {
+	            		monitored.recorder = options.getCallRecorder();
+	            		monitored.recordId = monitored.recorder.register(m.getDeclaringClass().getName() + "." + m.getName());
+	            	}
+	            	monitoredMethods.put(m, monitored);
+	        	} else {
+	        		for (Class<? extends Annotation> annotation : MONITORING_ANNOTATIONS) {
+	        			if (m.isAnnotationPresent(annotation)) {
+	        				throw new CircuitBreakerWrappingException(annotation.getSimpleName() + " methods must be annotated with CircuitBreakerExceptionBlacklist");
+	        			}
+	        		}
+	        	}
 	        }
 	        
 	        implementedInterfaces.addAll(Arrays.asList(implementedInterface.getInterfaces()));
         }
+        
+        if (!monitoredMethods.keySet().containsAll(options.getResultClassifiers().keySet())) {
+        	throw new CircuitBreakerWrappingException("Result classifiers can only be registered for monitored methods");
+        }
+        if (!monitoredMethods.keySet().containsAll(options.getFallbacks().keySet())) {
+        	throw new CircuitBreakerWrappingException("Fallbacks can only be registered for monitored methods");
+        }
 
-
-        Class<?>[] interfaces = new Class<?>[] { interfaceToProxy };
-        InvocationHandler handler = new CircuitBreakerInvocationHandler(toWrap, blacklist, policy);
-        T newProxyInstance = (T) Proxy.newProxyInstance(getClass().getClassLoader(), interfaces, handler);
-        return newProxyInstance;
+        if (options.getParentPolicy() == policy) {
+        	throw new CircuitBreakerWrappingException("A policy cannot be its own parent");
+        }
+        return new CircuitBreakerInvocationHandler(toWrap, monitoredMethods, policy, options.getParentPolicy(), options.getMetrics());
     }
 
+	/**
+	 * Returns the gates consulted before each call to the supplied method: the ones shared
+	 * by the whole breaker followed by the method's own rate limiter, if it has one.
+	 */
+	private CircuitBreakerGate[] gatesFor(Method m, CircuitBreakerOptions options) throws CircuitBreakerWrappingException {
+		List<CircuitBreakerGate> gates = new ArrayList<CircuitBreakerGate>(options.getGates());
+		
+		CircuitBreakerRateLimit rateLimit = m.getAnnotation(CircuitBreakerRateLimit.class);
+		if (rateLimit != null) {
+			gates.add(new TokenBucketRateLimiter(rateLimit.permitsPerSecond(), rateLimit.burst(), rateLimit.maxWaitMillis()));
+		}
+		return gates.toArray(new CircuitBreakerGate[gates.size()]);
+	}
+
+	/**
+	 * Returns the classifier deciding whether values returned by the supplied method count
+	 * as failures: the one registered in the options, or a new instance of the one named by 
+	 * its annotation, or null if there is neither.
+	 */
+	@SuppressWarnings("unchecked")
+	private ResultClassifier<Object> resultClassifierFor(Method m, CircuitBreakerOptions options) throws CircuitBreakerWrappingException {
+		ResultClassifier<?> registered = options.getResultClassifiers().get(m);
+		if (registered != null) {
+			return (ResultClassifier<Object>) registered;
+		}
+		
+		CircuitBreakerResultClassifier annotation = m.getAnnotation(CircuitBreakerResultClassifier.class);
+		if (annotation == null) {
+			return null;
+		}
+		return (ResultClassifier<Object>) instantiate(annotation.value());
+	}
+	
+	/**
+	 * Binds the fallback for the supplied method: the same method on the object registered in
+	 * the options, or on an instance of the class named by its annotation, or null if there is
+	 * neither. Instances of annotated classes are shared through fallbackInstances.
+	 */
+	private Fallback fallbackFor(Method m, CircuitBreakerOptions options, Map<Class<?>, Object> fallbackInstances) throws CircuitBreakerWrappingException {
+		Object target = options.getFallbacks().get(m);
+		if (target == null) {
+			CircuitBreakerFallback annotation = m.getAnnotation(CircuitBreakerFallback.class);
+			if (annotation == null) {
+				return null;
+			}
+			
+			target = fallbackInstances.get(annotation.value());
+			if (target == null) {
+				target = instantiate(annotation.value());
+				fallbackInstances.put(annotation.value(), target);
+			}
+		}
+		
+		Method fallbackMethod;
+		try {
+			fallbackMethod = target.getClass().getMethod(m.getName(), m.getParameterTypes());
+		} catch (NoSuchMethodException e) {
+			throw new CircuitBreakerWrappingException("Fallback " + target.getClass().getName() + " has no method " + m.getName() + " with matching parameters");
+		}
+		
+		if (!m.getReturnType().isAssignableFrom(fallbackMethod.getReturnType())) {
+			throw new CircuitBreakerWrappingException("Fallback for " + m.getName() + " has an incompatible return type");
+		}
+		
+		fallbackMethod.setAccessible(true);
+		return new Fallback(target, fallbackMethod);
+	}
+	
+	/**
+	 * Creates the cache of last known good values for the supplied method, or returns null
+	 * if it isn't annotated for one
+	 */
+	private ResponseCache responseCacheFor(Method m) throws CircuitBreakerWrappingException {
+		CircuitBreakerResponseCache annotation = m.getAnnotation(CircuitBreakerResponseCache.class);
+		if (annotation == null) {
+			return null;
+		}
+		
+		if (m.getReturnType() == void.class) {
+			throw new CircuitBreakerWrappingException("Methods returning void cannot have a response cache");
+		}
+		return new ResponseCache(annotation.maxEntries(), annotation.maxBytes(), annotation.ttlSeconds(), annotation.refreshSeconds());
+	}
+	
+	/**
+	 * Creates the retrier for the supplied method, or returns null if it isn't annotated 
+	 * for retries
+	 */
+	private Retrier retrierFor(Method m, CircuitBreakerOptions options) throws CircuitBreakerWrappingException {
+		CircuitBreakerRetry annotation = m.getAnnotation(CircuitBreakerRetry.class);
+		if (annotation == null) {
+			return null;
+		}
+		
+		if (!m.isAnnotationPresent(CircuitBreakerIdempotent.class)) {
+			throw new CircuitBreakerWrappingException("Only methods annotated with CircuitBreakerIdempotent can be retried");
+		}
+		if (annotation.maxAttempts() < 1 || annotation.initialBackoffMillis() < 0 ||
+				annotation.maxBackoffMillis() < annotation.initialBackoffMillis() ||
+				annotation.backoffMultiplier() < 1.0 ||
+				annotation.jitter() < 0.0 || annotation.jitter() > 1.0) {
+			throw new CircuitBreakerWrappingException("Invalid retry settings");
+		}
+		return new Retrier(annotation, options.getRetryBudget());
+	}
+	
+	/**
+	 * Creates the hedger for the supplied method, or returns null if it isn't annotated 
+	 * for hedging
+	 */
+	private Hedger hedgerFor(Method m, CircuitBreakerOptions options) throws CircuitBreakerWrappingException {
+		CircuitBreakerHedge annotation = m.getAnnotation(CircuitBreakerHedge.class);
+		if (annotation == null) {
+			return null;
+		}
+		
+		if (!m.isAnnotationPresent(CircuitBreakerIdempotent.class)) {
+			throw new CircuitBreakerWrappingException("Only methods annotated with CircuitBreakerIdempotent can be hedged");
+		}
+		if (annotation.percentile() <= 0.0 || annotation.percentile() > 1.0) {
+			throw new CircuitBreakerWrappingException("Invalid hedge percentile");
+		}
+		return new Hedger(annotation, options.getHedgeExecutor(), options.getHedgeBudget());
+	}
+	
+	/**
+	 * Gives the supplied method per-key breaker state if it is annotated with 
+	 * CircuitBreakerPartition
+	 */
+	private void partition(MonitoredMethod monitored) throws CircuitBreakerWrappingException {
+		Method m = monitored.method;
+		CircuitBreakerPartition annotation = m.getAnnotation(CircuitBreakerPartition.class);
+		if (annotation == null) {
+			return;
+		}
+		
+		if (annotation.keyExtractor() != PartitionKeyExtractor.class) {
+			monitored.partitionKeyExtractor = instantiate(annotation.keyExtractor());
+		} else {
+			final int argument = annotation.argument();
+			if (argument < 0 || argument >= m.getParameterTypes().length) {
+				throw new CircuitBreakerWrappingException("Partition argument " + argument + " out of range for " + m.getName());
+			}
+			monitored.partitionKeyExtractor = new PartitionKeyExtractor() {
+				@Override
+				public Object getKey(Object[] args) {
+					return args[argument];
+				}
+			};
+		}
+		monitored.partitions = new PartitionedBreaker(annotation.tripThreshold(), annotation.thresholdWindow(),
+				annotation.halfOpenTimeout(), annotation.maxKeys(), annotation.idleSeconds());
+	}
+	
+	/**
+	 * Returns the latency expected of the supplied method, or null if it isn't annotated
+	 * with CircuitBreakerExpectedLatency
+	 */
+	private ExpectedLatency expectedLatencyFor(Method m) throws CircuitBreakerWrappingException {
+		CircuitBreakerExpectedLatency annotation = m.getAnnotation(CircuitBreakerExpectedLatency.class);
+		if (annotation == null) {
+			return null;
+		}
+		if (annotation.millis() < 0 && (annotation.percentile() <= 0.0 || annotation.percentile() > 1.0)) {
+			throw new CircuitBreakerWrappingException("Invalid expected latency percentile");
+		}
+		return new ExpectedLatency(annotation.millis(), annotation.percentile());
+	}
+	
+	/**
+	 * Creates the batcher collecting calls to the supplied method into calls to its bulk
+	 * method, or returns null if it isn't annotated for batching
+	 */
+	private Batcher batcherFor(Method m, Class<?> interfaceToProxy) throws CircuitBreakerWrappingException {
+		CircuitBreakerBatch annotation = m.getAnnotation(CircuitBreakerBatch.class);
+		if (annotation == null) {
+			return null;
+		}
+		
+		if (m.getParameterTypes().length != 1 || m.getReturnType() == void.class) {
+			throw new CircuitBreakerWrappingException("Batched methods must take a single key and return a value");
+		}
+		if (annotation.maxBatchSize() <= 0 || annotation.windowMillis() < 0) {
+			throw new CircuitBreakerWrappingException("Invalid batch size or window");
+		}
+		
+		for (Method candidate : interfaceToProxy.getMethods()) {
+			Class<?>[] parameterTypes = candidate.getParameterTypes();
+			if (candidate.getName().equals(annotation.bulkMethod()) &&
+					parameterTypes.length == 1 &&
+					(parameterTypes[0].isAssignableFrom(ArrayList.class) || parameterTypes[0].isAssignableFrom(LinkedHashSet.class)) &&
+					Map.class.isAssignableFrom(candidate.getReturnType())) {
+				candidate.setAccessible(true);
+				return new Batcher(candidate, annotation.maxBatchSize(), annotation.windowMillis());
+			}
+		}
+		throw new CircuitBreakerWrappingException("No bulk method " + annotation.bulkMethod() + " taking a collection of keys and returning a map");
+	}
+	
+	/**
+	 * Creates an instance of a class named in one of our annotations through its no-argument constructor
+	 */
+	private <C> C instantiate(Class<C> c) throws CircuitBreakerWrappingException {
+		try {
+			Constructor<C> constructor = c.getDeclaredConstructor();
+			constructor.setAccessible(true);
+			return constructor.newInstance();
+		} catch (Exception e) {
+			getLog().error("Unable to instantiate " + c.getName(), e);
+			throw new CircuitBreakerWrappingException("Unable to instantiate " + c.getName() + "; it needs a no-argument constructor");
+		}
+	}
+
 	/**
 	 * Ensures that the object we're wrapping and it's base interface conform to our restrictions
 	 * @throws CircuitBreakerWrappingException
@@ -94,7 +428,8 @@ public class CircuitBreakerWrapper extends HubSpotObject {
 		
 		try {
             if (Proxy.isProxyClass(toWrap.getClass())
-                    && Proxy.getInvocationHandler(toWrap) instanceof CircuitBreakerInvocationHandler) {
+                    && (Proxy.getInvocationHandler(toWrap) instanceof CircuitBreakerInvocationHandler ||
+                    	Proxy.getInvocationHandler(toWrap) instanceof ReplicaSetInvocationHandler)) {
                 throw new CircuitBreakerWrappingException("Object is already wrapped in a circuit breaker.");
             }
         } catch (IllegalArgumentException ex) {
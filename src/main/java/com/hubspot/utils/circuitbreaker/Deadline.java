@@ -0,0 +1,144 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import com.hubspot.utils.HubSpotObject;
+
+/**
+ * The time by which the work the current thread is doing must be done, typically the end 
+ * of the time budget of the request it is serving. Monitored methods called past their
+ * deadline (or too close to it to complete, see CircuitBreakerExpectedLatency) are rejected 
+ * without reaching the wrapped object, and the wrapped object can read the time remaining.
+ * 
+ * Deadline previous = Deadline.enter(Deadline.after(200, TimeUnit.MILLISECONDS));
+ * try {
+ *     ...
+ * } finally {
+ *     Deadline.restore(previous);
+ * }
+ * 
+ * Entering a deadline later than the thread's current one leaves the current one in place.
+ * Tasks handed to other threads can carry the deadline along with propagate().
+ */
+public final class Deadline extends HubSpotObject {
+
+	private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<Deadline>();
+	
+	// System.nanoTime() at which the deadline passes
+	private final long deadlineNanos;
+	
+	private Deadline(long deadlineNanos) {
+		this.deadlineNanos = deadlineNanos;
+	}
+	
+	/**
+	 * Returns a deadline passing the supplied duration from now
+	 */
+	public static Deadline after(long duration, TimeUnit unit) {
+		return new Deadline(System.nanoTime() + unit.toNanos(duration));
+	}
+	
+	/**
+	 * Gives the supplied deadline to the current thread, unless it already has an earlier one
+	 * 
+	 * @return the deadline the thread had before, to be passed to restore()
+	 */
+	public static Deadline enter(Deadline deadline) {
+		Deadline previous = CURRENT.get();
+		if (previous == null || (deadline != null && deadline.deadlineNanos - previous.deadlineNanos < 0)) {
+			CURRENT.set(deadline);
+		}
+		return previous;
+	}
+	
+	/**
+	 * Restores the deadline the current thread had before entering another one
+	 */
+	public static void restore(Deadline previous) {
+		CURRENT.set(previous);
+	}
+	
+	/**
+	 * Returns the current thread's deadline, or null if it doesn't have one
+	 */
+	public static Deadline current() {
+		return CURRENT.get();
+	}
+	
+	/**
+	 * Returns the time remaining until the deadline passes, negative once it has
+	 */
+	public long remaining(TimeUnit unit) {
+		return unit.convert(remainingNanos(), TimeUnit.NANOSECONDS);
+	}
+	
+	long remainingNanos() {
+		return deadlineNanos - System.nanoTime();
+	}
+	
+	public boolean isExpired() {
+		return remainingNanos() <= 0;
+	}
+	
+	/**
+	 * Wraps the supplied task so that it runs with the current thread's deadline and call priority
+	 */
+	public static Runnable propagate(final Runnable task) {
+		final Deadline deadline = current();
+		final CallPriority priority = CallPriority.current();
+		return new Runnable() {
+			@Override
+			public void run() {
+				Deadline previousDeadline = CURRENT.get();
+				CallPriority previousPriority = CallPriority.enter(priority);
+				CURRENT.set(deadline);
+				try {
+					task.run();
+				} finally {
+					CURRENT.set(previousDeadline);
+					CallPriority.restore(previousPriority);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Wraps the supplied task so that it runs with the current thread's deadline and call priority
+	 */
+	public static <V> Callable<V> propagate(final Callable<V> task) {
+		final Deadline deadline = current();
+		final CallPriority priority = CallPriority.current();
+		return new Callable<V>() {
+			@Override
+			public V call() throws Exception {
+				Deadline previousDeadline = CURRENT.get();
+				CallPriority previousPriority = CallPriority.enter(priority);
+				CURRENT.set(deadline);
+				try {
+					return task.call();
+				} finally {
+					CURRENT.set(previousDeadline);
+					CallPriority.restore(previousPriority);
+				}
+			}
+		};
+	}
+}
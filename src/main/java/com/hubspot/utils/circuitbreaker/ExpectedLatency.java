@@ -0,0 +1,71 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The latency expected of a call to a monitored method: either a fixed value, or a percentile
+ * of the latencies observed so far
+ */
+class ExpectedLatency {
+
+	// samples needed before the observed latency is trusted
+	private static final int MIN_SAMPLES = 100;
+	
+	// samples between refreshes of the observed percentile
+	private static final int REFRESH_SAMPLES = 100;
+	
+	// fixed latency, or -1 to use the observed one
+	private final long fixedNanos;
+	private final double percentile;
+	private final LatencyHistogram latencies;
+	
+	// number of samples at the last refresh; the recording thread that moves it refreshes
+	private final AtomicLong refreshedAt = new AtomicLong();
+	
+	// observed percentile, 0 until enough samples have been seen
+	private volatile long observedNanos;
+	
+	ExpectedLatency(long millis, double percentile) {
+		this.fixedNanos = millis < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(millis);
+		this.percentile = percentile;
+		this.latencies = millis < 0 ? new LatencyHistogram(10000) : null;
+	}
+	
+	void record(long latencyNanos) {
+		if (latencies == null) {
+			return;
+		}
+		latencies.record(latencyNanos);
+		long samples = latencies.getSamples();
+		long last = refreshedAt.get();
+		if (samples >= MIN_SAMPLES && samples - last >= REFRESH_SAMPLES && refreshedAt.compareAndSet(last, samples)) {
+			latencies.decay();
+			observedNanos = latencies.getPercentileNanos(percentile);
+		}
+	}
+	
+	/**
+	 * @return the expected latency, 0 while too few calls have been observed
+	 */
+	long getNanos() {
+		return fixedNanos >= 0 ? fixedNanos : observedNanos;
+	}
+}
@@ -0,0 +1,47 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * A fallback implementation of a monitored method, bound to the object that provides it
+ * at wrap time so that serving it doesn't need any lookups.
+ */
+class Fallback {
+
+	final Object target;
+	final Method method;
+	
+	Fallback(Object target, Method method) {
+		this.target = target;
+		this.method = method;
+	}
+	
+	/**
+	 * Calls the fallback with the arguments of the original call, passing on anything it throws
+	 */
+	Object invoke(Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+}
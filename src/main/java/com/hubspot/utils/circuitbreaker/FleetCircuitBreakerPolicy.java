@@ -0,0 +1,131 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.reflect.Method;
+
+import com.hubspot.utils.HubSpotObject;
+
+/**
+ * CircuitBreakerPolicy that shares the state of a local policy with the other instances of a
+ * service through FleetGossip, and reports itself OPEN while another instance reports the same
+ * breaker OPEN. Calls are then rejected without the local policy having to trip on its own
+ * failures; once no instance reports it OPEN anymore, calls go through and the local policy
+ * decides again. A local policy that tripped itself probes the resource once its own 
+ * timeout passes whatever the other instances report, so that a fleet in which every 
+ * instance is OPEN still recovers.
+ * 
+ * Remote states are only read from memory here: sending and receiving them happens on
+ * FleetGossip's threads.
+ */
+public class FleetCircuitBreakerPolicy extends HubSpotObject implements CircuitBreakerPolicy {
+
+	private final String name;
+	private final CircuitBreakerPolicy local;
+	private final FleetGossip gossip;
+	private final long openTtlMillis;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param name: identifies the breaker across the fleet, e.g. the name of the dependency
+	 * @param local: policy deciding from this instance's own calls
+	 * @param gossip: exchanges breaker states with the other instances
+	 * @param openTtlMillis: how long other instances consider the breaker OPEN after last hearing
+	 * that it is OPEN here, typically a few gossip intervals
+	 */
+	public FleetCircuitBreakerPolicy(String name, CircuitBreakerPolicy local, FleetGossip gossip, long openTtlMillis) throws CircuitBreakerWrappingException {
+		if( name == null || local == null || gossip == null ) {
+			throw new CircuitBreakerWrappingException("Name, local policy and gossip cannot be null.");
+		}
+		
+		if( openTtlMillis <= 0 ) {
+			throw new CircuitBreakerWrappingException("Invalid open time to live.");
+		}
+		
+		this.name = name;
+		this.local = local;
+		this.gossip = gossip;
+		this.openTtlMillis = openTtlMillis;
+	}
+	
+	@Override
+	public void successfulCall(Method m) {
+		CircuitBreakerState before = local.getCurrentState();
+		local.successfulCall(m);
+		published(before);
+	}
+	
+	@Override
+	public void failedBlacklistedCall(Method m) {
+		CircuitBreakerState before = local.getCurrentState();
+		local.failedBlacklistedCall(m);
+		published(before);
+	}
+	
+	/**
+	 * Never while the local policy is CLOSED and another instance reports the breaker OPEN;
+	 * otherwise as the local policy decides if it is OPEN, so that instances that are all OPEN
+	 * still probe the resource once their own timeouts pass, and always if it is only OPEN 
+	 * because of another instance
+	 */
+	@Override
+	public boolean shouldAttemptReset() {
+		CircuitBreakerState before = local.getCurrentState();
+		if( before == CircuitBreakerState.CLOSED ) {
+			return !gossip.isOpenElsewhere(name);
+		}
+		if( before != CircuitBreakerState.OPEN ) {
+			return true;
+		}
+		boolean reset = local.shouldAttemptReset();
+		published(before);
+		return reset;
+	}
+	
+	/**
+	 * Returns OPEN while the local policy is CLOSED and another instance reports the breaker 
+	 * OPEN, otherwise the state of the local policy
+	 */
+	@Override
+	public CircuitBreakerState getCurrentState() {
+		CircuitBreakerState state = local.getCurrentState();
+		if( state == CircuitBreakerState.CLOSED && gossip.isOpenElsewhere(name) ) {
+			return CircuitBreakerState.OPEN;
+		}
+		return state;
+	}
+	
+	/**
+	 * Queues the local state for the other instances if it changed
+	 */
+	private void published(CircuitBreakerState before) {
+		CircuitBreakerState after = local.getCurrentState();
+		if( after != before ) {
+			gossip.publish(name, after, openTtlMillis);
+		}
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public CircuitBreakerPolicy getLocalPolicy() {
+		return local;
+	}
+}
@@ -0,0 +1,406 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hubspot.utils.HubSpotObject;
+import com.hubspot.utils.circuitbreaker.CircuitBreakerPolicy.CircuitBreakerState;
+
+/**
+ * Exchanges the states of named breakers between the instances of a service, so that once
+ * one instance finds a dependency down the others stop calling it within an interval rather
+ * than each tripping on its own failures. Breakers take part through FleetCircuitBreakerPolicy.
+ * 
+ * Local state changes are queued and sent on a background thread every interval, batched
+ * into messages of at most maxDigestsPerMessage breaker states, with at most 
+ * maxMessagesPerInterval messages sent per interval; whatever doesn't fit waits for the next
+ * one. OPEN breakers are sent again every interval for as long as they stay OPEN, which makes
+ * up for lost messages and lets instances that join late learn about them.
+ * 
+ * A breaker is considered open elsewhere while any other instance's latest state for it is 
+ * OPEN and younger than the time to live that instance gave it. Versions are ordered per 
+ * instance, so no clock needs to be shared, and nothing here blocks the calling thread.
+ * States whose time to live has passed are forgotten every interval, so instances that
+ * leave the fleet don't accumulate.
+ */
+public class FleetGossip extends HubSpotObject implements Closeable {
+
+	// identifies the message format, followed by its version
+	private static final short MAGIC = (short) 0xCB60;
+	static final byte FORMAT_VERSION = 1;
+	
+	// the largest UDP payload, which every transport's messages are kept to
+	static final int MAX_MESSAGE_BYTES = 65507;
+	
+	/**
+	 * State of a breaker, as published by an instance
+	 */
+	static final class Digest {
+		final String breaker;
+		final CircuitBreakerState state;
+		final long version;
+		final long ttlMillis;
+		
+		Digest(String breaker, CircuitBreakerState state, long version, long ttlMillis) {
+			this.breaker = breaker;
+			this.state = state;
+			this.version = version;
+			this.ttlMillis = ttlMillis;
+		}
+	}
+	
+	/**
+	 * Latest state of a breaker received from another instance
+	 */
+	private static final class RemoteState {
+		final Digest digest;
+		final long expiresAtNanos;
+		
+		RemoteState(Digest digest, long expiresAtNanos) {
+			this.digest = digest;
+			this.expiresAtNanos = expiresAtNanos;
+		}
+	}
+	
+	private static final CircuitBreakerState[] STATES = CircuitBreakerState.values();
+	
+	private final String nodeId;
+	private final GossipTransport transport;
+	private final int maxDigestsPerMessage;
+	private final int maxMessagesPerInterval;
+	
+	// starts from the clock so that versions keep growing across restarts of this instance
+	private final AtomicLong versions = new AtomicLong(System.currentTimeMillis() * 1000);
+	
+	// latest local state of every breaker, and the breakers whose change hasn't been sent yet
+	private final Map<String, Digest> local = new ConcurrentHashMap<String, Digest>();
+	private final Set<String> pending = ConcurrentHashMap.<String>newKeySet();
+	
+	// breaker name -> instance -> its latest state for the breaker
+	private final Map<String, Map<String, RemoteState>> remote = new ConcurrentHashMap<String, Map<String, RemoteState>>();
+	
+	private final ScheduledExecutorService scheduler;
+	
+	/**
+	 * Constructor; starts the transport, and sends queued states every intervalMillis
+	 * 
+	 * @param nodeId: identifies this instance, must be unique in the fleet
+	 * @param transport: carries messages to and from the other instances
+	 * @param intervalMillis: how often states are sent; 0 to only send on flush()
+	 * @param maxDigestsPerMessage: how many breaker states are batched in a message
+	 * @param maxMessagesPerInterval: how many messages are sent per interval at most
+	 */
+	public FleetGossip(String nodeId, GossipTransport transport, long intervalMillis, int maxDigestsPerMessage, int maxMessagesPerInterval) throws CircuitBreakerWrappingException {
+		if( nodeId == null || transport == null ) {
+			throw new CircuitBreakerWrappingException("Node ID and transport cannot be null.");
+		}
+		
+		if( intervalMillis < 0 || maxDigestsPerMessage <= 0 || maxMessagesPerInterval <= 0 ) {
+			throw new CircuitBreakerWrappingException("Invalid interval or message limits.");
+		}
+		
+		this.nodeId = nodeId;
+		this.transport = transport;
+		this.maxDigestsPerMessage = maxDigestsPerMessage;
+		this.maxMessagesPerInterval = maxMessagesPerInterval;
+		
+		try {
+			transport.start(new GossipTransport.Receiver() {
+				@Override
+				public void received(byte[] message) {
+					FleetGossip.this.received(message);
+				}
+			});
+		} catch (IOException e) {
+			throw new CircuitBreakerWrappingException("Cannot start gossip transport: " + e.getMessage());
+		}
+		
+		if( intervalMillis > 0 ) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "circuit-breaker-gossip");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		} else {
+			scheduler = null;
+		}
+	}
+	
+	/**
+	 * Queues the new local state of a breaker to be sent to the other instances
+	 * 
+	 * @param ttlMillis: how long other instances should consider the breaker OPEN without
+	 * hearing from us again
+	 */
+	void publish(String breaker, CircuitBreakerState state, long ttlMillis) {
+		local.put(breaker, new Digest(breaker, state, versions.incrementAndGet(), ttlMillis));
+		pending.add(breaker);
+	}
+	
+	/**
+	 * Returns whether another instance currently reports the breaker OPEN
+	 */
+	public boolean isOpenElsewhere(String breaker) {
+		Map<String, RemoteState> states = remote.get(breaker);
+		if( states == null ) {
+			return false;
+		}
+		
+		long now = System.nanoTime();
+		for( RemoteState state : states.values() ) {
+			if( state.digest.state == CircuitBreakerState.OPEN && now - state.expiresAtNanos < 0 ) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Sends the queued states, then the OPEN ones, within the per-interval message limit, 
+	 * and forgets remote states whose time to live has passed. Called on the background 
+	 * thread every interval.
+	 */
+	public synchronized void flush() {
+		expireRemoteStates();
+		
+		List<Digest> digests = new ArrayList<Digest>();
+		Set<String> queued = new HashSet<String>();
+		int capacity = maxDigestsPerMessage * maxMessagesPerInterval;
+		
+		for( String breaker : pending ) {
+			if( digests.size() == capacity ) {
+				break;
+			}
+			digests.add(local.get(breaker));
+			queued.add(breaker);
+		}
+		for( Digest digest : local.values() ) {
+			if( digests.size() == capacity ) {
+				break;
+			}
+			if( digest.state == CircuitBreakerState.OPEN && !queued.contains(digest.breaker) ) {
+				digests.add(digest);
+			}
+		}
+		
+		int headerBytes = 2 + 1 + 2 + utfLength(nodeId) + 2;
+		int from = 0;
+		for( int messages = 0; messages < maxMessagesPerInterval && from < digests.size(); messages++ ) {
+			// as many digests as fit in a message
+			int to = from;
+			int bytes = headerBytes;
+			while( to < digests.size() && to - from < maxDigestsPerMessage && 
+					bytes + encodedLength(digests.get(to)) <= MAX_MESSAGE_BYTES ) {
+				bytes += encodedLength(digests.get(to));
+				to++;
+			}
+			if( to == from ) {
+				// can never be sent, don't let it hold up the others
+				Digest digest = digests.get(from);
+				getLog().error("Dropping gossip about breaker "+digest.breaker+", which doesn't fit in a message");
+				sent(digest);
+				from++;
+				continue;
+			}
+			
+			try {
+				transport.send(encode(nodeId, digests.subList(from, to)));
+			} catch( IOException e ) {
+				// left queued for the next interval
+				getLog().error("Error while sending gossip", e);
+				return;
+			}
+			for( int i = from; i < to; i++ ) {
+				sent(digests.get(i));
+			}
+			from = to;
+		}
+	}
+	
+	/**
+	 * Dequeues a breaker whose state was sent, unless it changed again meanwhile
+	 */
+	private void sent(Digest digest) {
+		if( local.get(digest.breaker) == digest ) {
+			pending.remove(digest.breaker);
+		}
+	}
+	
+	/**
+	 * Forgets the remote states we haven't heard again within their time to live; OPEN ones
+	 * are sent every interval, so this only drops those of instances that are gone or have 
+	 * stopped reporting the breaker OPEN
+	 */
+	private void expireRemoteStates() {
+		long now = System.nanoTime();
+		for( Map<String, RemoteState> states : remote.values() ) {
+			for( Map.Entry<String, RemoteState> entry : states.entrySet() ) {
+				if( now - entry.getValue().expiresAtNanos >= 0 ) {
+					states.remove(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of remote states held, for all breakers and instances
+	 */
+	int getRemoteStateCount() {
+		int count = 0;
+		for( Map<String, RemoteState> states : remote.values() ) {
+			count += states.size();
+		}
+		return count;
+	}
+	
+	private static int encodedLength(Digest digest) {
+		return 2 + utfLength(digest.breaker) + 1 + 8 + 4;
+	}
+	
+	/**
+	 * Returns the number of bytes writeUTF() encodes a string to, not counting its length
+	 */
+	private static int utfLength(String s) {
+		int length = 0;
+		for( int i = 0; i < s.length(); i++ ) {
+			char c = s.charAt(i);
+			if( c >= 0x0001 && c <= 0x007F ) {
+				length++;
+			} else if( c <= 0x07FF ) {
+				length += 2;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+	
+	/**
+	 * Merges the states in a message from another instance, keeping the latest version of 
+	 * each breaker per instance
+	 */
+	void received(byte[] message) {
+		String origin;
+		List<Digest> digests;
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(message));
+			if( in.readShort() != MAGIC ) {
+				getLog().warn("Ignoring message that isn't gossip");
+				return;
+			}
+			byte version = in.readByte();
+			if( version != FORMAT_VERSION ) {
+				getLog().warn("Ignoring gossip in unknown format version "+version);
+				return;
+			}
+			origin = in.readUTF();
+			int count = in.readUnsignedShort();
+			digests = new ArrayList<Digest>(count);
+			for( int i = 0; i < count; i++ ) {
+				String breaker = in.readUTF();
+				int state = in.readUnsignedByte();
+				if( state >= STATES.length ) {
+					throw new IOException("Invalid state " + state);
+				}
+				digests.add(new Digest(breaker, STATES[state], in.readLong(), in.readInt()));
+			}
+		} catch( IOException e ) {
+			getLog().warn("Ignoring malformed gossip", e);
+			return;
+		}
+		
+		if( origin.equals(nodeId) ) {
+			return;
+		}
+		
+		long now = System.nanoTime();
+		for( Digest digest : digests ) {
+			Map<String, RemoteState> states = remote.get(digest.breaker);
+			if( states == null ) {
+				remote.putIfAbsent(digest.breaker, new ConcurrentHashMap<String, RemoteState>());
+				states = remote.get(digest.breaker);
+			}
+			
+			RemoteState update = new RemoteState(digest, now + TimeUnit.MILLISECONDS.toNanos(digest.ttlMillis));
+			while( true ) {
+				RemoteState current = states.putIfAbsent(origin, update);
+				if( current == null || current.digest.version > digest.version || states.replace(origin, current, update) ) {
+					break;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Encodes a message: magic, format version, origin, then each digest's breaker name,
+	 * state, version and time to live
+	 */
+	static byte[] encode(String origin, List<Digest> digests) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeShort(MAGIC);
+		out.writeByte(FORMAT_VERSION);
+		out.writeUTF(origin);
+		out.writeShort(digests.size());
+		for( Digest digest : digests ) {
+			out.writeUTF(digest.breaker);
+			out.writeByte(digest.state.ordinal());
+			out.writeLong(digest.version);
+			out.writeInt((int) Math.min(Integer.MAX_VALUE, digest.ttlMillis));
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Stops sending states and closes the transport
+	 */
+	@Override
+	public void close() throws IOException {
+		if( scheduler != null ) {
+			scheduler.shutdownNow();
+		}
+		transport.close();
+	}
+}
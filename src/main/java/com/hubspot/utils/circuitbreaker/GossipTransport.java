@@ -0,0 +1,47 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Carries the messages FleetGossip exchanges between the instances of a service. Messages
+ * are opaque byte arrays that may be lost, duplicated or reordered; implementations only
+ * need to make a best effort to deliver each one to every other instance.
+ */
+public interface GossipTransport extends Closeable {
+
+	/**
+	 * Receives the messages sent by other instances
+	 */
+	interface Receiver {
+		void received(byte[] message);
+	}
+	
+	/**
+	 * Starts delivering messages from other instances to the supplied receiver, from a
+	 * thread of the transport's own
+	 */
+	void start(Receiver receiver) throws IOException;
+	
+	/**
+	 * Sends a message to the other instances
+	 */
+	void send(byte[] message) throws IOException;
+}
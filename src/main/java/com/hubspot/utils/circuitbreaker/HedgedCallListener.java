@@ -0,0 +1,37 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.reflect.Method;
+
+/**
+ * Interface implemented by policies that want to hear about hedged calls. The outcome of a
+ * duplicate call is reported here; only the outcome of the call as a whole, which is that of
+ * whichever attempt decided it, goes through successfulCall() or failedBlacklistedCall(), so 
+ * that duplicate calls don't distort the failure rate the policy sees.
+ */
+public interface HedgedCallListener {
+
+	/**
+	 * Invoked when a hedged call to a wrapped method completes
+	 * 
+	 * @param failed: true if the hedged call threw a blacklisted exception or returned a failed result
+	 */
+	void hedgedCall(Method m, boolean failed);
+	
+}
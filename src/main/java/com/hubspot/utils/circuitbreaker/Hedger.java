@@ -0,0 +1,244 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes calls to a hedged method on an executor, issuing a duplicate call when the first one
+ * is slow and returning whichever completes first.
+ */
+class Hedger {
+
+	// samples needed before the observed latency is trusted for the hedge delay
+	private static final int MIN_SAMPLES = 100;
+	
+	/**
+	 * One of the attempts at a hedged call
+	 */
+	static final class Attempt {
+		// false for the first attempt
+		final boolean hedge;
+		
+		// set when the attempt is cancelled because the other one completed first
+		volatile boolean abandoned;
+		
+		// the outcome of the attempt, once it has completed
+		boolean completed;
+		boolean failed;
+		boolean returned;
+		long latencyNanos;
+		
+		Attempt(boolean hedge) {
+			this.hedge = hedge;
+		}
+		
+		void completed(boolean failed, boolean returned, long latencyNanos) {
+			this.failed = failed;
+			this.returned = returned;
+			this.latencyNanos = latencyNanos;
+			this.completed = true;
+		}
+	}
+	
+	/**
+	 * The attempts making up a hedged call
+	 */
+	interface Attempts {
+		
+		/**
+		 * Carries out an attempt at the call
+		 */
+		Object attempt(Attempt attempt) throws Throwable;
+		
+		/**
+		 * @return whether a hedged attempt may be made
+		 */
+		boolean admitHedge();
+		
+		/**
+		 * Records the outcome of the attempt whose outcome is that of the call; invoked exactly
+		 * once per call, after that attempt has completed
+		 */
+		void decided(Attempt attempt);
+	}
+	
+	private final Executor executor;
+	private final long delayNanos;
+	private final double percentile;
+	private final LatencyHistogram latencies = new LatencyHistogram(10000);
+	
+	final RetryBudget budget;
+	
+	Hedger(CircuitBreakerHedge annotation, Executor executor, RetryBudget budget) {
+		this.executor = executor;
+		this.delayNanos = annotation.delayMillis() < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(annotation.delayMillis());
+		this.percentile = annotation.percentile();
+		this.budget = budget;
+	}
+	
+	/**
+	 * @return how long to wait for the first attempt before hedging, or -1 not to hedge
+	 */
+	long getDelayNanos() {
+		if (delayNanos >= 0) {
+			return delayNanos;
+		}
+		if (latencies.getSamples() < MIN_SAMPLES) {
+			return -1;
+		}
+		return latencies.getPercentileNanos(percentile);
+	}
+	
+	/**
+	 * Carries out the call, hedging it if the first attempt doesn't complete in time
+	 * 
+	 * @return the value returned by the first attempt to succeed
+	 * @throws Throwable what the last attempt to complete threw, if none succeeded
+	 */
+	Object execute(final Attempts attempts) throws Throwable {
+		CompletionService<Object> completion = new ExecutorCompletionService<Object>(executor);
+		Attempt primaryAttempt = new Attempt(false);
+		Attempt hedgeAttempt = new Attempt(true);
+		Future<Object> primary = completion.submit(task(attempts, primaryAttempt));
+		
+		Future<Object> hedge = null;
+		long delay = getDelayNanos();
+		Future<Object> first = null;
+		if (delay >= 0) {
+			try {
+				first = completion.poll(delay, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				// don't hedge, just wait for the first attempt
+				Thread.currentThread().interrupt();
+				delay = -1;
+			}
+			if (first == null && delay >= 0 && attempts.admitHedge()) {
+				hedge = completion.submit(task(attempts, hedgeAttempt));
+			}
+		}
+		if (first == null) {
+			first = takeUninterruptibly(completion);
+		}
+		
+		if (hedge == null) {
+			return decide(attempts, primaryAttempt, first);
+		}
+		
+		Future<Object> other = first == primary ? hedge : primary;
+		Attempt firstAttempt = first == primary ? primaryAttempt : hedgeAttempt;
+		Attempt otherAttempt = first == primary ? hedgeAttempt : primaryAttempt;
+		Object ret;
+		try {
+			ret = outcome(first);
+		} catch (Throwable t) {
+			// the first attempt to complete failed, the other one may still succeed
+			return decide(attempts, otherAttempt, takeUninterruptibly(completion));
+		}
+		otherAttempt.abandoned = true;
+		other.cancel(true);
+		attempts.decided(firstAttempt);
+		return ret;
+	}
+	
+	/**
+	 * Returns or throws the outcome of an attempt, which is the outcome of the call
+	 */
+	private static Object decide(Attempts attempts, Attempt attempt, Future<Object> future) throws Throwable {
+		try {
+			return outcome(future);
+		} finally {
+			attempts.decided(attempt);
+		}
+	}
+	
+	/**
+	 * Creates the task carrying out an attempt, which runs with the caller's deadline and priority
+	 */
+	private Callable<Object> task(final Attempts attempts, final Attempt attempt) {
+		return Deadline.propagate(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				long start = System.nanoTime();
+				try {
+					return attempts.attempt(attempt);
+				} catch (Exception e) {
+					throw e;
+				} catch (Error e) {
+					throw e;
+				} catch (Throwable t) {
+					throw new UndeclaredThrowableException(t);
+				} finally {
+					if (!attempt.abandoned) {
+						latencies.record(System.nanoTime() - start);
+						latencies.decay();
+					}
+				}
+			}
+		});
+	}
+	
+	private static Object outcome(Future<Object> future) throws Throwable {
+		try {
+			return getUninterruptibly(future);
+		} catch (ExecutionException e) {
+			throw e.getCause();
+		}
+	}
+	
+	private static Object getUninterruptibly(Future<Object> future) throws ExecutionException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	private static Future<Object> takeUninterruptibly(CompletionService<Object> completion) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return completion.take();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
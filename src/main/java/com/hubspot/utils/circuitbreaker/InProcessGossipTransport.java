@@ -0,0 +1,62 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * GossipTransport connecting instances within a single JVM, for tests. Messages sent by a
+ * transport are delivered synchronously to every other transport started on the same Network.
+ */
+public class InProcessGossipTransport implements GossipTransport {
+
+	/**
+	 * The set of transports that can reach each other
+	 */
+	public static class Network {
+		private final List<InProcessGossipTransport> members = new CopyOnWriteArrayList<InProcessGossipTransport>();
+	}
+	
+	private final Network network;
+	private volatile Receiver receiver;
+	
+	public InProcessGossipTransport(Network network) {
+		this.network = network;
+	}
+	
+	@Override
+	public void start(Receiver receiver) {
+		this.receiver = receiver;
+		network.members.add(this);
+	}
+	
+	@Override
+	public void send(byte[] message) {
+		for( InProcessGossipTransport member : network.members ) {
+			if( member != this ) {
+				member.receiver.received(message.clone());
+			}
+		}
+	}
+	
+	@Override
+	public void close() {
+		network.members.remove(this);
+	}
+}
@@ -0,0 +1,30 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+/**
+ * A call to a monitored method that can be carried out later, or more than once, by the
+ * invocation handler's call-shaping features (coalescing, retries, ...).
+ */
+interface Invocation {
+
+	/**
+	 * Carries out the call, returning its result or throwing what it threw
+	 */
+	Object proceed() throws Throwable;
+}
@@ -0,0 +1,124 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Approximate histogram of call latencies, from which percentiles can be read.
+ * 
+ * Latencies are counted in microseconds, in buckets that keep three significant bits of the
+ * value (so a percentile is off by at most 12.5%). Recording a sample only touches its bucket
+ * and a striped sample count; counts are halved by decay() once decaySamples samples have been
+ * recorded since the last halving, which keeps percentiles following recent latencies as long
+ * as the owner of the histogram calls it from somewhere off the call path.
+ */
+class LatencyHistogram {
+
+	// bucket for every power of two up to 2^62 microseconds, with 8 sub-buckets each
+	private static final int BUCKETS = 61 * 8;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder samples = new LongAdder();
+	private final int decaySamples;
+	
+	// number of samples recorded at the last halving
+	private final AtomicLong decayedAt = new AtomicLong();
+	
+	LatencyHistogram(int decaySamples) {
+		this.decaySamples = decaySamples;
+	}
+	
+	void record(long latencyNanos) {
+		counts.incrementAndGet(bucketOf(TimeUnit.NANOSECONDS.toMicros(Math.max(0, latencyNanos))));
+		samples.increment();
+	}
+	
+	/**
+	 * Halves the counts if decaySamples samples were recorded since they were last halved. 
+	 * Concurrent callers halve them once; concurrent samples may be counted before or after 
+	 * halving, which doesn't matter.
+	 */
+	void decay() {
+		long recorded = samples.sum();
+		long last = decayedAt.get();
+		if (recorded - last < decaySamples || !decayedAt.compareAndSet(last, recorded)) {
+			return;
+		}
+		for (int i = 0; i < BUCKETS; i++) {
+			long count;
+			do {
+				count = counts.get(i);
+			} while (count != 0 && !counts.compareAndSet(i, count, count / 2));
+		}
+	}
+	
+	/**
+	 * @return the number of samples recorded since the histogram was created
+	 */
+	long getSamples() {
+		return samples.sum();
+	}
+	
+	/**
+	 * @param percentile: between 0.0 and 1.0
+	 * @return the upper bound of the latency below which the supplied fraction of the counted 
+	 * samples fall, or 0 if no samples are counted
+	 */
+	long getPercentileNanos(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		
+		long target = (long) Math.ceil(percentile * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= Math.max(target, 1)) {
+				return TimeUnit.MICROSECONDS.toNanos(lowerBound(i + 1));
+			}
+		}
+		return TimeUnit.MICROSECONDS.toNanos(lowerBound(BUCKETS));
+	}
+	
+	static int bucketOf(long micros) {
+		if (micros < 8) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int subBucket = (int) ((micros >>> (exponent - 3)) & 7);
+		return Math.min(BUCKETS - 1, (exponent - 2) * 8 + subBucket);
+	}
+	
+	static long lowerBound(int bucket) {
+		if (bucket < 8) {
+			return bucket;
+		}
+		int exponent = bucket / 8 + 2;
+		return (8L + bucket % 8) << (exponent - 3);
+	}
+}
@@ -0,0 +1,101 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+
+import sun.misc.Unsafe;
+
+/**
+ * Atomic operations on the longs of a memory-mapped buffer, so that several processes mapping 
+ * the same file can update it without locks. Java 8 has no public API for atomics on a 
+ * buffer, so this goes through sun.misc.Unsafe on the buffer's address; javac warns that 
+ * Unsafe is internal proprietary API, a warning it offers no way to suppress (the annotation
+ * covers IDEs) and that is expected here. Offsets must be multiples of 8.
+ */
+@SuppressWarnings("restriction")
+class MappedAtomics {
+
+	// null if this JVM doesn't let us have it
+	private static final Unsafe UNSAFE;
+	
+	// offset of the address field within a Buffer
+	private static final long ADDRESS_OFFSET;
+	
+	static {
+		Unsafe unsafe = null;
+		long addressOffset = -1;
+		try {
+			Field field = Unsafe.class.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = (Unsafe) field.get(null);
+			addressOffset = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+		} catch (Exception e) {
+			unsafe = null;
+		}
+		UNSAFE = unsafe;
+		ADDRESS_OFFSET = addressOffset;
+	}
+	
+	// keeps the mapping alive as long as we use its address
+	private final MappedByteBuffer buffer;
+	private final long address;
+	private final int capacity;
+	
+	MappedAtomics(MappedByteBuffer buffer) throws CircuitBreakerWrappingException {
+		if (UNSAFE == null) {
+			throw new CircuitBreakerWrappingException("Atomic operations on mapped files aren't supported by this JVM");
+		}
+		this.buffer = buffer;
+		this.address = UNSAFE.getLong(buffer, ADDRESS_OFFSET);
+		this.capacity = buffer.capacity();
+	}
+	
+	long get(int offset) {
+		return UNSAFE.getLongVolatile(null, addressOf(offset));
+	}
+	
+	void set(int offset, long value) {
+		UNSAFE.putLongVolatile(null, addressOf(offset), value);
+	}
+	
+	boolean compareAndSet(int offset, long expect, long update) {
+		return UNSAFE.compareAndSwapLong(null, addressOf(offset), expect, update);
+	}
+	
+	/**
+	 * Keeps the reads before this from being reordered with the reads after it, e.g. so that
+	 * reading a word again after reading what it guards tells whether that changed meanwhile
+	 */
+	void loadFence() {
+		UNSAFE.loadFence();
+	}
+	
+	private long addressOf(int offset) {
+		if (offset < 0 || offset > capacity - 8 || (offset & 7) != 0) {
+			throw new IndexOutOfBoundsException("Invalid offset " + offset);
+		}
+		return address + offset;
+	}
+	
+	MappedByteBuffer getBuffer() {
+		return buffer;
+	}
+}
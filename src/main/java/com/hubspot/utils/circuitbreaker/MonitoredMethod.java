@@ -0,0 +1,107 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.reflect.Method;
+
+import org.apache.commons.lang.ArrayUtils;
+
+/**
+ * Everything the invocation handler needs to know about a monitored method, resolved
+ * once at wrap time so that nothing has to be looked up per call.
+ * 
+ * The optional parts are filled in by the CircuitBreakerWrapper before the handler is 
+ * created, and never modified afterwards.
+ */
+class MonitoredMethod {
+
+	private static final CircuitBreakerGate[] NO_GATES = new CircuitBreakerGate[0];
+	
+	final Method method;
+	
+	// exception types that may trip the breaker
+	final Class[] blacklist;
+	
+	// gates consulted, in order, before each call
+	CircuitBreakerGate[] gates = NO_GATES;
+	
+	// decides whether a returned value counts as a failure, null if none do
+	ResultClassifier<Object> resultClassifier;
+	
+	// served instead of the method when a call is rejected or fails, null if there is none
+	Fallback fallback;
+	
+	// last known good values served when a call is rejected or fails, null if there are none
+	ResponseCache responseCache;
+	
+	// coalesces concurrent calls with equal arguments, null if they aren't coalesced
+	SingleFlight singleFlight;
+	
+	// collects calls into bulk calls, null if the method isn't batched
+	Batcher batcher;
+	
+	// retries failed calls, null if the method isn't retried
+	Retrier retrier;
+	
+	// hedges slow calls, null if the method isn't hedged
+	Hedger hedger;
+	
+	// breaker state per key, null if the method isn't partitioned
+	PartitionedBreaker partitions;
+	
+	// derives the key of a call to a partitioned method
+	PartitionKeyExtractor partitionKeyExtractor;
+	
+	// priority of calls made by threads that haven't entered one
+	CallPriority priority = CallPriority.NORMAL;
+	
+	// latency expected of a call, checked against the caller's deadline; null if unknown
+	ExpectedLatency expectedLatency;
+	
+	// records the outcome of calls, null if they aren't recorded
+	CallRecorder recorder;
+	
+	// ID of the method in the recorder's recording
+	int recordId;
+	
+	MonitoredMethod(Method method, Class[] blacklist) {
+		this.method = method;
+		this.blacklist = blacklist;
+	}
+	
+	/**
+	 * Returns true if the supplied exception thrown by the method may trip the breaker
+	 */
+	boolean isBlacklisted(Throwable t) {
+		return ArrayUtils.contains(blacklist, t.getClass());
+	}
+	
+	/**
+	 * Returns true if the supplied value returned by the method counts as a failure
+	 */
+	boolean isFailedResult(Object result) {
+		return resultClassifier != null && resultClassifier.isFailure(result);
+	}
+	
+	/**
+	 * Returns the key whose breaker state governs a call to a partitioned method
+	 */
+	Object partitionKey(Object[] args) {
+		return partitionKeyExtractor.getKey(args);
+	}
+}
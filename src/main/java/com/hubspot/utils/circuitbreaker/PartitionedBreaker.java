@@ -0,0 +1,338 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import com.hubspot.utils.HubSpotObject;
+import com.hubspot.utils.circuitbreaker.CircuitBreakerPolicy.CircuitBreakerState;
+
+/**
+ * Breaker state kept separately for every key of a partitioned method.
+ * 
+ * To track tens of thousands of keys, the state of a key is packed into a single long 
+ * updated by CAS: two bits of CircuitBreakerState, a 22 bit failure count and 40 bits of
+ * milliseconds holding the start of the current failure window (CLOSED) or the time the 
+ * key last tripped or was probed (OPEN, HALF_OPEN). With the time it was last called, a 
+ * key costs about 24 bytes plus its map entry. Failures are counted over fixed windows 
+ * rather than the sliding window of BaseCircuitBreakerPolicyImpl.
+ * 
+ * Once more than maxKeys keys are tracked, or every idle period, keys that haven't been
+ * called for idleSeconds are dropped, followed by the least recently called ones if there
+ * are still too many, CLOSED ones first. Dropping a key resets it to CLOSED, so a key that 
+ * is OPEN is never dropped before its half open timeout has elapsed, even if that leaves 
+ * more than maxKeys keys. The sweep runs on a shared background thread, not on the calling
+ * thread that found too many keys.
+ * 
+ * The state of a key changes without any StateChange notification: there may be tens of 
+ * thousands of them, and handlers of the breaker's policy are only told about the breaker.
+ */
+public class PartitionedBreaker extends HubSpotObject {
+
+	private static final int STATE_SHIFT = 62;
+	private static final int COUNT_SHIFT = 40;
+	private static final long COUNT_MASK = (1L << 22) - 1;
+	private static final long TIME_MASK = (1L << 40) - 1;
+	
+	// stands in for null keys, which our map can't hold
+	private static final Object NULL_KEY = new Object();
+	
+	private static final CircuitBreakerState[] STATES = CircuitBreakerState.values();
+	
+	static final class Partition {
+		private static final AtomicLongFieldUpdater<Partition> WORD = AtomicLongFieldUpdater.newUpdater(Partition.class, "word");
+		
+		volatile long word;
+		volatile int lastAccessSeconds;
+		
+		boolean compareAndSet(long expect, long update) {
+			return WORD.compareAndSet(this, expect, update);
+		}
+	}
+	
+	private final int tripThreshold;
+	private final long thresholdWindowMillis;
+	private final long halfOpenTimeoutMillis;
+	private final int maxKeys;
+	private final int idleSeconds;
+	
+	// sweeps the keys of all partitioned breakers
+	private static final ExecutorService SWEEPER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "circuit-breaker-partition-sweeper");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	
+	private final ConcurrentHashMap<Object, Partition> partitions = new ConcurrentHashMap<Object, Partition>();
+	private final AtomicBoolean sweepScheduled = new AtomicBoolean();
+	
+	// times are kept relative to when we were created
+	private final long baseNanos = System.nanoTime();
+	private volatile int lastSweepSeconds;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param tripThreshold: failures per thresholdWindow that move a key to OPEN
+	 * @param thresholdWindow: interval in seconds over which failures are counted
+	 * @param halfOpenTimeout: interval in seconds after which a tripped key moves to HALF_OPEN
+	 * @param maxKeys: number of keys tracked
+	 * @param idleSeconds: keys not called for this long are forgotten
+	 * 
+	 * @throws CircuitBreakerWrappingException
+	 */
+	public PartitionedBreaker(int tripThreshold, int thresholdWindow, int halfOpenTimeout, int maxKeys, int idleSeconds) throws CircuitBreakerWrappingException {
+		if( tripThreshold <= 0 || tripThreshold > COUNT_MASK ) {
+			throw new CircuitBreakerWrappingException("Invalid trip threshold.");
+		}
+		
+		if( thresholdWindow <= 0 || halfOpenTimeout <= 0 ) {
+			throw new CircuitBreakerWrappingException("Invalid threshold window or half open timeout.");
+		}
+		
+		if( maxKeys <= 0 || idleSeconds <= 0 ) {
+			throw new CircuitBreakerWrappingException("Invalid maximum number of keys or idle period.");
+		}
+		
+		this.tripThreshold = tripThreshold;
+		this.thresholdWindowMillis = thresholdWindow * 1000L;
+		this.halfOpenTimeoutMillis = halfOpenTimeout * 1000L;
+		this.maxKeys = maxKeys;
+		this.idleSeconds = idleSeconds;
+	}
+	
+	/**
+	 * Decides whether a call for the supplied key may proceed, moving the key from OPEN
+	 * to HALF_OPEN once its half open timeout has elapsed
+	 */
+	public boolean admit(Object key) {
+		Partition partition = partitionFor(key);
+		long now = nowMillis();
+		while (true) {
+			long word = partition.word;
+			CircuitBreakerState state = stateOf(word);
+			if (state != CircuitBreakerState.OPEN) {
+				return true;
+			}
+			if (now - timeOf(word) < halfOpenTimeoutMillis) {
+				return false;
+			}
+			if (partition.compareAndSet(word, pack(CircuitBreakerState.HALF_OPEN, 0, now))) {
+				getLog().info("Circuit breaker for " + key + " moving to HALF_OPEN");
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Records a successful call for the supplied key, closing it if it was HALF_OPEN
+	 */
+	public void successfulCall(Object key) {
+		Partition partition = partitionFor(key);
+		while (true) {
+			long word = partition.word;
+			if (stateOf(word) != CircuitBreakerState.HALF_OPEN ||
+					partition.compareAndSet(word, pack(CircuitBreakerState.CLOSED, 0, nowMillis()))) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Records a failed call for the supplied key, tripping it if it has failed too often or
+	 * was HALF_OPEN
+	 */
+	public void failedCall(Object key) {
+		Partition partition = partitionFor(key);
+		long now = nowMillis();
+		while (true) {
+			long word = partition.word;
+			CircuitBreakerState state = stateOf(word);
+			long update;
+			if (state == CircuitBreakerState.OPEN) {
+				return;
+			} else if (state == CircuitBreakerState.HALF_OPEN) {
+				update = pack(CircuitBreakerState.OPEN, 0, now);
+			} else {
+				long windowStart = timeOf(word);
+				long failures = countOf(word);
+				if (now - windowStart >= thresholdWindowMillis) {
+					windowStart = now;
+					failures = 0;
+				}
+				failures++;
+				update = failures >= tripThreshold ?
+						pack(CircuitBreakerState.OPEN, 0, now) :
+						pack(CircuitBreakerState.CLOSED, failures, windowStart);
+			}
+			if (partition.compareAndSet(word, update)) {
+				if (stateOf(update) == CircuitBreakerState.OPEN) {
+					getLog().info("Circuit breaker for " + key + " moving to OPEN from " + state);
+				}
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the state of the supplied key; keys we don't track are CLOSED
+	 */
+	public CircuitBreakerState getState(Object key) {
+		Partition partition = partitions.get(key == null ? NULL_KEY : key);
+		return partition == null ? CircuitBreakerState.CLOSED : stateOf(partition.word);
+	}
+	
+	/**
+	 * Returns the number of keys currently tracked
+	 */
+	public int size() {
+		return partitions.size();
+	}
+	
+	private Partition partitionFor(Object key) {
+		Object mapKey = key == null ? NULL_KEY : key;
+		int nowSeconds = (int) (nowMillis() / 1000);
+		Partition partition = partitions.get(mapKey);
+		if (partition == null) {
+			Partition created = new Partition();
+			created.word = pack(CircuitBreakerState.CLOSED, 0, nowMillis());
+			partition = partitions.putIfAbsent(mapKey, created);
+			if (partition == null) {
+				partition = created;
+				if ((partitions.size() > maxKeys || nowSeconds - lastSweepSeconds >= idleSeconds) && 
+						sweepScheduled.compareAndSet(false, true)) {
+					scheduleSweep();
+				}
+			}
+		}
+		if (partition.lastAccessSeconds != nowSeconds) {
+			partition.lastAccessSeconds = nowSeconds;
+		}
+		return partition;
+	}
+	
+	private void scheduleSweep() {
+		try {
+			SWEEPER.execute(new Runnable() {
+				@Override
+				public void run() {
+					// keys added from now on may call for another sweep
+					sweepScheduled.set(false);
+					try {
+						evict();
+					} catch (RuntimeException e) {
+						getLog().error("Error while sweeping partitioned circuit breaker keys", e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			sweepScheduled.set(false);
+		}
+	}
+	
+	/**
+	 * Drops idle keys and, if we still track too many, trims them to 90% of maxKeys by 
+	 * dropping the least recently called ones, CLOSED ones first. Keys that are OPEN and 
+	 * haven't reached their half open timeout are kept.
+	 */
+	private synchronized void evict() {
+		long nowMillis = nowMillis();
+		int nowSeconds = (int) (nowMillis / 1000);
+		lastSweepSeconds = nowSeconds;
+		
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		for (Map.Entry<Object, Partition> e : partitions.entrySet()) {
+			long word = e.getValue().word;
+			if (stateOf(word) == CircuitBreakerState.OPEN && nowMillis - timeOf(word) < halfOpenTimeoutMillis) {
+				continue;
+			}
+			if (nowSeconds - e.getValue().lastAccessSeconds >= idleSeconds) {
+				partitions.remove(e.getKey(), e.getValue());
+			} else {
+				candidates.add(new Candidate(e.getKey(), e.getValue(), stateOf(word) == CircuitBreakerState.CLOSED));
+			}
+		}
+		if (partitions.size() <= maxKeys) {
+			return;
+		}
+		
+		Collections.sort(candidates, new Comparator<Candidate>() {
+			@Override
+			public int compare(Candidate a, Candidate b) {
+				if (a.closed != b.closed) {
+					return a.closed ? -1 : 1;
+				}
+				return a.lastAccessSeconds - b.lastAccessSeconds;
+			}
+		});
+		for (int i = 0; i < candidates.size() && partitions.size() > maxKeys * 0.9; i++) {
+			partitions.remove(candidates.get(i).key, candidates.get(i).partition);
+		}
+	}
+	
+	/**
+	 * A key that may be dropped, with what it is ordered by as of the start of the sweep
+	 */
+	private static final class Candidate {
+		final Object key;
+		final Partition partition;
+		final boolean closed;
+		final int lastAccessSeconds;
+		
+		Candidate(Object key, Partition partition, boolean closed) {
+			this.key = key;
+			this.partition = partition;
+			this.closed = closed;
+			this.lastAccessSeconds = partition.lastAccessSeconds;
+		}
+	}
+	
+	private long nowMillis() {
+		return (System.nanoTime() - baseNanos) / 1000000L;
+	}
+	
+	static long pack(CircuitBreakerState state, long count, long millis) {
+		return ((long) state.ordinal() << STATE_SHIFT) | ((count & COUNT_MASK) << COUNT_SHIFT) | (millis & TIME_MASK);
+	}
+	
+	static CircuitBreakerState stateOf(long word) {
+		return STATES[(int) (word >>> STATE_SHIFT)];
+	}
+	
+	static long countOf(long word) {
+		return (word >>> COUNT_SHIFT) & COUNT_MASK;
+	}
+	
+	static long timeOf(long word) {
+		return word & TIME_MASK;
+	}
+}
@@ -0,0 +1,36 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.reflect.Method;
+
+/**
+ * A gate that takes the priority of a call into account, reserving some of its capacity for 
+ * higher priorities and turning lower ones away first. The CircuitBreakerInvocationHandler
+ * calls admit(Method, CallPriority) instead of admit(Method) on such gates.
+ */
+public interface PriorityAwareGate extends CircuitBreakerGate {
+
+	/**
+	 * Invoked before a monitored method is called, like admit(Method).
+	 * 
+	 * @param priority: the priority of the call
+	 */
+	boolean admit(Method m, CallPriority priority);
+	
+}
@@ -0,0 +1,29 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+/**
+ * Why a call to a monitored method was turned away without reaching the wrapped object.
+ */
+public enum RejectionReason {
+	BREAKER_OPEN,   // the breaker is OPEN and it isn't time to attempt a reset yet
+	SLOW_START,     // the breaker recently closed and traffic is still being ramped up
+	RATE_LIMITED,   // a rate limiter ran out of permits
+	CONCURRENCY_LIMITED, // too many calls were already in flight
+	DEADLINE_EXCEEDED    // the caller's deadline would pass before the call could complete
+}
@@ -0,0 +1,175 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.hubspot.utils.HubSpotObject;
+import com.hubspot.utils.circuitbreaker.CircuitBreakerPolicy.CircuitBreakerState;
+
+/**
+ * Handler for a set of identical replicas, each guarded by its own breaker, that routes 
+ * every call to one of them.
+ * 
+ * Calls go to the replica with fewer calls in flight out of two chosen at random ("power
+ * of two choices"), which avoids both the herding of always picking the least busy replica
+ * and the cost of looking at all of them. Replicas whose breaker is OPEN are ejected from 
+ * the choice until it is time for their breaker to attempt a reset, at which point the next
+ * call they are chosen for goes to them and their breaker decides whether they rejoin. 
+ * 
+ * At most maxEjectedFraction of the replicas are ejected: beyond that, the breakers are 
+ * probably reacting to a problem shared by all replicas, and ejecting more of them would 
+ * only pile the load onto the rest. Replicas over the limit stay in rotation, each OPEN 
+ * replica being kept in it for a share of the calls it is chosen for, and those calls go
+ * through its breaker as probes would: a success closes it, and it rejoins.
+ */
+public class ReplicaSetInvocationHandler extends HubSpotObject implements InvocationHandler {
+
+	private final CircuitBreakerInvocationHandler[] replicas;
+	private final int maxEjected;
+	private final AtomicIntegerArray inFlight;
+	
+	ReplicaSetInvocationHandler(CircuitBreakerInvocationHandler[] replicas, double maxEjectedFraction) {
+		this.replicas = replicas;
+		this.maxEjected = (int) Math.floor(replicas.length * maxEjectedFraction);
+		this.inFlight = new AtomicIntegerArray(replicas.length);
+	}
+	
+	/**
+	 * Routes the call to one of the replicas
+	 */
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		int choice = choose();
+		int replica = choice < 0 ? ~choice : choice;
+		inFlight.incrementAndGet(replica);
+		try {
+			return replicas[replica].invoke(proxy, method, args, choice < 0);
+		} finally {
+			inFlight.decrementAndGet(replica);
+		}
+	}
+	
+	/**
+	 * Chooses the replica the next call is routed to. Only the two candidates' breakers are 
+	 * looked at, and only an OPEN one is asked whether to attempt a reset; the others are 
+	 * read without locking, and only when a candidate is ejected.
+	 * 
+	 * While more replicas are OPEN than may be ejected, each OPEN candidate stays in rotation
+	 * with a probability of (open - maxEjected) / open, so that as many replicas as are over 
+	 * the limit get calls on average, whichever candidates are drawn.
+	 * 
+	 * @return the replica, or its complement (~replica) if the call is to go through the 
+	 * replica's OPEN breaker
+	 */
+	int choose() {
+		int n = replicas.length;
+		if (n == 1) {
+			return 0;
+		}
+		
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int a = random.nextInt(n);
+		int b = random.nextInt(n - 1);
+		if (b >= a) {
+			b++;
+		}
+		
+		int choiceA = a;
+		int choiceB = b;
+		boolean availableA = isAvailable(a);
+		boolean availableB = isAvailable(b);
+		if (!availableA || !availableB) {
+			int open = countOpen();
+			if (open > maxEjected) {
+				if (!availableA && random.nextInt(open) >= maxEjected) {
+					availableA = true;
+					choiceA = ~a;
+				}
+				if (!availableB && random.nextInt(open) >= maxEjected) {
+					availableB = true;
+					choiceB = ~b;
+				}
+			}
+		}
+		
+		if (availableA && availableB) {
+			return inFlight.get(a) <= inFlight.get(b) ? choiceA : choiceB;
+		}
+		if (availableA != availableB) {
+			return availableA ? choiceA : choiceB;
+		}
+		
+		// both are ejected, go to any replica that isn't, starting from a random one
+		int start = random.nextInt(n);
+		for (int i = 0; i < n; i++) {
+			int replica = (start + i) % n;
+			if (replicas[replica].getPolicy().getCurrentState() != CircuitBreakerState.OPEN) {
+				return replica;
+			}
+		}
+		// all of them are, which their breakers will reject
+		return a;
+	}
+	
+	/**
+	 * Returns whether the breaker of the replica lets calls through, moving it to HALF_OPEN
+	 * if it is time to attempt a reset
+	 */
+	private boolean isAvailable(int replica) {
+		CircuitBreakerPolicy policy = replicas[replica].getPolicy();
+		return policy.getCurrentState() != CircuitBreakerState.OPEN || policy.shouldAttemptReset();
+	}
+	
+	/**
+	 * Returns the number of replicas whose breaker is OPEN
+	 */
+	private int countOpen() {
+		int open = 0;
+		for (int i = 0; i < replicas.length; i++) {
+			if (replicas[i].getPolicy().getCurrentState() == CircuitBreakerState.OPEN) {
+				open++;
+			}
+		}
+		return open;
+	}
+	
+	/**
+	 * Returns the number of replicas in the set
+	 */
+	public int getReplicaCount() {
+		return replicas.length;
+	}
+	
+	/**
+	 * Returns the handler guarding the replica at the supplied position
+	 */
+	public CircuitBreakerInvocationHandler getReplica(int replica) {
+		return replicas[replica];
+	}
+	
+	/**
+	 * Returns the number of calls in flight to the replica at the supplied position
+	 */
+	public int getInFlight(int replica) {
+		return inFlight.get(replica);
+	}
+}
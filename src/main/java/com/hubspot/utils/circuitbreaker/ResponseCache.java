@@ -0,0 +1,268 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hubspot.utils.HubSpotObject;
+
+/**
+ * Remembers the last value returned by a monitored method for each set of arguments, so that
+ * it can be served when the breaker rejects a call or the call fails.
+ * 
+ * Writes happen on the successful call path, so they are kept cheap: a value is only replaced
+ * once it is refreshSeconds old, which turns a hot key into one write per refresh period and 
+ * everything else into a lock-free lookup. Once the cache is over its entry or memory bound,
+ * a sweep is scheduled on a background thread, which trims it to 90% of the bound in one go,
+ * evicting expired values first and then the least recently used ones; until it has run, the
+ * cache may be a little over its bounds.
+ * 
+ * Memory is accounted for with a rough per-entry estimate (see estimateBytes), not by 
+ * measuring the actual object graph.
+ */
+public class ResponseCache extends HubSpotObject {
+
+	// fixed estimate of the bookkeeping for a single entry (map node, key, entry)
+	private static final long ENTRY_OVERHEAD_BYTES = 96;
+	
+	static final class Entry {
+		final Object value;
+		final long writtenNanos;
+		final long bytes;
+		volatile long lastAccessNanos;
+		
+		Entry(Object value, long writtenNanos, long bytes) {
+			this.value = value;
+			this.writtenNanos = writtenNanos;
+			this.bytes = bytes;
+			this.lastAccessNanos = writtenNanos;
+		}
+	}
+	
+	private final int maxEntries;
+	private final long maxBytes;
+	private final long ttlNanos;
+	private final long refreshNanos;
+	
+	// sweeps the entries of all response caches
+	private static final ExecutorService SWEEPER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "circuit-breaker-cache-sweeper");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	
+	private final ConcurrentHashMap<ArgumentsKey, Entry> entries = new ConcurrentHashMap<ArgumentsKey, Entry>();
+	private final AtomicLong estimatedBytes = new AtomicLong();
+	private final AtomicBoolean sweepScheduled = new AtomicBoolean();
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param maxEntries: number of argument sets remembered
+	 * @param maxBytes: rough upper bound on memory used, 0 for no bound
+	 * @param ttlSeconds: values older than this are never served
+	 * @param refreshSeconds: minimum age of a value before a successful call replaces it
+	 * 
+	 * @throws CircuitBreakerWrappingException
+	 */
+	public ResponseCache(int maxEntries, long maxBytes, int ttlSeconds, int refreshSeconds) throws CircuitBreakerWrappingException {
+		if( maxEntries <= 0 ) {
+			throw new CircuitBreakerWrappingException("Invalid maximum number of cache entries.");
+		}
+		
+		if( maxBytes < 0 ) {
+			throw new CircuitBreakerWrappingException("Invalid maximum cache size.");
+		}
+		
+		if( ttlSeconds <= 0 ) {
+			throw new CircuitBreakerWrappingException("Invalid cache time to live.");
+		}
+		
+		if( refreshSeconds < 0 || refreshSeconds > ttlSeconds ) {
+			throw new CircuitBreakerWrappingException("Invalid cache refresh period.");
+		}
+		
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.ttlNanos = ttlSeconds * 1000000000L;
+		this.refreshNanos = refreshSeconds * 1000000000L;
+	}
+	
+	/**
+	 * Remembers the value returned by a successful call, unless we remembered one recently
+	 */
+	public void put(Object[] args, Object value) {
+		ArgumentsKey key = new ArgumentsKey(args);
+		long now = System.nanoTime();
+		Entry current = entries.get(key);
+		if( current != null && now - current.writtenNanos < refreshNanos ) {
+			return;
+		}
+		
+		Entry entry = new Entry(value, now, ENTRY_OVERHEAD_BYTES + estimateBytes(key.getArgs()) + estimateBytes(value));
+		Entry replaced = entries.put(key, entry);
+		estimatedBytes.addAndGet(replaced == null ? entry.bytes : entry.bytes - replaced.bytes);
+		
+		if( isOverBounds(1.0) && sweepScheduled.compareAndSet(false, true) ) {
+			scheduleSweep();
+		}
+	}
+	
+	/**
+	 * Returns the entry remembered for the supplied arguments, or null if there is none
+	 * or it has expired
+	 */
+	Entry get(Object[] args) {
+		ArgumentsKey key = new ArgumentsKey(args);
+		Entry entry = entries.get(key);
+		if( entry == null ) {
+			return null;
+		}
+		
+		long now = System.nanoTime();
+		if( now - entry.writtenNanos >= ttlNanos ) {
+			remove(key, entry);
+			return null;
+		}
+		entry.lastAccessNanos = now;
+		return entry;
+	}
+	
+	private boolean isOverBounds(double fraction) {
+		return entries.size() > maxEntries * fraction || 
+			(maxBytes > 0 && estimatedBytes.get() > maxBytes * fraction);
+	}
+	
+	private void remove(ArgumentsKey key, Entry entry) {
+		if( entries.remove(key, entry) ) {
+			estimatedBytes.addAndGet(-entry.bytes);
+		}
+	}
+	
+	private void scheduleSweep() {
+		try {
+			SWEEPER.execute(new Runnable() {
+				@Override
+				public void run() {
+					// values added from now on may call for another sweep
+					sweepScheduled.set(false);
+					try {
+						evict();
+					} catch( RuntimeException e ) {
+						getLog().error("Error while sweeping circuit breaker response cache", e);
+					}
+				}
+			});
+		} catch( RejectedExecutionException e ) {
+			sweepScheduled.set(false);
+		}
+	}
+	
+	/**
+	 * Trims the cache to 90% of its bounds, dropping expired values and then the least 
+	 * recently used ones. Only runs on the sweeper thread.
+	 */
+	private void evict() {
+		long now = System.nanoTime();
+		List<Map.Entry<ArgumentsKey, Entry>> candidates = new ArrayList<Map.Entry<ArgumentsKey, Entry>>();
+		for( Map.Entry<ArgumentsKey, Entry> e : entries.entrySet() ) {
+			if( now - e.getValue().writtenNanos >= ttlNanos ) {
+				remove(e.getKey(), e.getValue());
+			} else {
+				candidates.add(e);
+			}
+		}
+		
+		Collections.sort(candidates, new Comparator<Map.Entry<ArgumentsKey, Entry>>() {
+			@Override
+			public int compare(Map.Entry<ArgumentsKey, Entry> a, Map.Entry<ArgumentsKey, Entry> b) {
+				long delta = a.getValue().lastAccessNanos - b.getValue().lastAccessNanos;
+				return delta < 0 ? -1 : (delta == 0 ? 0 : 1);
+			}
+		});
+		for( int i = 0; i < candidates.size() && isOverBounds(0.9); i++ ) {
+			remove(candidates.get(i).getKey(), candidates.get(i).getValue());
+		}
+	}
+	
+	/**
+	 * Returns the number of argument sets currently remembered
+	 */
+	public int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * Returns the estimated number of bytes used by the remembered values
+	 */
+	public long getEstimatedBytes() {
+		return estimatedBytes.get();
+	}
+	
+	/**
+	 * Roughly estimates the memory retained by the supplied value: strings, arrays, collections
+	 * and maps are sized from their length, anything else counts as a small object.
+	 */
+	static long estimateBytes(Object o) {
+		if( o == null ) {
+			return 0;
+		}
+		if( o instanceof String ) {
+			return 40 + 2L * ((String) o).length();
+		}
+		if( o instanceof Number || o instanceof Boolean || o instanceof Character ) {
+			return 16;
+		}
+		if( o instanceof byte[] ) {
+			return 16 + ((byte[]) o).length;
+		}
+		if( o instanceof Object[] ) {
+			long bytes = 16 + 4L * ((Object[]) o).length;
+			for( Object element : (Object[]) o ) {
+				bytes += estimateBytes(element);
+			}
+			return bytes;
+		}
+		if( o.getClass().isArray() ) {
+			return 16 + 8L * Array.getLength(o);
+		}
+		if( o instanceof Collection ) {
+			return 48 + 32L * ((Collection<?>) o).size();
+		}
+		if( o instanceof Map ) {
+			return 64 + 48L * ((Map<?, ?>) o).size();
+		}
+		return 64;
+	}
+}
@@ -0,0 +1,35 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+/**
+ * Decides whether a value returned by a monitored method is a failure, for resources that
+ * report errors through their return values (status codes, empty results, error envelopes)
+ * rather than by throwing. Failed results count against the breaker exactly like blacklisted
+ * exceptions, but are still returned to the caller.
+ * 
+ * Classifiers are resolved once at wrap time, and should be cheap and side-effect free since 
+ * they run after every successful call.
+ */
+public interface ResultClassifier<T> {
+
+	/**
+	 * @return true if the supplied result should count as a failed call
+	 */
+	boolean isFailure(T result);
+}
@@ -0,0 +1,77 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether, and after how long, a failed call to a monitored method is retried
+ */
+class Retrier {
+
+	final int maxAttempts;
+	private final long initialBackoffNanos;
+	private final long maxBackoffNanos;
+	private final double backoffMultiplier;
+	private final double jitter;
+	
+	final RetryBudget budget;
+	
+	Retrier(CircuitBreakerRetry annotation, RetryBudget budget) {
+		this.maxAttempts = annotation.maxAttempts();
+		this.initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(annotation.initialBackoffMillis());
+		this.maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(annotation.maxBackoffMillis());
+		this.backoffMultiplier = annotation.backoffMultiplier();
+		this.jitter = annotation.jitter();
+		this.budget = budget;
+	}
+	
+	/**
+	 * @param attempt: the attempt that just failed, starting from 1
+	 * @return how long to wait before the next attempt
+	 */
+	long backoffNanos(int attempt) {
+		double backoff = initialBackoffNanos * Math.pow(backoffMultiplier, attempt - 1);
+		backoff = Math.min(backoff, maxBackoffNanos);
+		if (jitter > 0.0) {
+			backoff -= backoff * jitter * ThreadLocalRandom.current().nextDouble();
+		}
+		return (long) backoff;
+	}
+	
+	/**
+	 * Waits before the next attempt
+	 * 
+	 * @param nanos: how long to wait, as returned by backoffNanos()
+	 * @return false if the thread was interrupted while waiting, in which case no more 
+	 * attempts should be made
+	 */
+	boolean backoff(long nanos) {
+		if (nanos <= 0) {
+			return true;
+		}
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hubspot.utils.HubSpotObject;
+
+/**
+ * Caps the retries made by a breaker at a fraction of the calls it has recently seen, so
+ * that retries can't multiply the load on a resource that is already failing. The same 
+ * kind of budget caps the breaker's hedged calls.
+ * 
+ * Every call deposits retryRatio of a retry into the budget and every retry withdraws a
+ * whole one. The balance starts at, and can't grow beyond, minRetries, which lets a
+ * lightly used breaker retry a few calls without having to earn them first.
+ */
+public class RetryBudget extends HubSpotObject {
+
+	// balances are kept in thousandths of a retry
+	private static final long SCALE = 1000;
+	
+	private final long deposit;
+	private final long maxBalance;
+	private final AtomicLong balance;
+	
+	/**
+	 * @param retryRatio: retries allowed per call (0.0 - 1.0)
+	 * @param minRetries: retries that can be made without any calls having been deposited
+	 * @throws CircuitBreakerWrappingException
+	 */
+	public RetryBudget(double retryRatio, int minRetries) throws CircuitBreakerWrappingException {
+		if( retryRatio < 0.0 || retryRatio > 1.0 ) {
+			throw new CircuitBreakerWrappingException("Retry ratio must be between 0.0 and 1.0");
+		}
+		if( minRetries < 0 ) {
+			throw new CircuitBreakerWrappingException("Minimum retries cannot be negative");
+		}
+		this.deposit = Math.round(retryRatio * SCALE);
+		this.maxBalance = Math.max(minRetries, 1) * SCALE;
+		this.balance = new AtomicLong(minRetries * SCALE);
+	}
+	
+	/**
+	 * Credits the budget for a call
+	 */
+	public void deposit() {
+		long current;
+		do {
+			current = balance.get();
+			if (current >= maxBalance) {
+				return;
+			}
+		} while (!balance.compareAndSet(current, Math.min(maxBalance, current + deposit)));
+	}
+	
+	/**
+	 * Withdraws a retry from the budget
+	 * 
+	 * @return true if the retry can be made, false if the budget is exhausted
+	 */
+	public boolean tryWithdraw() {
+		long current;
+		do {
+			current = balance.get();
+			if (current < SCALE) {
+				return false;
+			}
+		} while (!balance.compareAndSet(current, current - SCALE));
+		return true;
+	}
+	
+	/**
+	 * @return the number of retries currently available
+	 */
+	public double getBalance() {
+		return (double) balance.get() / SCALE;
+	}
+}
@@ -0,0 +1,355 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.hubspot.utils.HubSpotObject;
+
+/**
+ * CircuitBreakerPolicy whose state lives in a memory-mapped file, so that every process on a
+ * host using the same file shares one breaker: failures from all of them count towards the
+ * trip threshold, and a trip is seen by all of them immediately.
+ * 
+ * Its behavior follows BaseCircuitBreakerPolicyImpl (without backoff), with failures counted 
+ * over a window made of BUCKETS buckets rather than one timestamp per failure. The state and
+ * every bucket are each a single long in the file, updated with compare-and-set, so a process
+ * dying at any point never leaves the file half-updated and nobody ever waits on a lock. 
+ * Times are wall-clock milliseconds, so the processes' clocks are those of the same host.
+ * 
+ * The file starts with a header holding the policy's settings; opening a file with different
+ * settings fails rather than silently sharing state with differently configured breakers.
+ * State change handlers are notified of changes made by any process, the next time this 
+ * process looks at the state.
+ */
+public class SharedMemoryCircuitBreakerPolicy extends HubSpotObject implements CircuitBreakerPolicy, Notifier<StateChange>, Closeable {
+
+	// number of buckets the threshold window is divided into
+	static final int BUCKETS = 16;
+	
+	private static final long MAGIC = 0x4342534D454D0002L; // "CBSMEM", version 2
+	private static final long VERSION_MASK = 0xFFFFL;
+	
+	// layout of the file: header (magic, then trip threshold, half open timeout and threshold
+	// window), state word, then one word per bucket
+	private static final int MAGIC_OFFSET = 0;
+	private static final int TRIP_THRESHOLD_OFFSET = 8;
+	private static final int HALF_OPEN_TIMEOUT_OFFSET = 16;
+	private static final int THRESHOLD_WINDOW_OFFSET = 24;
+	private static final int STATE_OFFSET = 64;
+	private static final int BUCKETS_OFFSET = 128;
+	private static final int FILE_SIZE = BUCKETS_OFFSET + 8 * BUCKETS;
+	
+	// state word: two bits of CircuitBreakerState and the time of the last transition
+	private static final int STATE_SHIFT = 62;
+	private static final long TIME_MASK = (1L << 62) - 1;
+	
+	// bucket word: index of the bucket's interval since the epoch, and its failure count
+	private static final int INDEX_SHIFT = 32;
+	private static final long COUNT_MASK = 0xFFFFFFFFL;
+	
+	private static final CircuitBreakerState[] STATES = CircuitBreakerState.values();
+	
+	private final int tripThreshold;
+	private final long halfOpenTimeoutMillis;
+	private final long bucketMillis;
+	
+	private final RandomAccessFile file;
+	private final MappedAtomics atomics;
+	
+	// state this process last saw, used to notify handlers of changes made by anybody
+	private final AtomicReference<CircuitBreakerState> lastSeen = new AtomicReference<CircuitBreakerState>();
+	
+	private final List<NotificationHandler<StateChange>> notificationChain = new CopyOnWriteArrayList<NotificationHandler<StateChange>>();
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param stateFile: file holding the shared state, created if it doesn't exist
+	 * @param tripThreshold, halfOpenTimeout, thresholdWindow: see BaseCircuitBreakerPolicyImpl
+	 * 
+	 * @throws CircuitBreakerWrappingException if the file can't be mapped, or was created with
+	 * different settings
+	 */
+	public SharedMemoryCircuitBreakerPolicy(File stateFile, int tripThreshold, int halfOpenTimeout, int thresholdWindow) throws CircuitBreakerWrappingException {
+		if( stateFile == null ) {
+			throw new CircuitBreakerWrappingException("State file cannot be null.");
+		}
+		
+		if( tripThreshold <= 0 ) {
+			throw new CircuitBreakerWrappingException("Invalid trip threshold.");
+		}
+		
+		if( halfOpenTimeout <= 0 || thresholdWindow <= 0 ) {
+			throw new CircuitBreakerWrappingException("Invalid half open timeout or threshold window.");
+		}
+		
+		this.tripThreshold = tripThreshold;
+		this.halfOpenTimeoutMillis = halfOpenTimeout * 1000L;
+		this.bucketMillis = Math.max(1, thresholdWindow * 1000L / BUCKETS);
+		
+		try {
+			file = new RandomAccessFile(stateFile, "rw");
+		} catch (IOException e) {
+			throw new CircuitBreakerWrappingException("Cannot open state file " + stateFile);
+		}
+		try {
+			FileChannel channel = file.getChannel();
+			atomics = new MappedAtomics(channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE));
+			initialize(channel, tripThreshold, halfOpenTimeout, thresholdWindow);
+		} catch (IOException e) {
+			closeQuietly();
+			throw new CircuitBreakerWrappingException("Cannot map state file " + stateFile);
+		} catch (CircuitBreakerWrappingException e) {
+			closeQuietly();
+			throw e;
+		}
+		lastSeen.set(getCurrentState());
+	}
+	
+	/**
+	 * Writes the header of a new file, or checks the header of an existing one. Processes
+	 * opening the file at the same time are serialized with a file lock; this is the only 
+	 * time we lock.
+	 */
+	private void initialize(FileChannel channel, int tripThreshold, int halfOpenTimeout, int thresholdWindow) throws IOException, CircuitBreakerWrappingException {
+		FileLock lock = channel.lock();
+		try {
+			long magic = atomics.get(MAGIC_OFFSET);
+			if( magic == MAGIC ) {
+				if( atomics.get(TRIP_THRESHOLD_OFFSET) != tripThreshold || 
+						atomics.get(HALF_OPEN_TIMEOUT_OFFSET) != halfOpenTimeout ||
+						atomics.get(THRESHOLD_WINDOW_OFFSET) != thresholdWindow ) {
+					throw new CircuitBreakerWrappingException("State file was created with different settings");
+				}
+			} else if( (magic & ~VERSION_MASK) == (MAGIC & ~VERSION_MASK) ) {
+				// possibly in use by processes that would read our layout as theirs
+				throw new CircuitBreakerWrappingException("State file has unsupported format version " + (magic & VERSION_MASK));
+			} else {
+				for( int offset = MAGIC_OFFSET + 8; offset < FILE_SIZE; offset += 8 ) {
+					atomics.set(offset, 0);
+				}
+				atomics.set(TRIP_THRESHOLD_OFFSET, tripThreshold);
+				atomics.set(HALF_OPEN_TIMEOUT_OFFSET, halfOpenTimeout);
+				atomics.set(THRESHOLD_WINDOW_OFFSET, thresholdWindow);
+				atomics.set(STATE_OFFSET, pack(CircuitBreakerState.CLOSED, System.currentTimeMillis()));
+				atomics.set(MAGIC_OFFSET, MAGIC);
+				atomics.getBuffer().force();
+			}
+		} finally {
+			lock.release();
+		}
+	}
+	
+	/**
+	 * Moves the breaker to a CLOSED state
+	 */
+	@Override
+	public void successfulCall(Method m) {
+		while( true ) {
+			long word = atomics.get(STATE_OFFSET);
+			if( stateOf(word) == CircuitBreakerState.CLOSED ) {
+				return;
+			}
+			if( atomics.compareAndSet(STATE_OFFSET, word, pack(CircuitBreakerState.CLOSED, System.currentTimeMillis())) ) {
+				if( m != null ) {
+					getLog().info("Circuit breaker moving to CLOSED from "+stateOf(word)+" due to successful invocation of "+m.getDeclaringClass().getName()+"."+m.getName());
+				}
+				seen(CircuitBreakerState.CLOSED, m);
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Counts the failure in the shared window, and moves the breaker to OPEN if the failures
+	 * of all processes within the window reach the trip threshold
+	 */
+	@Override
+	public void failedBlacklistedCall(Method m) {
+		long now = System.currentTimeMillis();
+		long failures = addFailure(now);
+		if( failures < tripThreshold ) {
+			return;
+		}
+		
+		while( true ) {
+			long word = atomics.get(STATE_OFFSET);
+			CircuitBreakerState state = stateOf(word);
+			if( state == CircuitBreakerState.OPEN ) {
+				return;
+			}
+			if( atomics.compareAndSet(STATE_OFFSET, word, pack(CircuitBreakerState.OPEN, now)) ) {
+				if( m != null ) {
+					getLog().info("Circuit breaker moving to OPEN from "+state+" due to failed call of "+m.getDeclaringClass().getName()+"."+m.getName());
+				}
+				seen(CircuitBreakerState.OPEN, m);
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Moves the breaker from OPEN to HALF_OPEN once halfOpenTimeout has elapsed since it 
+	 * tripped; only one process makes the move
+	 */
+	@Override
+	public boolean shouldAttemptReset() {
+		long word = atomics.get(STATE_OFFSET);
+		if( stateOf(word) != CircuitBreakerState.OPEN ) {
+			return false;
+		}
+		
+		long now = System.currentTimeMillis();
+		if( now - timeOf(word) <= halfOpenTimeoutMillis ) {
+			return false;
+		}
+		if( atomics.compareAndSet(STATE_OFFSET, word, pack(CircuitBreakerState.HALF_OPEN, now)) ) {
+			seen(CircuitBreakerState.HALF_OPEN, null);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns the current state of the breaker, as left by any of the processes sharing it
+	 */
+	@Override
+	public CircuitBreakerState getCurrentState() {
+		CircuitBreakerState state = stateOf(atomics.get(STATE_OFFSET));
+		if( state != lastSeen.get() ) {
+			seen(state, null);
+		}
+		return state;
+	}
+	
+	/**
+	 * Returns the number of failures counted in the current window by all processes
+	 */
+	public long getFailureCount() {
+		long currentIndex = (System.currentTimeMillis() / bucketMillis) & COUNT_MASK;
+		long failures = 0;
+		for( int i = 0; i < BUCKETS; i++ ) {
+			long word = atomics.get(BUCKETS_OFFSET + 8 * i);
+			// indexes are kept modulo 2^32, so compare them the same way
+			if( ((currentIndex - indexOf(word)) & COUNT_MASK) < BUCKETS ) {
+				failures += word & COUNT_MASK;
+			}
+		}
+		return failures;
+	}
+	
+	/**
+	 * Counts a failure in the bucket for the supplied time, reusing the bucket if it holds
+	 * an interval that has left the window
+	 * 
+	 * @return the number of failures in the window, including this one
+	 */
+	private long addFailure(long now) {
+		long index = now / bucketMillis;
+		int offset = BUCKETS_OFFSET + 8 * (int) (index % BUCKETS);
+		while( true ) {
+			long word = atomics.get(offset);
+			long update = indexOf(word) == (index & COUNT_MASK) ?
+					word + 1 : 
+					((index & COUNT_MASK) << INDEX_SHIFT) | 1;
+			if( (update & COUNT_MASK) == 0 ) {
+				// count saturated
+				break;
+			}
+			if( atomics.compareAndSet(offset, word, update) ) {
+				break;
+			}
+		}
+		return getFailureCount();
+	}
+	
+	/**
+	 * Notifies our handlers if the supplied state is new to this process
+	 */
+	private void seen(CircuitBreakerState state, Method m) {
+		CircuitBreakerState previous = lastSeen.get();
+		if( previous != state && lastSeen.compareAndSet(previous, state) ) {
+			notifyHandlers(new StateChange(previous, state, m));
+		}
+	}
+	
+	@Override
+	public void attachHandler(NotificationHandler<StateChange> n) {
+		if( !notificationChain.contains(n)) {
+			notificationChain.add(n);
+		}
+	}
+
+	@Override
+	public void detachHandler(NotificationHandler<StateChange> n) {
+		notificationChain.remove(n);
+	}
+
+	@Override
+	public void notifyHandlers(StateChange change) {
+		for( NotificationHandler<StateChange> handler : notificationChain ) {
+			try {
+				handler.onChanged(change);
+			} catch( Exception e ) {
+				getLog().error("Error while notifying of circuit breaker state change", e);
+			}
+		}
+	}
+	
+	/**
+	 * Closes the state file; the mapping itself goes away once it is garbage collected
+	 */
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+	
+	private void closeQuietly() {
+		try {
+			file.close();
+		} catch (IOException e) {
+			getLog().error("Error while closing state file", e);
+		}
+	}
+	
+	private static long pack(CircuitBreakerState state, long millis) {
+		return ((long) state.ordinal() << STATE_SHIFT) | (millis & TIME_MASK);
+	}
+	
+	private static CircuitBreakerState stateOf(long word) {
+		return STATES[(int) (word >>> STATE_SHIFT)];
+	}
+	
+	private static long timeOf(long word) {
+		return word & TIME_MASK;
+	}
+	
+	private static long indexOf(long word) {
+		return word >>> INDEX_SHIFT;
+	}
+}
@@ -0,0 +1,113 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Coalesces concurrent calls with equal arguments into a single call: the first caller
+ * (the leader) carries out the call, and callers arriving while it is in flight wait for it
+ * and receive the same result, or the same exception.
+ * 
+ * The leader's call is decided by the leader's Deadline and CallPriority, so a caller only
+ * joins it if the leader would be turned away no sooner than the caller: if its priority is
+ * at least as high, and its deadline leaves at least as much time. Other callers make their
+ * own call, so that a CRITICAL caller with time to spare isn't rejected because of the 
+ * leader's deadline or priority.
+ */
+class SingleFlight {
+
+	/**
+	 * A call in flight, and its outcome once it has completed
+	 */
+	private static final class Flight {
+		final CountDownLatch done = new CountDownLatch(1);
+		
+		// the leader's, null if it has no deadline
+		final Deadline deadline;
+		final CallPriority priority;
+		
+		Object result;
+		Throwable thrown;
+		
+		Flight(Deadline deadline, CallPriority priority) {
+			this.deadline = deadline;
+			this.priority = priority;
+		}
+	}
+	
+	private final ConcurrentHashMap<ArgumentsKey, Flight> flights = new ConcurrentHashMap<ArgumentsKey, Flight>();
+	
+	/**
+	 * Carries out the invocation, unless a call with equal arguments is already in flight in 
+	 * which case we wait for its outcome.
+	 * 
+	 * @param metrics: where coalesced calls are counted
+	 */
+	Object execute(MonitoredMethod monitored, Object[] args, Invocation invocation, CircuitBreakerMetrics metrics) throws Throwable {
+		ArgumentsKey key = new ArgumentsKey(args);
+		Deadline deadline = Deadline.current();
+		CallPriority priority = CallGuard.priorityOf(monitored);
+		Flight flight = new Flight(deadline, priority);
+		Flight inFlight = flights.putIfAbsent(key, flight);
+		if (inFlight != null) {
+			if (!CallGuard.admitsAsMuchAs(inFlight.deadline, inFlight.priority, deadline, priority)) {
+				// the leader may be turned away where we wouldn't be
+				return invocation.proceed();
+			}
+			metrics.coalescedCall(monitored.method);
+			return awaitOutcome(inFlight);
+		}
+		
+		try {
+			flight.result = invocation.proceed();
+			return flight.result;
+		} catch (Throwable t) {
+			flight.thrown = t;
+			throw t;
+		} finally {
+			flights.remove(key, flight);
+			flight.done.countDown();
+		}
+	}
+	
+	/**
+	 * Waits for a call in flight to complete, without giving up when interrupted, and 
+	 * returns its outcome
+	 */
+	private Object awaitOutcome(Flight flight) throws Throwable {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				flight.done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		
+		if (flight.thrown != null) {
+			throw flight.thrown;
+		}
+		return flight.result;
+	}
+}
@@ -0,0 +1,166 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hubspot.utils.HubSpotObject;
+import com.hubspot.utils.circuitbreaker.CircuitBreakerPolicy.CircuitBreakerState;
+
+/**
+ * Gate that ramps traffic back up after the breaker closes, so a freshly recovered 
+ * resource doesn't receive its full load (with cold caches) all at once.
+ * 
+ * The gate has to be attached to the policy's notification chain so it learns about
+ * state changes, and added to the CircuitBreakerOptions used at wrap time:
+ * 
+ *   SlowStartGate gate = new SlowStartGate(30, 0.1, RampShape.LINEAR);
+ *   policy.attachHandler(gate);
+ *   options.addGate(gate);
+ *   
+ * While ramping, each call is admitted with a probability that grows from initialFraction
+ * to 1.0 over rampDuration seconds. The admission decision is lock-free.
+ * 
+ * The probability depends on the priority of the call: for an admitted fraction f, CRITICAL
+ * calls are admitted with probability min(2f, 1), NORMAL ones with f and SHEDDABLE ones with
+ * f squared, so background work only comes back once most of the traffic has.
+ */
+public class SlowStartGate extends HubSpotObject implements PriorityAwareGate, NotificationHandler<StateChange> {
+
+	public enum RampShape {
+		LINEAR,      // admitted fraction grows by the same amount every instant
+		EXPONENTIAL  // admitted fraction doubles at a constant rate, staying low for longer
+	}
+	
+	// length of the ramp in nanoseconds
+	private final long rampNanos;
+	
+	// fraction of calls admitted right after the breaker closes
+	private final double initialFraction;
+	
+	private final RampShape shape;
+	
+	// System.nanoTime() at which the current ramp started, 0 when we're not ramping
+	private final AtomicLong rampStart = new AtomicLong();
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param rampDuration: number of seconds it takes to go back to admitting every call
+	 * 
+	 * @param initialFraction: fraction (0.0 - 1.0] of calls admitted right after closing
+	 * 
+	 * @param shape: how the admitted fraction grows over the ramp
+	 * 
+	 * @throws CircuitBreakerWrappingException
+	 */
+	public SlowStartGate(int rampDuration, double initialFraction, RampShape shape) throws CircuitBreakerWrappingException {
+		if( rampDuration <= 0 ) {
+			throw new CircuitBreakerWrappingException("Invalid ramp duration.");
+		}
+		
+		if( initialFraction <= 0.0 || initialFraction > 1.0 ) {
+			throw new CircuitBreakerWrappingException("Invalid initial fraction.");
+		}
+		
+		if( shape == null ) {
+			throw new CircuitBreakerWrappingException("Invalid ramp shape.");
+		}
+		
+		this.rampNanos = rampDuration * 1000000000L;
+		this.initialFraction = initialFraction;
+		this.shape = shape;
+	}
+	
+	/**
+	 * Starts ramping when the breaker closes after having been OPEN or HALF_OPEN, and
+	 * abandons the ramp if it trips again.
+	 */
+	@Override
+	public void onChanged(StateChange event) {
+		if( event.getNewState() == CircuitBreakerState.CLOSED && 
+				event.getOldState() != CircuitBreakerState.CLOSED ) {
+			long now = System.nanoTime();
+			rampStart.set(now == 0 ? 1 : now);
+		} else if( event.getNewState() == CircuitBreakerState.OPEN ) {
+			rampStart.set(0);
+		}
+	}
+
+	@Override
+	public boolean admit(Method m) {
+		return admit(m, CallPriority.NORMAL);
+	}
+	
+	@Override
+	public boolean admit(Method m, CallPriority priority) {
+		long start = rampStart.get();
+		if( start == 0 ) {
+			return true;
+		}
+		
+		long elapsed = System.nanoTime() - start;
+		if( elapsed >= rampNanos ) {
+			// ramp is over; only clear it if nobody started a new one in the meantime
+			rampStart.compareAndSet(start, 0);
+			return true;
+		}
+		
+		double fraction = getAdmittedFraction(elapsed);
+		if( priority == CallPriority.CRITICAL ) {
+			fraction = Math.min(2 * fraction, 1.0);
+		} else if( priority == CallPriority.SHEDDABLE ) {
+			fraction = fraction * fraction;
+		}
+		return ThreadLocalRandom.current().nextDouble() < fraction;
+	}
+	
+	@Override
+	public void release(Method m, long latencyNanos, boolean failed) {
+	}
+	
+	@Override
+	public RejectionReason getRejectionReason() {
+		return RejectionReason.SLOW_START;
+	}
+	
+	/**
+	 * Returns the fraction of calls admitted the supplied number of nanoseconds into the ramp
+	 */
+	public double getAdmittedFraction(long elapsedNanos) {
+		if( elapsedNanos >= rampNanos ) {
+			return 1.0;
+		}
+		
+		double progress = Math.max(0.0, (double) elapsedNanos / rampNanos);
+		if( shape == RampShape.EXPONENTIAL ) {
+			return initialFraction * Math.pow(1.0 / initialFraction, progress);
+		}
+		return initialFraction + (1.0 - initialFraction) * progress;
+	}
+	
+	/**
+	 * Returns true while calls are being ramped back up
+	 */
+	public boolean isRamping() {
+		long start = rampStart.get();
+		return start != 0 && System.nanoTime() - start < rampNanos;
+	}
+}
@@ -0,0 +1,128 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.hubspot.utils.HubSpotObject;
+
+/**
+ * Gate that limits the rate of calls using a token bucket which refills at permitsPerSecond
+ * and holds up to burst tokens.
+ * 
+ * Rather than storing a token count and a refill timestamp, the bucket is kept as a single 
+ * "theoretical arrival time" on the System.nanoTime() clock (i.e., the time at which the
+ * bucket would be full again). Taking a token pushes that time back by one refill interval,
+ * so admission is a single compare-and-set and refilling needs no background thread.
+ * 
+ * When the bucket is empty, a caller may wait up to maxWaitMillis for its token instead
+ * of being rejected immediately.
+ */
+public class TokenBucketRateLimiter extends HubSpotObject implements CircuitBreakerGate {
+
+	// nanoseconds it takes to refill a single token
+	private final long refillNanos;
+	
+	// how far ahead of the current time the theoretical arrival time may run without waiting
+	private final long burstNanos;
+	
+	// how far ahead of the current time the theoretical arrival time may run when waiting
+	private final long maxWaitNanos;
+	
+	// System.nanoTime() at which the bucket will be full again
+	private final AtomicLong fullAt;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param permitsPerSecond: rate at which tokens are added to the bucket
+	 * 
+	 * @param burst: maximum number of tokens the bucket holds, i.e., how many calls can be
+	 * made at once after a quiet period
+	 * 
+	 * @param maxWaitMillis: how long a call may wait for a token before being rejected; 0
+	 * rejects calls as soon as the bucket is empty
+	 * 
+	 * @throws CircuitBreakerWrappingException
+	 */
+	public TokenBucketRateLimiter(double permitsPerSecond, int burst, long maxWaitMillis) throws CircuitBreakerWrappingException {
+		if( permitsPerSecond <= 0.0 ) {
+			throw new CircuitBreakerWrappingException("Invalid permits per second.");
+		}
+		
+		if( burst <= 0 ) {
+			throw new CircuitBreakerWrappingException("Invalid burst size.");
+		}
+		
+		if( maxWaitMillis < 0 ) {
+			throw new CircuitBreakerWrappingException("Invalid maximum wait.");
+		}
+		
+		this.refillNanos = Math.max(1L, (long) (1000000000L / permitsPerSecond));
+		this.burstNanos = refillNanos * burst;
+		this.maxWaitNanos = maxWaitMillis * 1000000L;
+		this.fullAt = new AtomicLong(System.nanoTime());
+	}
+
+	@Override
+	public boolean admit(Method m) {
+		long waitNanos = tryAcquire(System.nanoTime());
+		if( waitNanos < 0 ) {
+			return false;
+		}
+		
+		// we were granted a token that only becomes available in the future
+		long deadline = System.nanoTime() + waitNanos;
+		while( waitNanos > 0 ) {
+			LockSupport.parkNanos(this, waitNanos);
+			waitNanos = deadline - System.nanoTime();
+		}
+		return true;
+	}
+	
+	/**
+	 * Takes a token from the bucket at the supplied time.
+	 * 
+	 * @return how many nanoseconds the caller has to wait before using its token, or -1
+	 * if no token can be had within maxWaitMillis
+	 */
+	long tryAcquire(long now) {
+		while( true ) {
+			long current = fullAt.get();
+			long next = (current - now < 0 ? now : current) + refillNanos;
+			long ahead = next - now;
+			if( ahead > burstNanos + maxWaitNanos ) {
+				return -1;
+			}
+			if( fullAt.compareAndSet(current, next) ) {
+				return Math.max(0L, ahead - burstNanos);
+			}
+		}
+	}
+
+	@Override
+	public void release(Method m, long latencyNanos, boolean failed) {
+	}
+
+	@Override
+	public RejectionReason getRejectionReason() {
+		return RejectionReason.RATE_LIMITED;
+	}
+}
@@ -0,0 +1,112 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.hubspot.utils.HubSpotObject;
+
+/**
+ * GossipTransport sending every message as a UDP datagram to a fixed list of peers, which
+ * may be on the loopback interface. Lost datagrams aren't resent; FleetGossip republishes
+ * OPEN breakers periodically instead.
+ */
+public class UdpGossipTransport extends HubSpotObject implements GossipTransport {
+
+	// largest payload of a UDP datagram
+	static final int MAX_MESSAGE_SIZE = 65507;
+	
+	private final SocketAddress bindAddress;
+	private final List<InetSocketAddress> peers;
+	private volatile DatagramSocket socket;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param bindAddress: address to receive messages on; port 0 picks a free port
+	 * @param peers: addresses of the other instances
+	 */
+	public UdpGossipTransport(InetSocketAddress bindAddress, List<InetSocketAddress> peers) throws CircuitBreakerWrappingException {
+		if( bindAddress == null || peers == null ) {
+			throw new CircuitBreakerWrappingException("Bind address and peers cannot be null.");
+		}
+		
+		this.bindAddress = bindAddress;
+		this.peers = new ArrayList<InetSocketAddress>(peers);
+	}
+	
+	@Override
+	public void start(final Receiver receiver) throws IOException {
+		socket = new DatagramSocket(bindAddress);
+		
+		Thread thread = new Thread("circuit-breaker-gossip-receiver") {
+			@Override
+			public void run() {
+				byte[] buffer = new byte[MAX_MESSAGE_SIZE];
+				DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+				while( !socket.isClosed() ) {
+					try {
+						packet.setLength(buffer.length);
+						socket.receive(packet);
+						receiver.received(Arrays.copyOfRange(buffer, packet.getOffset(), packet.getOffset() + packet.getLength()));
+					} catch( IOException e ) {
+						if( !socket.isClosed() ) {
+							getLog().error("Error while receiving gossip", e);
+						}
+					} catch( RuntimeException e ) {
+						getLog().error("Error while handling gossip", e);
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	@Override
+	public void send(byte[] message) throws IOException {
+		if( message.length > MAX_MESSAGE_SIZE ) {
+			throw new IOException("Message of "+message.length+" bytes doesn't fit a datagram");
+		}
+		
+		for( InetSocketAddress peer : peers ) {
+			socket.send(new DatagramPacket(message, message.length, peer));
+		}
+	}
+	
+	/**
+	 * Returns the address messages are received on, once started
+	 */
+	public InetSocketAddress getLocalAddress() {
+		return (InetSocketAddress) socket.getLocalSocketAddress();
+	}
+	
+	@Override
+	public void close() {
+		if( socket != null ) {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import junit.framework.TestCase;
+
+/**
+ * Simulates a resource whose latency grows with the number of calls in flight, and 
+ * checks that the adaptive concurrency limit converges close to the resource's capacity.
+ * 
+ * The simulation runs on a virtual millisecond clock, so it is deterministic and fast.
+ */
+public class AdaptiveConcurrencyLimiterTest extends TestCase {
+
+	private static final long NANOS_PER_MILLI = 1000000L;
+	
+	/**
+	 * Synthetic resource: calls take baseLatency ms as long as no more than capacity calls
+	 * are in flight, after which they queue and latency grows linearly with concurrency.
+	 */
+	static class SimulatedResource {
+		int capacity;
+		long baseLatency;
+		int inFlight = 0;
+		PriorityQueue<long[]> completions = new PriorityQueue<long[]>(11, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+				return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+			}
+		});
+		
+		SimulatedResource(int capacity, long baseLatency) {
+			this.capacity = capacity;
+			this.baseLatency = baseLatency;
+		}
+		
+		void call(long now) {
+			inFlight++;
+			long latency = baseLatency * Math.max(capacity, inFlight) / capacity;
+			completions.add(new long[] { now + latency, latency });
+		}
+	}
+	
+	/**
+	 * Runs the simulation for the supplied number of virtual milliseconds with unbounded
+	 * demand, and returns the average limit over the second half of the run
+	 */
+	private double simulate(AdaptiveConcurrencyLimiter limiter, SimulatedResource resource, long from, long duration) {
+		long limitSum = 0;
+		int limitSamples = 0;
+		for( long now = from; now < from + duration; now++ ) {
+			while( !resource.completions.isEmpty() && resource.completions.peek()[0] <= now ) {
+				long[] completion = resource.completions.poll();
+				resource.inFlight--;
+				limiter.release(null, completion[1] * NANOS_PER_MILLI, false);
+			}
+			
+			// far more demand than the resource can take
+			for( int i = 0; i < 100 && limiter.admit(null); i++ ) {
+				resource.call(now);
+			}
+			
+			if( now >= from + duration / 2 ) {
+				limitSum += limiter.getLimit();
+				limitSamples++;
+			}
+		}
+		return (double) limitSum / limitSamples;
+	}
+	
+	/**
+	 * Tests that the limit converges near the capacity of the resource, follows it down during
+	 * a brownout and back up after it
+	 */
+	public void testConvergesUnderSyntheticLatencyCurve() throws Exception {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(5, 1, 1000);
+		SimulatedResource resource = new SimulatedResource(50, 10);
+		
+		double limit = simulate(limiter, resource, 0, 30000);
+		assertTrue("limit " + limit + " should converge near capacity", limit >= 50 && limit <= 50 + 3 * Math.sqrt(50));
+		
+		// brownout: the resource can only handle a fifth of its usual load
+		resource.capacity = 10;
+		limit = simulate(limiter, resource, 30000, 30000);
+		assertTrue("limit " + limit + " should follow the brownout", limit >= 10 && limit <= 10 + 3 * Math.sqrt(10));
+		
+		// and recovers afterwards
+		resource.capacity = 50;
+		limit = simulate(limiter, resource, 60000, 30000);
+		assertTrue("limit " + limit + " should recover", limit >= 50 && limit <= 50 + 3 * Math.sqrt(50));
+	}
+	
+	/**
+	 * Tests that admission respects the limit and that failures cut it
+	 */
+	public void testFailuresReduceLimit() throws Exception {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 1, 100);
+		for( int i = 0; i < 10; i++ ) {
+			assertTrue(limiter.admit(null));
+		}
+		assertFalse(limiter.admit(null));
+		assertEquals(10, limiter.getInFlight());
+		
+		for( int i = 0; i < 10; i++ ) {
+			limiter.release(null, NANOS_PER_MILLI, true);
+		}
+		assertEquals(0, limiter.getInFlight());
+		assertTrue(limiter.getLimit() < 5);
+		assertTrue(limiter.getLimit() >= 1);
+	}
+	
+	/**
+	 * Tests that calls are admitted by priority, calls without one as NORMAL calls
+	 */
+	public void testPriorities() throws Exception {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(20, 1, 100);
+		for( int i = 0; i < 10; i++ ) {
+			assertTrue(limiter.admit(null, CallPriority.SHEDDABLE));
+		}
+		assertFalse(limiter.admit(null, CallPriority.SHEDDABLE));
+		
+		for( int i = 0; i < 5; i++ ) {
+			assertTrue(limiter.admit(null, CallPriority.NORMAL));
+			assertTrue(limiter.admit(null));
+		}
+		assertFalse(limiter.admit(null, CallPriority.NORMAL));
+		assertFalse(limiter.admit(null));
+		
+		for( int i = 0; i < 2; i++ ) {
+			assertTrue(limiter.admit(null, CallPriority.CRITICAL));
+		}
+		assertFalse(limiter.admit(null, CallPriority.CRITICAL));
+		assertEquals(22, limiter.getInFlight());
+	}
+}
@@ -0,0 +1,204 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.Clock;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.hubspot.utils.circuitbreaker.CallRecorder.Outcome;
+import com.hubspot.utils.circuitbreaker.CallRecorder.Record;
+import com.hubspot.utils.circuitbreaker.CircuitBreakerPolicy.CircuitBreakerState;
+
+/**
+ * Checks that CallRecorder records what a breaker sees, and that CallRecordingReplayer
+ * reproduces the breaker's decisions from the recording
+ */
+public class CallRecorderTest extends TestCase {
+
+	public interface Resource {
+		@CircuitBreakerExceptionBlacklist(blacklist={IOException.class})
+		String fetch(boolean fail) throws IOException, CircuitBreakerException;
+	}
+	
+	public static class ResourceImpl implements Resource {
+		@Override
+		public String fetch(boolean fail) throws IOException {
+			if( fail ) {
+				throw new IOException();
+			}
+			return "ok";
+		}
+	}
+	
+	private File file;
+	
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("circuit-breaker", ".recording");
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+		CallRecorder.namesFileOf(file).delete();
+	}
+	
+	private static CircuitBreakerSimulator.PolicyFactory basePolicy(final int tripThreshold) {
+		return new CircuitBreakerSimulator.PolicyFactory() {
+			@Override
+			public CircuitBreakerPolicy create(Clock clock) throws CircuitBreakerWrappingException {
+				BaseCircuitBreakerPolicyImpl policy = new BaseCircuitBreakerPolicyImpl(tripThreshold, 30, 60);
+				policy.setClock(clock);
+				return policy;
+			}
+		};
+	}
+	
+	public void testRecordAndReplay() throws Exception {
+		CallRecorder recorder = new CallRecorder(file, 1000);
+		CircuitBreakerOptions options = new CircuitBreakerOptions();
+		options.setCallRecorder(recorder);
+		Resource resource = new CircuitBreakerWrapper().wrap(new ResourceImpl(), Resource.class, new BaseCircuitBreakerPolicyImpl(2, 30, 60), options);
+		
+		assertEquals("ok", resource.fetch(false));
+		for( int i = 0; i < 2; i++ ) {
+			try {
+				resource.fetch(true);
+				fail();
+			} catch (IOException e) {
+				// expected
+			}
+		}
+		try {
+			resource.fetch(false);
+			fail();
+		} catch (CircuitBreakerException e) {
+			// expected
+		}
+		recorder.close();
+		
+		List<Record> records = CallRecorder.read(file);
+		assertEquals(4, records.size());
+		assertEquals(Outcome.SUCCESS, records.get(0).getOutcome());
+		assertEquals(Outcome.FAILURE, records.get(1).getOutcome());
+		assertEquals(CircuitBreakerState.CLOSED, records.get(1).getState());
+		assertEquals(Outcome.FAILURE, records.get(2).getOutcome());
+		assertEquals(CircuitBreakerState.OPEN, records.get(2).getState());
+		assertEquals(Outcome.REJECTED, records.get(3).getOutcome());
+		assertEquals(RejectionReason.BREAKER_OPEN, records.get(3).getReason());
+		
+		Map<Integer, String> names = CallRecorder.readNames(file);
+		assertEquals(Resource.class.getName() + ".fetch", names.get(records.get(0).getMethodId()));
+		
+		// the same settings reproduce the recording, others don't
+		CallRecordingReplayer replayer = new CallRecordingReplayer();
+		CallRecordingReplayer.Result same = replayer.replay(records, -1, basePolicy(2));
+		assertEquals(same.toString(), 4, same.getReplayed());
+		assertEquals(same.toString(), 0, same.getDecisionMismatches());
+		assertEquals(same.toString(), 0, same.getStateMismatches());
+		
+		CallRecordingReplayer.Result other = replayer.replay(records, -1, basePolicy(3));
+		assertEquals(other.toString(), 1, other.getDecisionMismatches());
+		assertEquals(other.toString(), records.get(2).getSequence(), other.getFirstMismatch());
+	}
+	
+	public void testRollingFile() throws Exception {
+		CallRecorder recorder = new CallRecorder(file, 4);
+		for( int i = 0; i < 10; i++ ) {
+			recorder.record(0, Outcome.SUCCESS, null, i * 1000, CircuitBreakerState.CLOSED);
+		}
+		recorder.close();
+		
+		List<Record> records = CallRecorder.read(file);
+		assertEquals(4, records.size());
+		for( int i = 0; i < 4; i++ ) {
+			assertEquals(6 + i, records.get(i).getSequence());
+			assertEquals(6 + i, records.get(i).getLatencyMicros());
+		}
+	}
+	
+	public void testSlotInUse() throws Exception {
+		CallRecorder recorder = new CallRecorder(file, 4);
+		for( int i = 0; i < 5; i++ ) {
+			recorder.record(0, Outcome.SUCCESS, null, i * 1000, CircuitBreakerState.CLOSED);
+		}
+		
+		// the writer of sequence 4 stalls in the first slot until sequence 8 laps it
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+		buffer.order(ByteOrder.nativeOrder());
+		buffer.putLong(CallRecorder.HEADER_SIZE, -5);
+		for( int i = 5; i < 9; i++ ) {
+			recorder.record(0, Outcome.SUCCESS, null, i * 1000, CircuitBreakerState.CLOSED);
+		}
+		assertEquals(1, recorder.getDropped());
+		assertEquals(-5, buffer.getLong(CallRecorder.HEADER_SIZE));
+		buffer.putLong(CallRecorder.HEADER_SIZE, 5);
+		raf.close();
+		recorder.close();
+		
+		List<Record> records = CallRecorder.read(file);
+		assertEquals(4, records.size());
+		for( int i = 0; i < 4; i++ ) {
+			assertEquals(4 + i, records.get(i).getSequence());
+			assertEquals(4 + i, records.get(i).getLatencyMicros());
+		}
+	}
+	
+	public void testConcurrentRecording() throws Exception {
+		final CallRecorder recorder = new CallRecorder(file, 1 << 16);
+		final int perThread = 100000;
+		Thread[] threads = new Thread[4];
+		for( int t = 0; t < threads.length; t++ ) {
+			final int id = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for( int i = 0; i < perThread; i++ ) {
+						recorder.record(id, Outcome.FAILURE, null, 1000, CircuitBreakerState.OPEN);
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for( Thread thread : threads ) {
+			thread.start();
+		}
+		for( Thread thread : threads ) {
+			thread.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		recorder.close();
+		
+		assertEquals(threads.length * perThread, recorder.getRecorded());
+		List<Record> records = CallRecorder.read(file);
+		assertEquals(1 << 16, records.size());
+		assertEquals(threads.length * perThread - 1, records.get(records.size() - 1).getSequence());
+		// generous bound, well under a microsecond per record in practice
+		assertTrue(elapsed < threads.length * perThread * 5000L);
+	}
+}
@@ -0,0 +1,130 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import junit.framework.TestCase;
+
+import com.hubspot.utils.circuitbreaker.CircuitBreakerPolicy.CircuitBreakerState;
+
+/**
+ * Checks that CircuitBreakerConfigFile changes the settings of policies in place, and only
+ * when the whole file is valid
+ */
+public class CircuitBreakerConfigFileTest extends TestCase {
+
+	private File file;
+	
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("circuit-breaker", ".properties");
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+	}
+	
+	private void write(String contents) throws Exception {
+		FileWriter writer = new FileWriter(file);
+		writer.write(contents);
+		writer.close();
+	}
+	
+	public void testReload() throws Exception {
+		BaseCircuitBreakerPolicyImpl policy = new BaseCircuitBreakerPolicyImpl(5, 30, 60);
+		BaseCircuitBreakerPolicyImpl other = new BaseCircuitBreakerPolicyImpl(5, 30, 60);
+		CircuitBreakerConfigFile config = new CircuitBreakerConfigFile(file, 0);
+		config.register("downstream", policy);
+		config.register("other", other);
+		
+		policy.failedBlacklistedCall(null);
+		policy.failedBlacklistedCall(null);
+		
+		// the failures counted so far are kept
+		write("downstream.tripThreshold=3\ndownstream.halfOpenTimeout=10\nunregistered.tripThreshold=1\n");
+		assertTrue(config.reload());
+		assertEquals(3, policy.tripThreshold);
+		assertEquals(10, policy.halfOpenTimeout);
+		assertEquals(60, policy.thresholdWindow);
+		assertEquals(5, other.tripThreshold);
+		policy.failedBlacklistedCall(null);
+		assertEquals(CircuitBreakerState.OPEN, policy.getCurrentState());
+		
+		// one invalid setting rejects the whole file
+		write("downstream.tripThreshold=7\nother.tripThreshold=2\nother.backoffJitter=1.5\n");
+		assertFalse(config.reload());
+		assertEquals(3, policy.tripThreshold);
+		assertEquals(5, other.tripThreshold);
+		
+		write("downstream.tripThreshold=7\nother.tripThresold=2\n");
+		assertFalse(config.reload());
+		assertEquals(3, policy.tripThreshold);
+		
+		write("downstream.tripThreshold=seven\n");
+		assertFalse(config.reload());
+		assertEquals(3, policy.tripThreshold);
+		assertEquals(CircuitBreakerState.OPEN, policy.getCurrentState());
+		
+		config.close();
+	}
+	
+	public void testReconfigureKeepsBackoff() throws Exception {
+		BaseCircuitBreakerPolicyImpl policy = new BaseCircuitBreakerPolicyImpl(5, 30, 60, 2.0, 300, 0.1, 600, null);
+		policy.reconfigure(3, 20, 120);
+		assertEquals(3, policy.tripThreshold);
+		assertEquals(20, policy.halfOpenTimeout);
+		assertEquals(120, policy.thresholdWindow);
+		assertEquals(2.0, policy.backoffMultiplier);
+		assertEquals(300, policy.maxHalfOpenTimeout);
+		assertEquals(0.1, policy.backoffJitter);
+		assertEquals(600, policy.backoffResetPeriod);
+		
+		// the maximum can't be below the half open timeout
+		policy.reconfigure(3, 400, 120);
+		assertEquals(400, policy.maxHalfOpenTimeout);
+		
+		// and follows it for a policy that doesn't back off
+		BaseCircuitBreakerPolicyImpl constant = new BaseCircuitBreakerPolicyImpl(5, 30, 60);
+		constant.reconfigure(5, 10, 60);
+		assertEquals(10, constant.maxHalfOpenTimeout);
+		assertEquals(1.0, constant.backoffMultiplier);
+	}
+	
+	private static int tripThreshold(BaseCircuitBreakerPolicyImpl policy) {
+		synchronized (policy) {
+			return policy.tripThreshold;
+		}
+	}
+	
+	public void testWatch() throws Exception {
+		BaseCircuitBreakerPolicyImpl policy = new BaseCircuitBreakerPolicyImpl(5, 30, 60);
+		CircuitBreakerConfigFile config = new CircuitBreakerConfigFile(file, 10);
+		config.register("downstream", policy);
+		
+		write("downstream.tripThreshold=42\n");
+		long deadline = System.currentTimeMillis() + 10000;
+		while( tripThreshold(policy) != 42 && System.currentTimeMillis() < deadline ) {
+			Thread.sleep(10);
+		}
+		assertEquals(42, tripThreshold(policy));
+		config.close();
+	}
+}
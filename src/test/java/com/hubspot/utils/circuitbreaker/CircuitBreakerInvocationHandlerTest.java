@@ -18,9 +18,16 @@
 package com.hubspot.utils.circuitbreaker;
 
 import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 import com.hubspot.utils.circuitbreaker.CircuitBreakerPolicy.CircuitBreakerState;
@@ -76,6 +83,300 @@ public class CircuitBreakerInvocationHandlerTest extends TestCase {
 		}
 	}
 	
+	static interface RateLimitedInterface {
+		@CircuitBreakerExceptionBlacklist(blacklist={NullPointerException.class})
+		@CircuitBreakerRateLimit(permitsPerSecond=0.01, burst=2)
+		String limitedMethod(String s) throws CircuitBreakerException;
+	}
+	
+	static class RateLimitedImpl implements RateLimitedInterface {
+		@Override
+		public String limitedMethod(String s) {
+			return s;
+		}
+	}
+	
+	static class NegativeStatusClassifier implements ResultClassifier<Integer> {
+		@Override
+		public boolean isFailure(Integer result) {
+			return result < 0;
+		}
+	}
+	
+	static interface StatusInterface {
+		@CircuitBreakerExceptionBlacklist(blacklist={})
+		@CircuitBreakerResultClassifier(NegativeStatusClassifier.class)
+		int annotatedStatus(int status) throws CircuitBreakerException;
+		
+		@CircuitBreakerExceptionBlacklist(blacklist={})
+		String registeredStatus(String status) throws CircuitBreakerException;
+	}
+	
+	static class StatusImpl implements StatusInterface {
+		@Override
+		public int annotatedStatus(int status) {
+			return status;
+		}
+		
+		@Override
+		public String registeredStatus(String status) {
+			return status;
+		}
+	}
+	
+	static interface FallbackInterface {
+		@CircuitBreakerExceptionBlacklist(blacklist={NullPointerException.class})
+		@CircuitBreakerFallback(FallbackImpl.class)
+		String lookup(String key) throws CircuitBreakerException;
+		
+		@CircuitBreakerExceptionBlacklist(blacklist={NullPointerException.class})
+		String registeredLookup(String key) throws CircuitBreakerException;
+	}
+	
+	static class FailingImpl implements FallbackInterface {
+		@Override
+		public String lookup(String key) {
+			throw new NullPointerException();
+		}
+		
+		@Override
+		public String registeredLookup(String key) {
+			throw new NullPointerException();
+		}
+	}
+	
+	static class FallbackImpl implements FallbackInterface {
+		@Override
+		public String lookup(String key) {
+			return "fallback " + key;
+		}
+		
+		@Override
+		public String registeredLookup(String key) {
+			return "registered " + key;
+		}
+	}
+	
+	static interface CachedInterface {
+		@CircuitBreakerExceptionBlacklist(blacklist={NullPointerException.class})
+		@CircuitBreakerResponseCache(maxEntries=10, ttlSeconds=60)
+		String lookup(String key) throws CircuitBreakerException;
+	}
+	
+	static class FlakyCachedImpl implements CachedInterface {
+		boolean failing = false;
+		
+		@Override
+		public String lookup(String key) {
+			if (failing) {
+				throw new NullPointerException();
+			}
+			return "value " + key;
+		}
+	}
+	
+	static interface SingleFlightInterface {
+		@CircuitBreakerExceptionBlacklist(blacklist={NullPointerException.class})
+		@CircuitBreakerSingleFlight
+		String getById(int id) throws CircuitBreakerException;
+	}
+	
+	static class BlockingImpl implements SingleFlightInterface {
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger calls = new AtomicInteger();
+		
+		@Override
+		public String getById(int id) {
+			calls.incrementAndGet();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return "value " + id;
+		}
+	}
+	
+	static interface BatchedInterface {
+		@CircuitBreakerExceptionBlacklist(blacklist={NullPointerException.class})
+		@CircuitBreakerBatch(bulkMethod="getMany", maxBatchSize=5, windowMillis=10000)
+		String get(int id) throws CircuitBreakerException;
+		Map<Integer, String> getMany(List<Integer> ids);
+	}
+	
+	static interface ShortWindowBatchedInterface {
+		@CircuitBreakerExceptionBlacklist(blacklist={NullPointerException.class})
+		@CircuitBreakerBatch(bulkMethod="getMany", maxBatchSize=5, windowMillis=1000)
+		String get(int id) throws CircuitBreakerException;
+		Map<Integer, String> getMany(List<Integer> ids);
+	}
+	
+	static class BulkImpl implements BatchedInterface, ShortWindowBatchedInterface {
+		final List<List<Integer>> bulkCalls = new ArrayList<List<Integer>>();
+		volatile boolean failing = false;
+		
+		@Override
+		public String get(int id) {
+			throw new UnsupportedOperationException();
+		}
+		
+		@Override
+		public synchronized Map<Integer, String> getMany(List<Integer> ids) {
+			bulkCalls.add(ids);
+			if (failing) {
+				throw new NullPointerException();
+			}
+			Map<Integer, String> values = new HashMap<Integer, String>();
+			for (Integer id : ids) {
+				values.put(id, "value " + id);
+			}
+			return values;
+		}
+	}
+	
+	static interface PrimitiveBatchedInterface {
+		@CircuitBreakerExceptionBlacklist(blacklist={NullPointerException.class})
+		@CircuitBreakerBatch(bulkMethod="countMany", maxBatchSize=1, windowMillis=0)
+		int count(int id) throws CircuitBreakerException;
+		Map<Integer, Integer> countMany(List<Integer> ids);
+	}
+	
+	static class PartialBulkImpl implements PrimitiveBatchedInterface {
+		@Override
+		public int count(int id) {
+			throw new UnsupportedOperationException();
+		}
+		
+		@Override
+		public Map<Integer, Integer> countMany(List<Integer> ids) {
+			// only knows about even ids
+			Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+			for (Integer id : ids) {
+				if (id % 2 == 0) {
+					counts.put(id, id * 10);
+				}
+			}
+			return counts;
+		}
+	}
+	
+	static interface RetriedInterface {
+		@CircuitBreakerExceptionBlacklist(blacklist={NullPointerException.class})
+		@CircuitBreakerIdempotent
+		@CircuitBreakerRetry(maxAttempts=3, initialBackoffMillis=1, maxBackoffMillis=5)
+		String get() throws CircuitBreakerException;
+	}
+	
+	static class FailingTwiceImpl implements RetriedInterface {
+		final AtomicInteger calls = new AtomicInteger();
+		
+		@Override
+		public String get() {
+			if (calls.incrementAndGet() % 3 != 0) {
+				throw new NullPointerException();
+			}
+			return "success";
+		}
+	}
+	
+	static interface HedgedInterface {
+		@CircuitBreakerExceptionBlacklist(blacklist={NullPointerException.class})
+		@CircuitBreakerIdempotent
+		@CircuitBreakerHedge(delayMillis=20)
+		String get() throws CircuitBreakerException;
+	}
+	
+	static class SlowFirstImpl implements HedgedInterface {
+		final AtomicInteger calls = new AtomicInteger();
+		final CountDownLatch interrupted = new CountDownLatch(1);
+		volatile long slowMillis = 10000;
+		
+		@Override
+		public String get() {
+			if (calls.incrementAndGet() == 1) {
+				try {
+					Thread.sleep(slowMillis);
+				} catch (InterruptedException e) {
+					interrupted.countDown();
+					throw new IllegalStateException(e);
+				}
+				return "slow";
+			}
+			return "fast";
+		}
+	}
+	
+	static class HedgeCountingPolicy extends ZeroTimeoutPolicy implements HedgedCallListener {
+		final AtomicInteger successfulCalls = new AtomicInteger();
+		final AtomicInteger hedgedCalls = new AtomicInteger();
+		
+		@Override
+		public void successfulCall(Method m) {
+			successfulCalls.incrementAndGet();
+		}
+		
+		@Override
+		public void hedgedCall(Method m, boolean failed) {
+			hedgedCalls.incrementAndGet();
+		}
+	}
+	
+	static interface PartitionedInterface {
+		@CircuitBreakerExceptionBlacklist(blacklist={NullPointerException.class})
+		@CircuitBreakerPartition(argument=0, tripThreshold=2, halfOpenTimeout=1, maxKeys=10)
+		String get(String shard) throws CircuitBreakerException;
+	}
+	
+	static class BadShardImpl implements PartitionedInterface {
+		final AtomicInteger calls = new AtomicInteger();
+		
+		@Override
+		public String get(String shard) {
+			calls.incrementAndGet();
+			if (shard.equals("bad")) {
+				throw new NullPointerException();
+			}
+			return shard;
+		}
+	}
+	
+	static interface PrioritizedInterface {
+		@CircuitBreakerExceptionBlacklist(blacklist={NullPointerException.class})
+		@CircuitBreakerPriority(CallPriority.SHEDDABLE)
+		String background() throws CircuitBreakerException;
+		
+		@CircuitBreakerExceptionBlacklist(blacklist={NullPointerException.class})
+		String foreground() throws CircuitBreakerException;
+	}
+	
+	static class PrioritizedImpl implements PrioritizedInterface {
+		@Override
+		public String background() {
+			return "background";
+		}
+		
+		@Override
+		public String foreground() {
+			return "foreground";
+		}
+	}
+	
+	static interface DeadlineInterface {
+		@CircuitBreakerExceptionBlacklist(blacklist={NullPointerException.class})
+		@CircuitBreakerExpectedLatency(millis=50)
+		long remainingMillis() throws CircuitBreakerException;
+	}
+	
+	static class DeadlineImpl implements DeadlineInterface {
+		int calls = 0;
+		
+		@Override
+		public long remainingMillis() {
+			calls++;
+			return Deadline.current().remaining(TimeUnit.MILLISECONDS);
+		}
+	}
+	
 	static interface BadBreakerInterface {
 
 		@CircuitBreakerExceptionBlacklist(blacklist={NullPointerException.class})
@@ -414,5 +715,811 @@ public class CircuitBreakerInvocationHandlerTest extends TestCase {
 		
 	}
 	
-}
+	/**
+	 * Tests that consecutive trips back off the open duration up to the cap, and that
+	 * a long enough healthy period resets the backoff
+	 */
+	public void testPolicyBackoff() throws Exception {
+		int retryTimeout = 10;
+		
+		BaseCircuitBreakerPolicyImpl p = new BaseCircuitBreakerPolicyImpl(1, retryTimeout, retryTimeout, 2.0, 30, 0.0, 3600, null);
+		p.failedBlacklistedCall(null);
+		assertEquals(CircuitBreakerState.OPEN, p.getCurrentState());
+		assertEquals(10000, p.getOpenDurationMillis());
+		
+		// failing the HALF_OPEN probe doubles the open duration
+		Calendar c = Calendar.getInstance();
+		c.add(Calendar.SECOND, retryTimeout + 1);
+		assertTrue(p.shouldAttemptReset(c.getTime()));
+		p.failedBlacklistedCall(null);
+		assertEquals(CircuitBreakerState.OPEN, p.getCurrentState());
+		assertEquals(20000, p.getOpenDurationMillis());
+		
+		// still inside the backed off window we should remain OPEN
+		assertFalse(p.shouldAttemptReset(c.getTime()));
+		
+		// a short healthy period doesn't reset the backoff, and we never exceed the cap
+		c = Calendar.getInstance();
+		c.add(Calendar.SECOND, 2 * retryTimeout + 1);
+		assertTrue(p.shouldAttemptReset(c.getTime()));
+		p.successfulCall(null);
+		p.failedBlacklistedCall(null);
+		assertEquals(30000, p.getOpenDurationMillis());
+		
+		// with no reset period, a successful close forgives previous trips
+		p = new BaseCircuitBreakerPolicyImpl(1, retryTimeout, retryTimeout, 2.0, 30, 0.0, 0, null);
+		p.failedBlacklistedCall(null);
+		c = Calendar.getInstance();
+		c.add(Calendar.SECOND, retryTimeout + 1);
+		assertTrue(p.shouldAttemptReset(c.getTime()));
+		p.successfulCall(null);
+		p.failedBlacklistedCall(null);
+		assertEquals(10000, p.getOpenDurationMillis());
+		
+		// jitter only ever shortens the open duration
+		p = new BaseCircuitBreakerPolicyImpl(1, retryTimeout, retryTimeout, 2.0, 30, 0.5, 0, null);
+		p.failedBlacklistedCall(null);
+		assertTrue(p.getOpenDurationMillis() <= 10000);
+		assertTrue(p.getOpenDurationMillis() >= 5000);
+	}
+	
+	/**
+	 * Tests that gates can reject calls the breaker lets through, and that the
+	 * slow start gate ramps up after the breaker closes
+	 */
+	public void testSlowStartGate() throws Exception {
+		SlowStartGate gate = new SlowStartGate(10, 0.1, SlowStartGate.RampShape.LINEAR);
+		assertFalse(gate.isRamping());
+		assertEquals(0.1, gate.getAdmittedFraction(0), 0.0001);
+		assertEquals(0.55, gate.getAdmittedFraction(5000000000L), 0.0001);
+		assertEquals(1.0, gate.getAdmittedFraction(10000000000L), 0.0001);
+		
+		gate = new SlowStartGate(10, 0.1, SlowStartGate.RampShape.EXPONENTIAL);
+		assertEquals(0.1, gate.getAdmittedFraction(0), 0.0001);
+		assertEquals(Math.sqrt(0.1), gate.getAdmittedFraction(5000000000L), 0.0001);
+		
+		// the ramp starts when the breaker closes again
+		BaseCircuitBreakerPolicyImpl p = new BaseCircuitBreakerPolicyImpl(1, 1, 10);
+		p.attachHandler(gate);
+		p.failedBlacklistedCall(null);
+		assertFalse(gate.isRamping());
+		Calendar c = Calendar.getInstance();
+		c.add(Calendar.SECOND, 2);
+		p.shouldAttemptReset(c.getTime());
+		p.successfulCall(MockInvocationTestInterface.class.getMethod("breakerMethod", String.class));
+		assertTrue(gate.isRamping());
+		
+		// calls turned away by a gate fail with a CircuitBreakerException
+		MockInvocationTestInterface mi = new MockInvocationTestImpl(0);
+		CircuitBreakerOptions options = new CircuitBreakerOptions();
+		options.addGate(new CircuitBreakerGate() {
+			@Override
+			public boolean admit(Method m) {
+				return false;
+			}
+			
+			@Override
+			public void release(Method m, long latencyNanos, boolean failed) {
+				fail("Rejected calls should not be released");
+			}
+			
+			@Override
+			public RejectionReason getRejectionReason() {
+				return RejectionReason.SLOW_START;
+			}
+		});
+		mi = CircuitBreakerWrapper.getCircuitBreakerWrapperInstance().wrap(mi, MockInvocationTestInterface.class, new ZeroTimeoutPolicy(), options);
+		assertEquals("HELLO", mi.nonBreakerMethod("HELLO"));
+		try {
+			mi.breakerMethod("HELLO");
+			fail("Gate should have rejected the call");
+		} catch( CircuitBreakerException e) {
+			// ok
+		}
+	}
+	
+	/**
+	 * Tests the token bucket arithmetic, and that rate limited calls are rejected and
+	 * show up in the metrics and rejection notifications
+	 */
+	public void testRateLimiter() throws Exception {
+		TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(10, 2, 0);
+		long now = System.nanoTime();
+		assertEquals(0, limiter.tryAcquire(now));
+		assertEquals(0, limiter.tryAcquire(now));
+		assertEquals(-1, limiter.tryAcquire(now));
+		
+		// a token is refilled every 100ms
+		assertEquals(0, limiter.tryAcquire(now + 100000000L));
+		assertEquals(-1, limiter.tryAcquire(now + 100000000L));
+		
+		// waiting callers are granted tokens in the future, up to the maximum wait
+		limiter = new TokenBucketRateLimiter(10, 1, 150);
+		now = System.nanoTime();
+		assertEquals(0, limiter.tryAcquire(now));
+		assertEquals(100000000L, limiter.tryAcquire(now));
+		assertEquals(-1, limiter.tryAcquire(now));
+		
+		CircuitBreakerOptions options = new CircuitBreakerOptions();
+		final List<CallRejection> rejections = new ArrayList<CallRejection>();
+		options.getMetrics().attachHandler(new NotificationHandler<CallRejection>() {
+			@Override
+			public void onChanged(CallRejection event) {
+				rejections.add(event);
+			}
+		});
+		RateLimitedInterface obj = CircuitBreakerWrapper.getCircuitBreakerWrapperInstance().wrap(new RateLimitedImpl(), RateLimitedInterface.class, new ZeroTimeoutPolicy(), options);
+		assertEquals("HELLO", obj.limitedMethod("HELLO"));
+		assertEquals("HELLO", obj.limitedMethod("HELLO"));
+		try {
+			obj.limitedMethod("HELLO");
+			fail("Call should have been rate limited");
+		} catch (CircuitBreakerException e) {
+			assertEquals(RejectionReason.RATE_LIMITED, e.getReason());
+		}
+		
+		assertEquals(2, options.getMetrics().getSuccessfulCalls());
+		assertEquals(1, options.getMetrics().getRejectedCalls(RejectionReason.RATE_LIMITED));
+		assertEquals(1, rejections.size());
+		assertEquals(RejectionReason.RATE_LIMITED, rejections.get(0).getReason());
+	}
+	
+	/**
+	 * Tests that returned values classified as failures trip the breaker while
+	 * still being returned to the caller
+	 */
+	public void testResultClassifier() throws Exception {
+		CircuitBreakerWrapper cbw = CircuitBreakerWrapper.getCircuitBreakerWrapperInstance();
+		CircuitBreakerOptions options = new CircuitBreakerOptions();
+		options.setResultClassifier(StatusInterface.class.getMethod("registeredStatus", String.class), new ResultClassifier<String>() {
+			@Override
+			public boolean isFailure(String result) {
+				return "ERROR".equals(result);
+			}
+		});
+		ZeroTimeoutPolicy policy = new ZeroTimeoutPolicy();
+		StatusInterface obj = cbw.wrap(new StatusImpl(), StatusInterface.class, policy, options);
+		
+		assertEquals(0, obj.annotatedStatus(0));
+		assertEquals("OK", obj.registeredStatus("OK"));
+		assertEquals(CircuitBreakerState.CLOSED, policy.getCurrentState());
+		
+		assertEquals(-1, obj.annotatedStatus(-1));
+		assertEquals(CircuitBreakerState.OPEN, policy.getCurrentState());
+		try {
+			obj.annotatedStatus(0);
+			fail("Circuit breaker SHOULD be tripped at this point");
+		} catch (CircuitBreakerException e) {
+			// ok
+		}
+		
+		policy.setState(CircuitBreakerState.CLOSED);
+		assertEquals("ERROR", obj.registeredStatus("ERROR"));
+		assertEquals(CircuitBreakerState.OPEN, policy.getCurrentState());
+		assertEquals(2, options.getMetrics().getFailedCalls());
+		assertEquals(2, options.getMetrics().getSuccessfulCalls());
+	}
+	
+	/**
+	 * Tests that fallbacks are served when a call fails with a blacklisted exception
+	 * and when it is rejected
+	 */
+	public void testFallback() throws Exception {
+		CircuitBreakerWrapper cbw = CircuitBreakerWrapper.getCircuitBreakerWrapperInstance();
+		ZeroTimeoutPolicy policy = new ZeroTimeoutPolicy();
+		CircuitBreakerOptions options = new CircuitBreakerOptions();
+		options.setFallback(FallbackInterface.class.getMethod("registeredLookup", String.class), new FallbackImpl());
+		FallbackInterface obj = cbw.wrap(new FailingImpl(), FallbackInterface.class, policy, options);
+		
+		// failed call, trips the breaker
+		assertEquals("fallback a", obj.lookup("a"));
+		assertEquals(CircuitBreakerState.OPEN, policy.getCurrentState());
+		
+		// rejected calls
+		assertEquals("fallback b", obj.lookup("b"));
+		assertEquals("registered c", obj.registeredLookup("c"));
+		
+		assertEquals(1, options.getMetrics().getFailedCalls());
+		assertEquals(2, options.getMetrics().getRejectedCalls(RejectionReason.BREAKER_OPEN));
+		assertEquals(3, options.getMetrics().getFallbackCalls());
+		
+		// fallbacks must match the method they stand in for
+		options = new CircuitBreakerOptions();
+		options.setFallback(FallbackInterface.class.getMethod("lookup", String.class), new Object());
+		try {
+			cbw.wrap(new FailingImpl(), FallbackInterface.class, policy, options);
+			fail("Fallback without a matching method should not wrap");
+		} catch (CircuitBreakerWrappingException e) {
+			// ok
+		}
+	}
 	
+	/**
+	 * Tests that last known good values are served when calls fail or are rejected,
+	 * and that the cache stays within its bounds
+	 */
+	public void testResponseCache() throws Exception {
+		FlakyCachedImpl impl = new FlakyCachedImpl();
+		ZeroTimeoutPolicy policy = new ZeroTimeoutPolicy();
+		CircuitBreakerOptions options = new CircuitBreakerOptions();
+		CachedInterface obj = CircuitBreakerWrapper.getCircuitBreakerWrapperInstance().wrap(impl, CachedInterface.class, policy, options);
+		
+		assertEquals("value a", obj.lookup("a"));
+		impl.failing = true;
+		
+		// failed call, trips the breaker
+		assertEquals("value a", obj.lookup("a"));
+		assertEquals(CircuitBreakerState.OPEN, policy.getCurrentState());
+		
+		// rejected call
+		assertEquals("value a", obj.lookup("a"));
+		assertEquals(2, options.getMetrics().getCachedCalls());
+		
+		// nothing to serve for arguments we haven't seen
+		try {
+			obj.lookup("b");
+			fail("Circuit breaker SHOULD be tripped at this point");
+		} catch (CircuitBreakerException e) {
+			// ok
+		}
+		
+		// the number of entries is bounded, in the background
+		ResponseCache cache = new ResponseCache(10, 0, 60, 0);
+		for (int i = 0; i < 100; i++) {
+			cache.put(new Object[] { i }, "value " + i);
+		}
+		long deadline = System.currentTimeMillis() + 10000;
+		while (cache.size() > 10 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertTrue(cache.size() <= 10);
+		assertNotNull(cache.get(new Object[] { 99 }));
+		assertNull(cache.get(new Object[] { 0 }));
+		assertTrue(cache.getEstimatedBytes() > 0);
+		
+		// and so is memory
+		cache = new ResponseCache(1000, 10000, 60, 0);
+		for (int i = 0; i < 1000; i++) {
+			cache.put(new Object[] { i }, "value " + i);
+		}
+		deadline = System.currentTimeMillis() + 10000;
+		while (cache.getEstimatedBytes() > 10000 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertTrue(cache.getEstimatedBytes() <= 10000);
+	}
+	
+	/**
+	 * Tests that concurrent calls with equal arguments share a single call and its outcome
+	 */
+	public void testSingleFlight() throws Exception {
+		BlockingImpl impl = new BlockingImpl();
+		CircuitBreakerOptions options = new CircuitBreakerOptions();
+		final SingleFlightInterface obj = CircuitBreakerWrapper.getCircuitBreakerWrapperInstance().wrap(impl, SingleFlightInterface.class, new ZeroTimeoutPolicy(), options);
+		
+		final List<String> results = new ArrayList<String>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 10; i++) {
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						String result = obj.getById(42);
+						synchronized (results) {
+							results.add(result);
+						}
+					} catch (CircuitBreakerException e) {
+						fail();
+					}
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+		
+		// wait until everybody but the leader has joined the call in flight
+		long deadline = System.currentTimeMillis() + 10000;
+		while (options.getMetrics().getCoalescedCalls() < 9 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		impl.release.countDown();
+		for (Thread t : threads) {
+			t.join();
+		}
+		
+		assertEquals(1, impl.calls.get());
+		assertEquals(10, results.size());
+		for (String result : results) {
+			assertEquals("value 42", result);
+		}
+		assertEquals(1, options.getMetrics().getSuccessfulCalls());
+		assertEquals(9, options.getMetrics().getCoalescedCalls());
+		
+		// calls that aren't concurrent aren't coalesced
+		assertEquals("value 43", obj.getById(43));
+		assertEquals(2, impl.calls.get());
+	}
+	
+	
+	public void testSingleFlightRespectsCallersDeadlineAndPriority() throws Exception {
+		BlockingImpl impl = new BlockingImpl();
+		CircuitBreakerOptions options = new CircuitBreakerOptions();
+		final SingleFlightInterface obj = CircuitBreakerWrapper.getCircuitBreakerWrapperInstance().wrap(impl, SingleFlightInterface.class, new ZeroTimeoutPolicy(), options);
+		
+		// the leader is SHEDDABLE and in a hurry
+		Thread leader = new Thread() {
+			@Override
+			public void run() {
+				CallPriority previousPriority = CallPriority.enter(CallPriority.SHEDDABLE);
+				Deadline previousDeadline = Deadline.enter(Deadline.after(5, TimeUnit.SECONDS));
+				try {
+					obj.getById(42);
+				} catch (CircuitBreakerException e) {
+					// not what we're checking
+				} finally {
+					Deadline.restore(previousDeadline);
+					CallPriority.restore(previousPriority);
+				}
+			}
+		};
+		leader.start();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (impl.calls.get() < 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		
+		// a CRITICAL caller without a deadline makes its own call
+		Thread critical = new Thread() {
+			@Override
+			public void run() {
+				CallPriority previous = CallPriority.enter(CallPriority.CRITICAL);
+				try {
+					obj.getById(42);
+				} catch (CircuitBreakerException e) {
+					// not what we're checking
+				} finally {
+					CallPriority.restore(previous);
+				}
+			}
+		};
+		critical.start();
+		while (impl.calls.get() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(2, impl.calls.get());
+		assertEquals(0, options.getMetrics().getCoalescedCalls());
+		
+		// while a SHEDDABLE caller in a bigger hurry joins the leader's call
+		Thread sheddable = new Thread() {
+			@Override
+			public void run() {
+				CallPriority previousPriority = CallPriority.enter(CallPriority.SHEDDABLE);
+				Deadline previousDeadline = Deadline.enter(Deadline.after(1, TimeUnit.SECONDS));
+				try {
+					obj.getById(42);
+				} catch (CircuitBreakerException e) {
+					// not what we're checking
+				} finally {
+					Deadline.restore(previousDeadline);
+					CallPriority.restore(previousPriority);
+				}
+			}
+		};
+		sheddable.start();
+		while (options.getMetrics().getCoalescedCalls() < 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(1, options.getMetrics().getCoalescedCalls());
+		
+		impl.release.countDown();
+		leader.join();
+		critical.join();
+		sheddable.join();
+		assertEquals(2, impl.calls.get());
+	}
+	
+	private static Thread getInBatch(final ShortWindowBatchedInterface obj, final int id, final CallPriority priority, final long deadlineSeconds) {
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				CallPriority previousPriority = CallPriority.enter(priority);
+				Deadline previousDeadline = Deadline.enter(deadlineSeconds > 0 ? Deadline.after(deadlineSeconds, TimeUnit.SECONDS) : null);
+				try {
+					obj.get(id);
+				} catch (CircuitBreakerException e) {
+					// not what we're checking
+				} finally {
+					Deadline.restore(previousDeadline);
+					CallPriority.restore(previousPriority);
+				}
+			}
+		};
+		t.start();
+		return t;
+	}
+	
+	private static void awaitState(Thread t, Thread.State state) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (t.getState() != state && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(state, t.getState());
+	}
+	
+	public void testBatchingRespectsCallersDeadlineAndPriority() throws Exception {
+		BulkImpl impl = new BulkImpl();
+		CircuitBreakerOptions options = new CircuitBreakerOptions();
+		ShortWindowBatchedInterface obj = CircuitBreakerWrapper.getCircuitBreakerWrapperInstance().wrap(impl, ShortWindowBatchedInterface.class, new ZeroTimeoutPolicy(), options);
+		
+		// the leader is SHEDDABLE and in a hurry
+		Thread leader = getInBatch(obj, 1, CallPriority.SHEDDABLE, 5);
+		awaitState(leader, Thread.State.TIMED_WAITING);
+		
+		// a CRITICAL caller without a deadline doesn't join its batch, but leads one of its own
+		Thread critical = getInBatch(obj, 2, CallPriority.CRITICAL, 0);
+		awaitState(critical, Thread.State.TIMED_WAITING);
+		assertEquals(0, options.getMetrics().getBatchedCalls());
+		
+		// which a SHEDDABLE caller in a bigger hurry joins
+		Thread sheddable = getInBatch(obj, 3, CallPriority.SHEDDABLE, 1);
+		awaitState(sheddable, Thread.State.WAITING);
+		assertEquals(1, options.getMetrics().getBatchedCalls());
+		
+		leader.join();
+		critical.join();
+		sheddable.join();
+		assertEquals(2, impl.bulkCalls.size());
+		assertEquals(Arrays.asList(1), impl.bulkCalls.get(0));
+		assertEquals(Arrays.asList(2, 3), impl.bulkCalls.get(1));
+	}
+	
+	public void testBatching() throws Exception {
+		BulkImpl impl = new BulkImpl();
+		CircuitBreakerOptions options = new CircuitBreakerOptions();
+		final BatchedInterface obj = CircuitBreakerWrapper.getCircuitBreakerWrapperInstance().wrap(impl, BatchedInterface.class, new ZeroTimeoutPolicy(), options);
+		
+		// five concurrent calls fill up a batch and are served by one bulk call
+		final Map<Integer, Object> results = new HashMap<Integer, Object>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 5; i++) {
+			final int id = i;
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					Object result;
+					try {
+						result = obj.get(id);
+					} catch (Exception e) {
+						result = e;
+					}
+					synchronized (results) {
+						results.put(id, result);
+					}
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		
+		assertEquals(1, impl.bulkCalls.size());
+		assertEquals(5, impl.bulkCalls.get(0).size());
+		for (int i = 0; i < 5; i++) {
+			assertEquals("value " + i, results.get(i));
+		}
+		assertEquals(1, options.getMetrics().getSuccessfulCalls());
+		assertEquals(4, options.getMetrics().getBatchedCalls());
+		
+		// a failed bulk call fails every caller, but counts once
+		impl.failing = true;
+		results.clear();
+		threads.clear();
+		for (int i = 0; i < 5; i++) {
+			final int id = i;
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					Object result;
+					try {
+						result = obj.get(id);
+					} catch (Exception e) {
+						result = e;
+					}
+					synchronized (results) {
+						results.put(id, result);
+					}
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		
+		assertEquals(2, impl.bulkCalls.size());
+		for (int i = 0; i < 5; i++) {
+			assertTrue(results.get(i) instanceof NullPointerException);
+		}
+		assertEquals(1, options.getMetrics().getFailedCalls());
+	}
+
+	
+	public void testBatchingMissingPrimitive() throws Exception {
+		PrimitiveBatchedInterface obj = CircuitBreakerWrapper.getCircuitBreakerWrapperInstance().wrap(new PartialBulkImpl(), PrimitiveBatchedInterface.class, new ZeroTimeoutPolicy());
+		assertEquals(20, obj.count(2));
+		try {
+			obj.count(3);
+			fail();
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage().contains("countMany returned no value for key 3"));
+		}
+	}
+	
+	public void testRetry() throws Exception {
+		FailingTwiceImpl impl = new FailingTwiceImpl();
+		CircuitBreakerOptions options = new CircuitBreakerOptions();
+		options.setRetryBudget(new RetryBudget(0.0, 3));
+		BaseCircuitBreakerPolicyImpl p = new BaseCircuitBreakerPolicyImpl(10, 600, 600);
+		RetriedInterface obj = CircuitBreakerWrapper.getCircuitBreakerWrapperInstance().wrap(impl, RetriedInterface.class, p, options);
+		
+		// the first two attempts fail, the third succeeds
+		assertEquals("success", obj.get());
+		assertEquals(3, impl.calls.get());
+		assertEquals(2, options.getMetrics().getRetriedCalls());
+		assertEquals(2, options.getMetrics().getFailedCalls());
+		
+		// one retry left in the budget
+		try {
+			obj.get();
+			fail();
+		} catch (NullPointerException e) {
+		}
+		assertEquals(5, impl.calls.get());
+		assertEquals(3, options.getMetrics().getRetriedCalls());
+		assertEquals(0.0, options.getRetryBudget().getBalance());
+		
+		// no retries once the breaker has tripped
+		impl.calls.set(0);
+		options = new CircuitBreakerOptions();
+		obj = CircuitBreakerWrapper.getCircuitBreakerWrapperInstance().wrap(impl, RetriedInterface.class, new ZeroTimeoutPolicy(), options);
+		try {
+			obj.get();
+			fail();
+		} catch (NullPointerException e) {
+		}
+		assertEquals(1, impl.calls.get());
+		assertEquals(0, options.getMetrics().getRetriedCalls());
+	}
+
+	
+	public void testHedging() throws Exception {
+		SlowFirstImpl impl = new SlowFirstImpl();
+		HedgeCountingPolicy p = new HedgeCountingPolicy();
+		p.state = CircuitBreakerState.CLOSED;
+		CircuitBreakerOptions options = new CircuitBreakerOptions();
+		HedgedInterface obj = CircuitBreakerWrapper.getCircuitBreakerWrapperInstance().wrap(impl, HedgedInterface.class, p, options);
+		
+		// the first call is slow, so the hedged call wins and the first one is cancelled
+		long start = System.currentTimeMillis();
+		assertEquals("fast", obj.get());
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertTrue(impl.interrupted.await(5, TimeUnit.SECONDS));
+		assertEquals(2, impl.calls.get());
+		assertEquals(1, options.getMetrics().getHedgedCalls());
+		
+		// the hedged call is reported separately, and its success once as that of the call; 
+		// the cancelled one not at all
+		assertEquals(1, p.hedgedCalls.get());
+		assertEquals(1, p.successfulCalls.get());
+		assertEquals(1, options.getMetrics().getSuccessfulCalls());
+		assertEquals(0, options.getMetrics().getFailedCalls());
+		
+		// fast calls aren't hedged
+		assertEquals("fast", obj.get());
+		assertEquals(3, impl.calls.get());
+		assertEquals(1, options.getMetrics().getHedgedCalls());
+		assertEquals(2, p.successfulCalls.get());
+		assertEquals(2, options.getMetrics().getSuccessfulCalls());
+		
+		// nor are calls once the budget is exhausted
+		impl.calls.set(0);
+		impl.slowMillis = 100;
+		options = new CircuitBreakerOptions();
+		options.setHedgeBudget(new RetryBudget(0.0, 0));
+		obj = CircuitBreakerWrapper.getCircuitBreakerWrapperInstance().wrap(impl, HedgedInterface.class, p, options);
+		assertEquals("slow", obj.get());
+		assertEquals(1, impl.calls.get());
+		assertEquals(0, options.getMetrics().getHedgedCalls());
+	}
+
+	
+	public void testPartitionedBreaker() throws Exception {
+		BadShardImpl impl = new BadShardImpl();
+		ZeroTimeoutPolicy p = new ZeroTimeoutPolicy();
+		p.state = CircuitBreakerState.CLOSED;
+		PartitionedInterface obj = CircuitBreakerWrapper.getCircuitBreakerWrapperInstance().wrap(impl, PartitionedInterface.class, p);
+		PartitionedBreaker partitions = ((CircuitBreakerInvocationHandler) Proxy.getInvocationHandler(obj)).getPartitionedBreaker(PartitionedInterface.class.getMethod("get", String.class));
+		
+		// the bad shard trips on its own
+		for (int i = 0; i < 2; i++) {
+			try {
+				obj.get("bad");
+				fail();
+			} catch (NullPointerException e) {
+			}
+		}
+		assertEquals(CircuitBreakerState.OPEN, partitions.getState("bad"));
+		try {
+			obj.get("bad");
+			fail();
+		} catch (CircuitBreakerException e) {
+		}
+		assertEquals(2, impl.calls.get());
+		
+		// while the other shards, and the breaker itself, are unaffected
+		assertEquals("good", obj.get("good"));
+		assertEquals(CircuitBreakerState.CLOSED, partitions.getState("good"));
+		assertEquals(CircuitBreakerState.CLOSED, p.getCurrentState());
+		
+		// the bad shard is probed again after its half open timeout
+		Thread.sleep(1100);
+		try {
+			obj.get("bad");
+			fail();
+		} catch (NullPointerException e) {
+		}
+		assertEquals(4, impl.calls.get());
+		assertEquals(CircuitBreakerState.OPEN, partitions.getState("bad"));
+		
+		// the number of keys tracked is bounded, in the background
+		for (int i = 0; i < 100; i++) {
+			obj.get("shard " + i);
+		}
+		long deadline = System.currentTimeMillis() + 10000;
+		while (partitions.size() > 10 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertTrue(partitions.size() <= 10);
+		
+		// but a key that is OPEN isn't dropped before its half open timeout, which would reset it
+		assertEquals(CircuitBreakerState.OPEN, partitions.getState("bad"));
+	}
+
+	
+	public void testParentPolicy() throws Exception {
+		BaseCircuitBreakerPolicyImpl parent = new BaseCircuitBreakerPolicyImpl(2, 600, 600);
+		BaseCircuitBreakerPolicyImpl p1 = new BaseCircuitBreakerPolicyImpl(10, 600, 600);
+		BaseCircuitBreakerPolicyImpl p2 = new BaseCircuitBreakerPolicyImpl(10, 600, 600);
+		CircuitBreakerOptions options = new CircuitBreakerOptions();
+		options.setParentPolicy(parent);
+		
+		CircuitBreakerWrapper wrapper = CircuitBreakerWrapper.getCircuitBreakerWrapperInstance();
+		MockInvocationTestInterface obj1 = wrapper.wrap(new MockInvocationTestImpl(100), MockInvocationTestInterface.class, p1, options);
+		MockInvocationTestInterface obj2 = wrapper.wrap(new MockInvocationTestImpl(100), MockInvocationTestInterface.class, p2, options);
+		
+		// one failure from each child is enough to trip the parent
+		for (MockInvocationTestInterface obj : new MockInvocationTestInterface[] { obj1, obj2 }) {
+			try {
+				obj.breakerMethod("");
+				fail();
+			} catch (NullPointerException e) {
+			}
+		}
+		assertEquals(CircuitBreakerState.OPEN, parent.getCurrentState());
+		assertEquals(CircuitBreakerState.CLOSED, p1.getCurrentState());
+		assertEquals(CircuitBreakerState.CLOSED, p2.getCurrentState());
+		
+		// which short-circuits both children
+		for (MockInvocationTestInterface obj : new MockInvocationTestInterface[] { obj1, obj2 }) {
+			try {
+				obj.breakerMethod("");
+				fail();
+			} catch (CircuitBreakerException e) {
+			}
+		}
+		assertEquals(2, options.getMetrics().getRejectedCalls());
+	}
+
+	
+	public void testCallPriority() throws Exception {
+		ZeroTimeoutPolicy p = new ZeroTimeoutPolicy();
+		p.state = CircuitBreakerState.HALF_OPEN;
+		CircuitBreakerOptions options = new CircuitBreakerOptions();
+		PrioritizedInterface obj = CircuitBreakerWrapper.getCircuitBreakerWrapperInstance().wrap(new PrioritizedImpl(), PrioritizedInterface.class, p, options);
+		
+		// while HALF_OPEN, sheddable calls are turned away
+		try {
+			obj.background();
+			fail();
+		} catch (CircuitBreakerException e) {
+			assertEquals(RejectionReason.BREAKER_OPEN, e.getReason());
+		}
+		assertEquals("foreground", obj.foreground());
+		
+		// the thread's priority overrides the method's
+		p.state = CircuitBreakerState.HALF_OPEN;
+		CallPriority previous = CallPriority.enter(CallPriority.CRITICAL);
+		try {
+			assertEquals("background", obj.background());
+		} finally {
+			CallPriority.restore(previous);
+		}
+		
+		p.state = CircuitBreakerState.HALF_OPEN;
+		previous = CallPriority.enter(CallPriority.SHEDDABLE);
+		try {
+			obj.foreground();
+			fail();
+		} catch (CircuitBreakerException e) {
+		} finally {
+			CallPriority.restore(previous);
+		}
+		assertNull(CallPriority.current());
+		
+		// once CLOSED, everybody gets through
+		p.state = CircuitBreakerState.CLOSED;
+		assertEquals("background", obj.background());
+		assertEquals(2, options.getMetrics().getRejectedCalls());
+	}
+
+	
+	public void testDeadline() throws Exception {
+		DeadlineImpl impl = new DeadlineImpl();
+		ZeroTimeoutPolicy p = new ZeroTimeoutPolicy();
+		p.state = CircuitBreakerState.CLOSED;
+		CircuitBreakerOptions options = new CircuitBreakerOptions();
+		DeadlineInterface obj = CircuitBreakerWrapper.getCircuitBreakerWrapperInstance().wrap(impl, DeadlineInterface.class, p, options);
+		
+		// the target sees the time remaining
+		Deadline previous = Deadline.enter(Deadline.after(10, TimeUnit.SECONDS));
+		try {
+			long remaining = obj.remainingMillis();
+			assertTrue(remaining > 5000 && remaining <= 10000);
+			
+			// a later deadline doesn't extend the current one
+			Deadline outer = Deadline.enter(Deadline.after(1, TimeUnit.HOURS));
+			assertTrue(obj.remainingMillis() <= 10000);
+			Deadline.restore(outer);
+		} finally {
+			Deadline.restore(previous);
+		}
+		
+		// calls that can't complete before the deadline fail fast
+		previous = Deadline.enter(Deadline.after(20, TimeUnit.MILLISECONDS));
+		try {
+			obj.remainingMillis();
+			fail();
+		} catch (CircuitBreakerException e) {
+			assertEquals(RejectionReason.DEADLINE_EXCEEDED, e.getReason());
+		} finally {
+			Deadline.restore(previous);
+		}
+		assertEquals(2, impl.calls);
+		assertEquals(1, options.getMetrics().getRejectedCalls(RejectionReason.DEADLINE_EXCEEDED));
+		assertEquals(CircuitBreakerState.CLOSED, p.getCurrentState());
+		
+		// the deadline is carried over to other threads
+		previous = Deadline.enter(Deadline.after(10, TimeUnit.SECONDS));
+		final Deadline[] seen = new Deadline[1];
+		Runnable task;
+		try {
+			task = Deadline.propagate(new Runnable() {
+				@Override
+				public void run() {
+					seen[0] = Deadline.current();
+				}
+			});
+		} finally {
+			Deadline.restore(previous);
+		}
+		Thread t = new Thread(task);
+		t.start();
+		t.join();
+		assertNotNull(seen[0]);
+		assertNull(Deadline.current());
+	}
+
+}
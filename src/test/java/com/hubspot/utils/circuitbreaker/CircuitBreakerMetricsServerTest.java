@@ -0,0 +1,106 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks what CircuitBreakerMetricsServer serves
+ */
+public class CircuitBreakerMetricsServerTest extends TestCase {
+
+	private CircuitBreakerMetricsServer server;
+	private CircuitBreakerMetrics metrics;
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new CircuitBreakerMetricsServer(new InetSocketAddress("127.0.0.1", 0), 20);
+		metrics = new CircuitBreakerMetrics();
+		server.register("downstream \"one\"", new BaseCircuitBreakerPolicyImpl(5, 30, 60), metrics);
+		metrics.successfulCall(null);
+		metrics.successfulCall(null);
+		metrics.failedCall(null);
+		metrics.rejectedCall(null, RejectionReason.RATE_LIMITED);
+		metrics.callLatency(null, 3000000);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		server.close();
+	}
+	
+	private BufferedReader open(String path) throws Exception {
+		URL url = new URL("http", "127.0.0.1", server.getAddress().getPort(), path);
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setReadTimeout(10000);
+		assertEquals(200, connection.getResponseCode());
+		return new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+	}
+	
+	public void testPrometheus() throws Exception {
+		server.takeSnapshot();
+		BufferedReader in = open("/metrics");
+		StringBuilder body = new StringBuilder();
+		for( String line = in.readLine(); line != null; line = in.readLine() ) {
+			body.append(line).append('\n');
+		}
+		in.close();
+		
+		String text = body.toString();
+		assertTrue(text, text.contains("circuit_breaker_state{breaker=\"downstream \\\"one\\\"\",state=\"CLOSED\"} 1\n"));
+		assertTrue(text, text.contains("circuit_breaker_calls_total{breaker=\"downstream \\\"one\\\"\",outcome=\"success\"} 2\n"));
+		assertTrue(text, text.contains("circuit_breaker_calls_total{breaker=\"downstream \\\"one\\\"\",outcome=\"failure\"} 1\n"));
+		assertTrue(text, text.contains("circuit_breaker_rejected_calls_total{breaker=\"downstream \\\"one\\\"\",reason=\"RATE_LIMITED\"} 1\n"));
+		assertTrue(text, text.contains("circuit_breaker_latency_seconds{breaker=\"downstream \\\"one\\\"\",quantile=\"0.5\"} 0.003"));
+	}
+	
+	public void testSnapshotDecaysLatencies() throws Exception {
+		for( int i = 0; i < 10000; i++ ) {
+			metrics.callLatency(null, 1000000);
+		}
+		assertTrue(metrics.getLatencyPercentileNanos(0.5) < 2000000);
+		
+		// recording alone never halves the counts, the next snapshot does
+		server.takeSnapshot();
+		for( int i = 0; i < 6000; i++ ) {
+			metrics.callLatency(null, 3000000);
+		}
+		assertTrue(metrics.getLatencyPercentileNanos(0.5) > 2000000);
+	}
+	
+	public void testStream() throws Exception {
+		BufferedReader in = open("/stream");
+		for( int events = 0; events < 3; ) {
+			String line = in.readLine();
+			assertNotNull(line);
+			// the server may have taken its first snapshot before the breaker was registered
+			if( line.startsWith("data: ") && !line.endsWith("\"breakers\":[]}") ) {
+				assertTrue(line, line.contains("\"name\":\"downstream \\\"one\\\"\",\"state\":\"CLOSED\",\"successfulCalls\":2,\"failedCalls\":1,\"rejectedCalls\":1"));
+				assertTrue(line, line.contains("\"RATE_LIMITED\":1"));
+				events++;
+			}
+		}
+		in.close();
+	}
+}
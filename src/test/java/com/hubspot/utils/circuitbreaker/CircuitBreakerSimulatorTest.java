@@ -0,0 +1,84 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.time.Clock;
+
+import junit.framework.TestCase;
+
+import com.hubspot.utils.circuitbreaker.CircuitBreakerSimulator.Phase;
+import com.hubspot.utils.circuitbreaker.CircuitBreakerSimulator.PolicyFactory;
+import com.hubspot.utils.circuitbreaker.CircuitBreakerSimulator.Report;
+
+/**
+ * Uses CircuitBreakerSimulator to compare settings of BaseCircuitBreakerPolicyImpl over two
+ * hours of traffic with a five minute outage in the middle
+ */
+public class CircuitBreakerSimulatorTest extends TestCase {
+
+	private static final long HOUR = 3600 * 1000L;
+	private static final long MINUTE = 60 * 1000L;
+	
+	private static PolicyFactory basePolicy(final int tripThreshold, final int halfOpenTimeout, final int thresholdWindow) {
+		return new PolicyFactory() {
+			@Override
+			public CircuitBreakerPolicy create(Clock clock) throws CircuitBreakerWrappingException {
+				BaseCircuitBreakerPolicyImpl policy = new BaseCircuitBreakerPolicyImpl(tripThreshold, halfOpenTimeout, thresholdWindow);
+				policy.setClock(clock);
+				return policy;
+			}
+		};
+	}
+	
+	private static Report simulate(PolicyFactory factory) throws Exception {
+		return new CircuitBreakerSimulator().run(factory, CircuitBreakerSimulator.traffic(42, 
+				Phase.healthy(HOUR, 50, 0.01, 20), 
+				Phase.outage(5 * MINUTE, 50, 1.0, 5), 
+				Phase.healthy(HOUR, 50, 0.01, 20)));
+	}
+	
+	public void testDeterministic() throws Exception {
+		assertEquals(simulate(basePolicy(100, 30, 60)).toString(), simulate(basePolicy(100, 30, 60)).toString());
+	}
+	
+	public void testCompareSettings() throws Exception {
+		long start = System.nanoTime();
+		
+		// background failures alone reach a low threshold
+		Report touchy = simulate(basePolicy(5, 30, 60));
+		assertTrue(touchy.toString(), touchy.getFalseTrips() > 0);
+		assertTrue(touchy.toString(), touchy.getRejectedGoodCalls() > 0);
+		
+		Report tuned = simulate(basePolicy(100, 30, 60));
+		assertEquals(tuned.toString(), 0, tuned.getFalseTrips());
+		assertTrue(tuned.getCalls() > 300000);
+		
+		// trips within a few seconds of the outage, and probes every 30 seconds during it
+		assertEquals(tuned.toString(), 1, tuned.getDetectionDelays().size());
+		assertTrue(tuned.toString(), tuned.getDetectionDelays().get(0) < 5000);
+		assertTrue(tuned.toString(), tuned.getTripTimes().size() >= 5);
+		assertTrue(tuned.toString(), tuned.getRejectedBadCalls() > 10000);
+		
+		// closes on the first probe after the outage
+		assertEquals(tuned.toString(), 1, tuned.getRecoveryDelays().size());
+		assertTrue(tuned.toString(), tuned.getRecoveryDelays().get(0) <= 31000);
+		
+		// hours of traffic in seconds
+		assertTrue(System.nanoTime() - start < 30L * 1000 * 1000000L);
+	}
+}
@@ -0,0 +1,171 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+import com.hubspot.utils.circuitbreaker.CircuitBreakerPolicy.CircuitBreakerState;
+
+/**
+ * Checks that CircuitBreakerSnapshots restores what it wrote, and nothing else
+ */
+public class CircuitBreakerSnapshotsTest extends TestCase {
+
+	private File file;
+	
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("circuit-breaker", ".snapshot");
+		file.delete();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+	}
+	
+	public void testRoundTrip() throws Exception {
+		BaseCircuitBreakerPolicyImpl open = new BaseCircuitBreakerPolicyImpl(2, 30, 60);
+		BaseCircuitBreakerPolicyImpl failing = new BaseCircuitBreakerPolicyImpl(3, 30, 60);
+		open.failedBlacklistedCall(null);
+		open.failedBlacklistedCall(null);
+		failing.failedBlacklistedCall(null);
+		// left the window while we were down
+		failing.failedBlacklistedCall(new Date(System.currentTimeMillis() - 120000), null);
+		
+		CircuitBreakerSnapshots snapshots = new CircuitBreakerSnapshots(file, 0);
+		snapshots.register("open", open);
+		snapshots.register("failing", failing);
+		snapshots.write();
+		snapshots.close();
+		
+		BaseCircuitBreakerPolicyImpl restoredOpen = new BaseCircuitBreakerPolicyImpl(2, 30, 60);
+		BaseCircuitBreakerPolicyImpl restoredFailing = new BaseCircuitBreakerPolicyImpl(3, 30, 60);
+		CircuitBreakerSnapshots restart = new CircuitBreakerSnapshots(file, 0);
+		restart.register("open", restoredOpen);
+		restart.register("failing", restoredFailing);
+		assertEquals(2, restart.restore());
+		
+		assertEquals(CircuitBreakerState.OPEN, restoredOpen.getCurrentState());
+		assertEquals(open.getOpenDurationMillis(), restoredOpen.getOpenDurationMillis());
+		assertFalse(restoredOpen.shouldAttemptReset());
+		assertTrue(restoredOpen.shouldAttemptReset(new Date(System.currentTimeMillis() + 31000)));
+		
+		assertEquals(CircuitBreakerState.CLOSED, restoredFailing.getCurrentState());
+		assertEquals(1, restoredFailing.failures.size());
+		restoredFailing.failedBlacklistedCall(null);
+		assertEquals(CircuitBreakerState.CLOSED, restoredFailing.getCurrentState());
+		restoredFailing.failedBlacklistedCall(null);
+		assertEquals(CircuitBreakerState.OPEN, restoredFailing.getCurrentState());
+	}
+	
+	public void testCorruptSnapshot() throws Exception {
+		BaseCircuitBreakerPolicyImpl policy = new BaseCircuitBreakerPolicyImpl(1, 30, 60);
+		policy.failedBlacklistedCall(null);
+		CircuitBreakerSnapshots snapshots = new CircuitBreakerSnapshots(file, 0);
+		snapshots.register("policy", policy);
+		snapshots.write();
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(20);
+		raf.write(raf.read() ^ 0xFF);
+		raf.close();
+		
+		BaseCircuitBreakerPolicyImpl restored = new BaseCircuitBreakerPolicyImpl(1, 30, 60);
+		CircuitBreakerSnapshots restart = new CircuitBreakerSnapshots(file, 0);
+		restart.register("policy", restored);
+		assertEquals(0, restart.restore());
+		assertEquals(CircuitBreakerState.CLOSED, restored.getCurrentState());
+		
+		raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 4);
+		raf.close();
+		assertEquals(0, restart.restore());
+	}
+	
+	public void testCorruptLengths() throws Exception {
+		BaseCircuitBreakerPolicyImpl policy = new BaseCircuitBreakerPolicyImpl(1, 30, 60);
+		policy.failedBlacklistedCall(null);
+		CircuitBreakerSnapshots snapshots = new CircuitBreakerSnapshots(file, 0);
+		snapshots.register("policy", policy);
+		snapshots.write();
+		
+		// the number of failures and the state of the breaker, which would blow up if they were 
+		// used before the checksum is checked
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(55);
+		raf.writeInt(-1);
+		raf.seek(26);
+		raf.write(200);
+		raf.close();
+		
+		BaseCircuitBreakerPolicyImpl restored = new BaseCircuitBreakerPolicyImpl(1, 30, 60);
+		CircuitBreakerSnapshots restart = new CircuitBreakerSnapshots(file, 0);
+		restart.register("policy", restored);
+		assertEquals(0, restart.restore());
+		assertEquals(CircuitBreakerState.CLOSED, restored.getCurrentState());
+	}
+	
+	public void testPolicyClock() throws Exception {
+		// a policy on a clock far from the wall clock, as under a CircuitBreakerSimulator
+		Clock past = Clock.offset(Clock.systemUTC(), Duration.ofDays(-1000));
+		BaseCircuitBreakerPolicyImpl policy = new BaseCircuitBreakerPolicyImpl(1, 30, 60);
+		policy.setClock(past);
+		policy.failedBlacklistedCall(null);
+		CircuitBreakerSnapshots snapshots = new CircuitBreakerSnapshots(file, 0);
+		snapshots.register("policy", policy);
+		snapshots.write();
+		
+		BaseCircuitBreakerPolicyImpl restored = new BaseCircuitBreakerPolicyImpl(1, 30, 60);
+		restored.setClock(past);
+		CircuitBreakerSnapshots restart = new CircuitBreakerSnapshots(file, 0);
+		restart.register("policy", restored);
+		assertEquals(1, restart.restore());
+		
+		assertEquals(CircuitBreakerState.OPEN, restored.getCurrentState());
+		assertEquals(1, restored.failures.size());
+		assertFalse(restored.shouldAttemptReset());
+		restored.setClock(Clock.offset(past, Duration.ofSeconds(31)));
+		assertTrue(restored.shouldAttemptReset());
+	}
+	
+	public void testManyBreakers() throws Exception {
+		CircuitBreakerSnapshots snapshots = new CircuitBreakerSnapshots(file, 0);
+		CircuitBreakerSnapshots restart = new CircuitBreakerSnapshots(file, 0);
+		for( int i = 0; i < 5000; i++ ) {
+			BaseCircuitBreakerPolicyImpl policy = new BaseCircuitBreakerPolicyImpl(5, 30, 60);
+			for( int j = 0; j < i % 10; j++ ) {
+				policy.failedBlacklistedCall(null);
+			}
+			snapshots.register("breaker" + i, policy);
+			restart.register("breaker" + i, new BaseCircuitBreakerPolicyImpl(5, 30, 60));
+		}
+		snapshots.write();
+		
+		long start = System.nanoTime();
+		assertEquals(5000, restart.restore());
+		// generous bound, restoring typically takes a few milliseconds
+		assertTrue(System.nanoTime() - start < 2000L * 1000000L);
+	}
+}
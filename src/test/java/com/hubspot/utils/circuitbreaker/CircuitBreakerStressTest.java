@@ -0,0 +1,369 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.hubspot.utils.circuitbreaker.CircuitBreakerPolicy.CircuitBreakerState;
+
+/**
+ * Hammers breaker state transitions from many threads at once and checks the invariants the
+ * single threaded tests can't: no trip is lost, every transition is notified exactly once, 
+ * and only one caller is told to attempt each reset. Each scenario is repeated for many rounds
+ * so that the threads interleave differently every time.
+ * 
+ * These take a while, so they only run in the stress profile: mvn test -Pstress
+ */
+public class CircuitBreakerStressTest extends TestCase {
+
+	private static final int THREADS = 8;
+	private static final int ROUNDS = 2000;
+	private static final int FAILURES_PER_THREAD = 4;
+	
+	// far enough past any trip to allow a reset attempt
+	private static final Date LATER = new Date(Long.MAX_VALUE / 2);
+	
+	private Method method;
+	private List<File> stateFiles = new ArrayList<File>();
+	
+	/**
+	 * Work done by each of the threads of a round
+	 */
+	private interface Worker {
+		void run(int thread) throws Exception;
+	}
+	
+	/**
+	 * Records the state changes it is notified of, in the order it is notified of them
+	 */
+	private static class Recorder implements NotificationHandler<StateChange> {
+		final List<StateChange> changes = Collections.synchronizedList(new ArrayList<StateChange>());
+		
+		@Override
+		public void onChanged(StateChange change) {
+			changes.add(change);
+		}
+		
+		int count(CircuitBreakerState newState) {
+			int count = 0;
+			synchronized (changes) {
+				for (StateChange change : changes) {
+					if (change.getNewState() == newState) {
+						count++;
+					}
+				}
+			}
+			return count;
+		}
+	}
+	
+	@Override
+	protected void setUp() throws Exception {
+		method = Object.class.getMethod("toString");
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		for (File file : stateFiles) {
+			file.delete();
+		}
+	}
+	
+	public void testConcurrentFailuresTripOnce() throws Exception {
+		for (int round = 0; round < ROUNDS; round++) {
+			final BaseCircuitBreakerPolicyImpl policy = new BaseCircuitBreakerPolicyImpl(THREADS * FAILURES_PER_THREAD, 30, 600);
+			Recorder recorder = new Recorder();
+			policy.attachHandler(recorder);
+			
+			runConcurrently(new Worker() {
+				@Override
+				public void run(int thread) {
+					for (int i = 0; i < FAILURES_PER_THREAD; i++) {
+						policy.failedBlacklistedCall(new Date(), method);
+					}
+				}
+			});
+			
+			assertEquals(CircuitBreakerState.OPEN, policy.getCurrentState());
+			assertEquals(1, recorder.changes.size());
+			assertEquals(CircuitBreakerState.CLOSED, recorder.changes.get(0).getOldState());
+		}
+	}
+	
+	public void testConcurrentResetAttemptsHaveOneWinner() throws Exception {
+		for (int round = 0; round < ROUNDS; round++) {
+			final BaseCircuitBreakerPolicyImpl policy = new BaseCircuitBreakerPolicyImpl(1, 30, 600);
+			Recorder recorder = new Recorder();
+			policy.attachHandler(recorder);
+			policy.failedBlacklistedCall(method);
+			
+			final AtomicInteger attempts = new AtomicInteger();
+			runConcurrently(new Worker() {
+				@Override
+				public void run(int thread) {
+					if (policy.shouldAttemptReset(LATER)) {
+						attempts.incrementAndGet();
+					}
+				}
+			});
+			
+			assertEquals(1, attempts.get());
+			assertEquals(CircuitBreakerState.HALF_OPEN, policy.getCurrentState());
+			assertEquals(2, recorder.changes.size());
+			assertEquals(1, recorder.count(CircuitBreakerState.HALF_OPEN));
+		}
+	}
+	
+	public void testMixedTransitionsNotifyEachOnce() throws Exception {
+		for (int round = 0; round < ROUNDS / 10; round++) {
+			final BaseCircuitBreakerPolicyImpl policy = new BaseCircuitBreakerPolicyImpl(3, 30, 600);
+			Recorder recorder = new Recorder();
+			policy.attachHandler(recorder);
+			
+			final AtomicInteger attempts = new AtomicInteger();
+			runConcurrently(new Worker() {
+				@Override
+				public void run(int thread) {
+					Random random = new Random(thread);
+					for (int i = 0; i < 1000; i++) {
+						switch (random.nextInt(3)) {
+						case 0:
+							policy.failedBlacklistedCall(new Date(), method);
+							break;
+						case 1:
+							policy.successfulCall(method);
+							break;
+						default:
+							if (policy.shouldAttemptReset(LATER)) {
+								attempts.incrementAndGet();
+							}
+						}
+					}
+				}
+			});
+			
+			// notifications are made under the policy's lock, so they must form an unbroken 
+			// chain of real transitions ending in the current state
+			CircuitBreakerState state = CircuitBreakerState.CLOSED;
+			for (StateChange change : recorder.changes) {
+				assertEquals(state, change.getOldState());
+				assertFalse(change.getOldState() == change.getNewState());
+				state = change.getNewState();
+			}
+			assertEquals(state, policy.getCurrentState());
+			assertEquals(attempts.get(), recorder.count(CircuitBreakerState.HALF_OPEN));
+		}
+	}
+	
+	public void testSharedMemoryConcurrentFailuresTripOnce() throws Exception {
+		for (int round = 0; round < ROUNDS / 20; round++) {
+			final SharedMemoryCircuitBreakerPolicy policy = new SharedMemoryCircuitBreakerPolicy(newStateFile(), THREADS * FAILURES_PER_THREAD, 30, 600);
+			try {
+				Recorder recorder = new Recorder();
+				policy.attachHandler(recorder);
+				
+				runConcurrently(new Worker() {
+					@Override
+					public void run(int thread) {
+						for (int i = 0; i < FAILURES_PER_THREAD; i++) {
+							policy.failedBlacklistedCall(method);
+						}
+					}
+				});
+				
+				assertEquals(THREADS * FAILURES_PER_THREAD, policy.getFailureCount());
+				assertEquals(CircuitBreakerState.OPEN, policy.getCurrentState());
+				assertEquals(1, recorder.changes.size());
+			} finally {
+				policy.close();
+			}
+		}
+	}
+	
+	public void testSharedMemoryTransitionCycles() throws Exception {
+		final SharedMemoryCircuitBreakerPolicy policy = new SharedMemoryCircuitBreakerPolicy(newStateFile(), THREADS, 1, 600);
+		try {
+			Recorder recorder = new Recorder();
+			policy.attachHandler(recorder);
+			
+			for (int cycle = 1; cycle <= 3; cycle++) {
+				runConcurrently(new Worker() {
+					@Override
+					public void run(int thread) {
+						policy.failedBlacklistedCall(method);
+					}
+				});
+				assertEquals(CircuitBreakerState.OPEN, policy.getCurrentState());
+				
+				Thread.sleep(1100);
+				final AtomicInteger attempts = new AtomicInteger();
+				runConcurrently(new Worker() {
+					@Override
+					public void run(int thread) {
+						if (policy.shouldAttemptReset()) {
+							attempts.incrementAndGet();
+						}
+					}
+				});
+				assertEquals(1, attempts.get());
+				assertEquals(CircuitBreakerState.HALF_OPEN, policy.getCurrentState());
+				
+				runConcurrently(new Worker() {
+					@Override
+					public void run(int thread) {
+						policy.successfulCall(method);
+					}
+				});
+				assertEquals(CircuitBreakerState.CLOSED, policy.getCurrentState());
+				
+				assertEquals(3 * cycle, recorder.changes.size());
+				assertEquals(cycle, recorder.count(CircuitBreakerState.OPEN));
+				assertEquals(cycle, recorder.count(CircuitBreakerState.HALF_OPEN));
+				assertEquals(cycle, recorder.count(CircuitBreakerState.CLOSED));
+			}
+		} finally {
+			policy.close();
+		}
+	}
+	
+	public void testPartitionedConcurrentFailuresTripEveryKey() throws Exception {
+		final int keys = 64;
+		for (int round = 0; round < ROUNDS / 10; round++) {
+			final PartitionedBreaker breaker = new PartitionedBreaker(THREADS * FAILURES_PER_THREAD, 600, 30, keys, 600);
+			
+			runConcurrently(new Worker() {
+				@Override
+				public void run(int thread) {
+					for (int i = 0; i < FAILURES_PER_THREAD; i++) {
+						for (int key = 0; key < keys; key++) {
+							breaker.failedCall(key);
+						}
+					}
+				}
+			});
+			
+			for (int key = 0; key < keys; key++) {
+				assertEquals(CircuitBreakerState.OPEN, breaker.getState(key));
+				assertFalse(breaker.admit(key));
+			}
+		}
+	}
+	
+	public void testPartitionedFailedProbesRetrip() throws Exception {
+		final int keys = 64;
+		final PartitionedBreaker breaker = new PartitionedBreaker(1, 600, 1, keys, 600);
+		for (int key = 0; key < keys; key++) {
+			breaker.failedCall(key);
+		}
+		
+		for (int cycle = 0; cycle < 3; cycle++) {
+			Thread.sleep(1100);
+			final AtomicInteger admitted = new AtomicInteger();
+			runConcurrently(new Worker() {
+				@Override
+				public void run(int thread) {
+					for (int key = 0; key < keys; key++) {
+						if (breaker.admit(key)) {
+							admitted.incrementAndGet();
+						}
+					}
+				}
+			});
+			assertEquals(THREADS * keys, admitted.get());
+			
+			// a failed probe trips the key again with a fresh timeout, so nothing more gets through
+			runConcurrently(new Worker() {
+				@Override
+				public void run(int thread) {
+					for (int key = 0; key < keys; key++) {
+						breaker.failedCall(key);
+					}
+				}
+			});
+			admitted.set(0);
+			runConcurrently(new Worker() {
+				@Override
+				public void run(int thread) {
+					for (int key = 0; key < keys; key++) {
+						if (breaker.admit(key)) {
+							admitted.incrementAndGet();
+						}
+					}
+				}
+			});
+			assertEquals(0, admitted.get());
+		}
+	}
+	
+	private File newStateFile() throws Exception {
+		File file = File.createTempFile("breaker-stress", ".state");
+		file.delete();
+		stateFiles.add(file);
+		return file;
+	}
+	
+	/**
+	 * Runs the worker on THREADS threads, released together so that they contend as much as 
+	 * possible, and rethrows the first thing any of them threw
+	 */
+	private static void runConcurrently(final Worker worker) throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < THREADS; i++) {
+			final int thread = i;
+			Thread t = new Thread("stress-" + i) {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						worker.run(thread);
+					} catch (Throwable e) {
+						errors.add(e);
+					}
+				}
+			};
+			t.start();
+			threads.add(t);
+		}
+		
+		start.countDown();
+		for (Thread t : threads) {
+			t.join(TimeUnit.SECONDS.toMillis(60));
+			assertFalse("worker thread hung", t.isAlive());
+		}
+		if (!errors.isEmpty()) {
+			Throwable error = errors.get(0);
+			if (error instanceof Exception) {
+				throw (Exception) error;
+			}
+			throw (Error) error;
+		}
+	}
+}
@@ -0,0 +1,370 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import junit.framework.TestCase;
+
+import com.hubspot.utils.circuitbreaker.CircuitBreakerPolicy.CircuitBreakerState;
+
+/**
+ * Checks the functional API: CircuitBreaker and the decorators composing with it
+ */
+public class CircuitBreakerTest extends TestCase {
+
+	private static final Callable<String> FAILING = new Callable<String>() {
+		@Override
+		public String call() throws IOException {
+			throw new IOException();
+		}
+	};
+	
+	public interface Resource {
+		@CircuitBreakerExceptionBlacklist(blacklist={IOException.class})
+		String fetch(boolean fail) throws IOException, CircuitBreakerException;
+	}
+	
+	public static class ResourceImpl implements Resource {
+		@Override
+		public String fetch(boolean fail) throws IOException {
+			if (fail) {
+				throw new IOException();
+			}
+			return "ok";
+		}
+	}
+	
+	private static class CountingGate implements CircuitBreakerGate {
+		int admitted;
+		int released;
+		int failed;
+		
+		@Override
+		public boolean admit(Method m) {
+			admitted++;
+			return true;
+		}
+		
+		@Override
+		public void release(Method m, long latencyNanos, boolean failed) {
+			released++;
+			if (failed) {
+				this.failed++;
+			}
+		}
+		
+		@Override
+		public RejectionReason getRejectionReason() {
+			return RejectionReason.RATE_LIMITED;
+		}
+	}
+	
+	private interface Fetcher {
+		String fetch(boolean fail) throws Exception;
+	}
+	
+	private static String attempt(Fetcher fetcher, boolean fail) {
+		try {
+			return fetcher.fetch(fail);
+		} catch (CircuitBreakerException e) {
+			return e.getReason().toString();
+		} catch (Exception e) {
+			return e.getClass().getSimpleName();
+		}
+	}
+	
+	/**
+	 * Makes the same calls through the fetcher, and describes what they returned and what the
+	 * policies, gate, metrics and recording saw of them
+	 */
+	private static String exercise(Fetcher fetcher, CircuitBreakerPolicy policy, CircuitBreakerOptions options, CountingGate gate, File recording) throws Exception {
+		StringBuilder description = new StringBuilder();
+		description.append(attempt(fetcher, false)).append(' ');
+		description.append(attempt(fetcher, true)).append(' ');
+		Deadline previous = Deadline.enter(Deadline.after(0, TimeUnit.NANOSECONDS));
+		try {
+			description.append(attempt(fetcher, false)).append(' ');
+		} finally {
+			Deadline.restore(previous);
+		}
+		description.append(attempt(fetcher, true)).append(' ');
+		description.append(attempt(fetcher, false)).append(' ');
+		
+		CircuitBreakerMetrics metrics = options.getMetrics();
+		description.append(policy.getCurrentState()).append(' ').append(options.getParentPolicy().getCurrentState())
+			.append(" successful=").append(metrics.getSuccessfulCalls())
+			.append(" failed=").append(metrics.getFailedCalls());
+		for (RejectionReason reason : RejectionReason.values()) {
+			description.append(' ').append(reason).append('=').append(metrics.getRejectedCalls(reason));
+		}
+		description.append(" gate=").append(gate.admitted).append('/').append(gate.released).append('/').append(gate.failed);
+		
+		options.getCallRecorder().close();
+		for (CallRecorder.Record record : CallRecorder.read(recording)) {
+			description.append(' ').append(record.getOutcome()).append('/').append(record.getState()).append('/').append(record.getReason());
+		}
+		return description.toString();
+	}
+	
+	private static CircuitBreakerOptions options(CountingGate gate, File recording) throws Exception {
+		CircuitBreakerOptions options = new CircuitBreakerOptions();
+		options.setParentPolicy(new BaseCircuitBreakerPolicyImpl(10, 30, 60));
+		options.addGate(gate);
+		options.setCallRecorder(new CallRecorder(recording, 16));
+		return options;
+	}
+	
+	public void testSameAsWrappedInterface() throws Exception {
+		File wrappedRecording = File.createTempFile("circuit-breaker", ".recording");
+		File functionalRecording = File.createTempFile("circuit-breaker", ".recording");
+		try {
+			CountingGate wrappedGate = new CountingGate();
+			CircuitBreakerOptions wrappedOptions = options(wrappedGate, wrappedRecording);
+			BaseCircuitBreakerPolicyImpl wrappedPolicy = new BaseCircuitBreakerPolicyImpl(2, 30, 60);
+			final Resource wrapped = CircuitBreakerWrapper.getCircuitBreakerWrapperInstance().wrap(
+					new ResourceImpl(), Resource.class, wrappedPolicy, wrappedOptions);
+			String throughWrapper = exercise(new Fetcher() {
+				@Override
+				public String fetch(boolean fail) throws Exception {
+					return wrapped.fetch(fail);
+				}
+			}, wrappedPolicy, wrappedOptions, wrappedGate, wrappedRecording);
+			
+			CountingGate functionalGate = new CountingGate();
+			CircuitBreakerOptions functionalOptions = options(functionalGate, functionalRecording);
+			BaseCircuitBreakerPolicyImpl functionalPolicy = new BaseCircuitBreakerPolicyImpl(2, 30, 60);
+			final CircuitBreaker breaker = new CircuitBreaker(functionalPolicy, functionalOptions, IOException.class);
+			final ResourceImpl resource = new ResourceImpl();
+			String throughBreaker = exercise(new Fetcher() {
+				@Override
+				public String fetch(final boolean fail) throws Exception {
+					return breaker.call(new Callable<String>() {
+						@Override
+						public String call() throws IOException {
+							return resource.fetch(fail);
+						}
+					});
+				}
+			}, functionalPolicy, functionalOptions, functionalGate, functionalRecording);
+			
+			assertTrue(throughWrapper, throughWrapper.startsWith("ok IOException DEADLINE_EXCEEDED IOException BREAKER_OPEN OPEN CLOSED"));
+			assertEquals(throughWrapper, throughBreaker);
+		} finally {
+			for (File recording : new File[] { wrappedRecording, functionalRecording }) {
+				recording.delete();
+				CallRecorder.namesFileOf(recording).delete();
+			}
+		}
+	}
+	
+	public void testCall() throws Exception {
+		BaseCircuitBreakerPolicyImpl policy = new BaseCircuitBreakerPolicyImpl(2, 30, 60);
+		CircuitBreaker breaker = new CircuitBreaker(policy, IOException.class);
+		
+		assertEquals("ok", breaker.call(new Callable<String>() {
+			@Override
+			public String call() {
+				return "ok";
+			}
+		}));
+		
+		// exceptions that aren't blacklisted don't count
+		try {
+			breaker.call(new Callable<String>() {
+				@Override
+				public String call() {
+					throw new IllegalArgumentException();
+				}
+			});
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals(0, breaker.getMetrics().getFailedCalls());
+		
+		for (int i = 0; i < 2; i++) {
+			try {
+				breaker.call(FAILING);
+				fail();
+			} catch (IOException e) {
+				// expected
+			}
+		}
+		assertEquals(CircuitBreakerState.OPEN, policy.getCurrentState());
+		
+		try {
+			breaker.call(FAILING);
+			fail();
+		} catch (CircuitBreakerException e) {
+			assertEquals(RejectionReason.BREAKER_OPEN, e.getReason());
+		}
+		
+		final boolean[] ran = new boolean[1];
+		try {
+			breaker.run(new Runnable() {
+				@Override
+				public void run() {
+					ran[0] = true;
+				}
+			});
+			fail();
+		} catch (CircuitBreakerException e) {
+			// expected
+		}
+		assertFalse(ran[0]);
+		
+		Supplier<String> supplier = breaker.decorate(new Supplier<String>() {
+			@Override
+			public String get() {
+				return "ok";
+			}
+		});
+		try {
+			supplier.get();
+			fail();
+		} catch (UndeclaredThrowableException e) {
+			assertTrue(e.getCause() instanceof CircuitBreakerException);
+		}
+		
+		policy.successfulCall(null);
+		assertEquals("ok", supplier.get());
+		// the call that threw an exception which isn't blacklisted counts as successful, as for wrapped interfaces
+		assertEquals(3, breaker.getMetrics().getSuccessfulCalls());
+		assertEquals(3, breaker.getMetrics().getRejectedCalls());
+	}
+	
+	public void testCallClosingHalfOpenBreakerNotifies() throws Exception {
+		BaseCircuitBreakerPolicyImpl policy = new BaseCircuitBreakerPolicyImpl(1, 30, 60);
+		final List<StateChange> changes = new ArrayList<StateChange>();
+		policy.attachHandler(new NotificationHandler<StateChange>() {
+			@Override
+			public void onChanged(StateChange change) {
+				changes.add(change);
+			}
+		});
+		CircuitBreaker breaker = new CircuitBreaker(policy, IOException.class);
+		
+		try {
+			breaker.call(FAILING);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(CircuitBreakerState.OPEN, policy.getCurrentState());
+		
+		policy.setClock(Clock.offset(Clock.systemUTC(), Duration.ofSeconds(31)));
+		assertEquals("ok", breaker.call(new Callable<String>() {
+			@Override
+			public String call() {
+				return "ok";
+			}
+		}));
+		
+		assertEquals(CircuitBreakerState.CLOSED, policy.getCurrentState());
+		assertEquals(3, changes.size());
+		assertEquals(CircuitBreakerState.HALF_OPEN, changes.get(2).getOldState());
+		assertEquals(CircuitBreakerState.CLOSED, changes.get(2).getNewState());
+	}
+	
+	public void testCallWrapsOtherThrowables() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker(new BaseCircuitBreakerPolicyImpl(1, 30, 60), IOException.class);
+		final Throwable odd = new Throwable();
+		try {
+			breaker.call(new Callable<String>() {
+				@Override
+				public String call() {
+					return CircuitBreakerTest.<RuntimeException>sneakyThrow(odd);
+				}
+			});
+			fail();
+		} catch (UndeclaredThrowableException e) {
+			assertSame(odd, e.getCause());
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <E extends Throwable> String sneakyThrow(Throwable t) throws E {
+		throw (E) t;
+	}
+	
+	public void testDecorators() throws Exception {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			BaseCircuitBreakerPolicyImpl policy = new BaseCircuitBreakerPolicyImpl(1, 30, 60);
+			CircuitBreaker breaker = new CircuitBreaker(policy, TimeoutException.class);
+			final Bulkhead bulkhead = new Bulkhead(1);
+			CallTimeout timeout = new CallTimeout(50, TimeUnit.MILLISECONDS, executor);
+			
+			final CountDownLatch entered = new CountDownLatch(1);
+			final CountDownLatch release = new CountDownLatch(1);
+			final Callable<String> blocking = bulkhead.decorateCallable(new Callable<String>() {
+				@Override
+				public String call() throws InterruptedException {
+					entered.countDown();
+					release.await();
+					return "ok";
+				}
+			});
+			executor.submit(blocking);
+			assertTrue(entered.await(10, TimeUnit.SECONDS));
+			assertEquals(1, bulkhead.getInFlight());
+			
+			// bulkhead rejections aren't failures
+			try {
+				breaker.call(blocking);
+				fail();
+			} catch (CircuitBreakerException e) {
+				assertEquals(RejectionReason.CONCURRENCY_LIMITED, e.getReason());
+			}
+			assertEquals(CircuitBreakerState.CLOSED, policy.getCurrentState());
+			release.countDown();
+			
+			// timeouts are
+			try {
+				breaker.call(timeout.decorateCallable(new Callable<String>() {
+					@Override
+					public String call() throws InterruptedException {
+						Thread.sleep(10000);
+						return "late";
+					}
+				}));
+				fail();
+			} catch (TimeoutException e) {
+				// expected
+			}
+			assertEquals(CircuitBreakerState.OPEN, policy.getCurrentState());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -17,6 +17,9 @@
 
 package com.hubspot.utils.circuitbreaker;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import junit.framework.TestCase;
 /**
  * Unit tests for circuit breaker wrapping logic.
@@ -50,6 +53,21 @@ public class CircuitBreakerWrapperTest extends TestCase {
 	}
 
 
+	static class ReplicaImpl implements MockWrappedInterface {
+		volatile boolean failing = false;
+		int calls = 0;
+		
+		@Override
+		public synchronized String doSomething(String s) throws Exception, CircuitBreakerException {
+			calls++;
+			if (failing) {
+				throw new Exception();
+			}
+			return s;
+		}
+	}
+
+
 	/* (non-Javadoc)
 	 * @see junit.framework.TestCase#setUp()
 	 */
@@ -126,5 +144,92 @@ public class CircuitBreakerWrapperTest extends TestCase {
 		CircuitBreakerWrapper w = CircuitBreakerWrapper.getCircuitBreakerWrapperInstance();
 		assertNotNull(w);
 	}
+	
+	/**
+	 * Test that a set of replicas routes around the ones whose breaker is open, up to the 
+	 * maximum ejected fraction
+	 */
+	public void testWrapReplicas() throws Exception {
+		List<ReplicaImpl> replicas = new ArrayList<ReplicaImpl>();
+		List<CircuitBreakerPolicy> policies = new ArrayList<CircuitBreakerPolicy>();
+		for (int i = 0; i < 3; i++) {
+			replicas.add(new ReplicaImpl());
+			policies.add(new BaseCircuitBreakerPolicyImpl(1, 600, 600));
+		}
+		
+		CircuitBreakerWrapper cbw = CircuitBreakerWrapper.getCircuitBreakerWrapperInstance();
+		MockWrappedInterface mw = cbw.wrapReplicas(replicas, MockWrappedInterface.class, policies, 0.4, new CircuitBreakerOptions());
+		
+		// calls are spread over all replicas
+		for (int i = 0; i < 300; i++) {
+			assertEquals("HELLO", mw.doSomething("HELLO"));
+		}
+		for (ReplicaImpl replica : replicas) {
+			assertTrue(replica.calls > 0);
+		}
+		
+		// a replica whose breaker opens is ejected
+		replicas.get(0).failing = true;
+		int failures = 0;
+		for (int i = 0; i < 300; i++) {
+			try {
+				assertEquals("HELLO", mw.doSomething("HELLO"));
+			} catch (Exception e) {
+				failures++;
+			}
+		}
+		assertEquals(1, failures);
+		assertEquals(CircuitBreakerPolicy.CircuitBreakerState.OPEN, policies.get(0).getCurrentState());
+		
+		// but no more than the maximum fraction of replicas are ejected: the others stay in 
+		// rotation, and no call is rejected while a healthy replica is left
+		replicas.get(1).failing = true;
+		int rejections = 0;
+		for (int i = 0; i < 300; i++) {
+			try {
+				mw.doSomething("HELLO");
+			} catch (CircuitBreakerException e) {
+				rejections++;
+			} catch (Exception e) {
+			}
+		}
+		assertEquals(CircuitBreakerPolicy.CircuitBreakerState.OPEN, policies.get(0).getCurrentState());
+		assertEquals(CircuitBreakerPolicy.CircuitBreakerState.OPEN, policies.get(1).getCurrentState());
+		assertEquals(0, rejections);
+		int calls0 = replicas.get(0).calls;
+		int calls1 = replicas.get(1).calls;
+		for (int i = 0; i < 300; i++) {
+			try {
+				mw.doSomething("HELLO");
+			} catch (CircuitBreakerException e) {
+				rejections++;
+			} catch (Exception e) {
+			}
+		}
+		assertEquals(0, rejections);
+		assertTrue(replicas.get(0).calls + replicas.get(1).calls > calls0 + calls1);
+		
+		// and replicas kept in rotation rejoin once they recover, until the rest are within
+		// the maximum fraction again and wait for their own breakers
+		replicas.get(0).failing = false;
+		replicas.get(1).failing = false;
+		for (int i = 0; i < 300; i++) {
+			assertEquals("HELLO", mw.doSomething("HELLO"));
+		}
+		int open = 0;
+		for (CircuitBreakerPolicy policy : policies) {
+			if (policy.getCurrentState() == CircuitBreakerPolicy.CircuitBreakerState.OPEN) {
+				open++;
+			}
+		}
+		assertEquals(1, open);
+		
+		// the wrapped set can't be wrapped again
+		try {
+			cbw.wrap(mw, MockWrappedInterface.class, new BaseCircuitBreakerPolicyImpl(1, 1, 10));
+			fail();
+		} catch (CircuitBreakerWrappingException e) {
+		}
+	}
 
 }
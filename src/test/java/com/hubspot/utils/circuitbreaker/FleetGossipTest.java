@@ -0,0 +1,251 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.net.InetSocketAddress;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.hubspot.utils.circuitbreaker.CircuitBreakerPolicy.CircuitBreakerState;
+
+/**
+ * Checks that breaker states spread between instances through FleetGossip
+ */
+public class FleetGossipTest extends TestCase {
+
+	private static void trip(CircuitBreakerPolicy policy) {
+		for( int i = 0; i < 3; i++ ) {
+			policy.failedBlacklistedCall(null);
+		}
+	}
+	
+	private static int countOpen(FleetGossip gossip, int breakers) {
+		int open = 0;
+		for( int i = 0; i < breakers; i++ ) {
+			if( gossip.isOpenElsewhere("breaker" + i) ) {
+				open++;
+			}
+		}
+		return open;
+	}
+	
+	public void testInProcess() throws Exception {
+		InProcessGossipTransport.Network network = new InProcessGossipTransport.Network();
+		FleetGossip gossipA = new FleetGossip("a", new InProcessGossipTransport(network), 0, 10, 10);
+		FleetGossip gossipB = new FleetGossip("b", new InProcessGossipTransport(network), 0, 10, 10);
+		
+		FleetCircuitBreakerPolicy policyA = new FleetCircuitBreakerPolicy("downstream", new BaseCircuitBreakerPolicyImpl(3, 30, 60), gossipA, 60000);
+		FleetCircuitBreakerPolicy policyB = new FleetCircuitBreakerPolicy("downstream", new BaseCircuitBreakerPolicyImpl(3, 30, 60), gossipB, 60000);
+		FleetCircuitBreakerPolicy otherB = new FleetCircuitBreakerPolicy("other", new BaseCircuitBreakerPolicyImpl(3, 30, 60), gossipB, 60000);
+		
+		trip(policyA);
+		assertEquals(CircuitBreakerState.OPEN, policyA.getCurrentState());
+		
+		// nothing is sent until the next interval
+		assertEquals(CircuitBreakerState.CLOSED, policyB.getCurrentState());
+		gossipA.flush();
+		assertEquals(CircuitBreakerState.OPEN, policyB.getCurrentState());
+		assertFalse(policyB.shouldAttemptReset());
+		assertEquals(CircuitBreakerState.CLOSED, policyB.getLocalPolicy().getCurrentState());
+		assertEquals(CircuitBreakerState.CLOSED, otherB.getCurrentState());
+		
+		// the recovery spreads the same way
+		policyA.successfulCall(null);
+		gossipA.flush();
+		assertEquals(CircuitBreakerState.CLOSED, policyB.getCurrentState());
+		
+		gossipA.close();
+		gossipB.close();
+	}
+	
+	public void testAllOpenStillProbe() throws Exception {
+		InProcessGossipTransport.Network network = new InProcessGossipTransport.Network();
+		FleetGossip gossipA = new FleetGossip("a", new InProcessGossipTransport(network), 0, 10, 10);
+		FleetGossip gossipB = new FleetGossip("b", new InProcessGossipTransport(network), 0, 10, 10);
+		
+		BaseCircuitBreakerPolicyImpl localA = new BaseCircuitBreakerPolicyImpl(3, 30, 60);
+		BaseCircuitBreakerPolicyImpl localB = new BaseCircuitBreakerPolicyImpl(3, 30, 60);
+		FleetCircuitBreakerPolicy policyA = new FleetCircuitBreakerPolicy("downstream", localA, gossipA, 60000);
+		FleetCircuitBreakerPolicy policyB = new FleetCircuitBreakerPolicy("downstream", localB, gossipB, 60000);
+		
+		trip(policyA);
+		trip(policyB);
+		gossipA.flush();
+		gossipB.flush();
+		assertTrue(gossipA.isOpenElsewhere("downstream"));
+		assertTrue(gossipB.isOpenElsewhere("downstream"));
+		assertFalse(policyA.shouldAttemptReset());
+		
+		// past the half open timeout, each keeps hearing the other is OPEN but probes anyway
+		localA.setClock(Clock.offset(Clock.systemUTC(), Duration.ofSeconds(31)));
+		localB.setClock(Clock.offset(Clock.systemUTC(), Duration.ofSeconds(31)));
+		gossipA.flush();
+		gossipB.flush();
+		assertTrue(gossipA.isOpenElsewhere("downstream"));
+		assertTrue(policyA.shouldAttemptReset());
+		assertEquals(CircuitBreakerState.HALF_OPEN, policyA.getCurrentState());
+		assertTrue(policyB.shouldAttemptReset());
+		assertEquals(CircuitBreakerState.HALF_OPEN, policyB.getCurrentState());
+		
+		gossipA.close();
+		gossipB.close();
+	}
+	
+	public void testRemoteOpenExpires() throws Exception {
+		InProcessGossipTransport.Network network = new InProcessGossipTransport.Network();
+		FleetGossip gossipA = new FleetGossip("a", new InProcessGossipTransport(network), 0, 10, 10);
+		FleetGossip gossipB = new FleetGossip("b", new InProcessGossipTransport(network), 0, 10, 10);
+		
+		FleetCircuitBreakerPolicy policyA = new FleetCircuitBreakerPolicy("downstream", new BaseCircuitBreakerPolicyImpl(3, 30, 60), gossipA, 50);
+		trip(policyA);
+		gossipA.flush();
+		assertTrue(gossipB.isOpenElsewhere("downstream"));
+		
+		// instance A went silent, e.g. it died
+		gossipA.close();
+		Thread.sleep(100);
+		assertFalse(gossipB.isOpenElsewhere("downstream"));
+		
+		// and is forgotten
+		assertEquals(1, gossipB.getRemoteStateCount());
+		gossipB.flush();
+		assertEquals(0, gossipB.getRemoteStateCount());
+		gossipB.close();
+	}
+	
+	public void testBatching() throws Exception {
+		final int[] messages = new int[1];
+		InProcessGossipTransport.Network network = new InProcessGossipTransport.Network();
+		FleetGossip gossipA = new FleetGossip("a", new InProcessGossipTransport(network), 0, 2, 2);
+		FleetGossip gossipB = new FleetGossip("b", new InProcessGossipTransport(network) {
+			@Override
+			public void start(final Receiver receiver) {
+				super.start(new Receiver() {
+					@Override
+					public void received(byte[] message) {
+						messages[0]++;
+						receiver.received(message);
+					}
+				});
+			}
+		}, 0, 10, 10);
+		
+		for( int i = 0; i < 5; i++ ) {
+			gossipA.publish("breaker" + i, CircuitBreakerState.OPEN, 60000);
+		}
+		
+		// two messages of two states per interval
+		gossipA.flush();
+		assertEquals(2, messages[0]);
+		assertEquals(4, countOpen(gossipB, 5));
+		gossipA.flush();
+		assertEquals(4, messages[0]);
+		assertEquals(5, countOpen(gossipB, 5));
+		
+		gossipA.close();
+		gossipB.close();
+	}
+	
+	public void testLargeMessagesAreSplit() throws Exception {
+		final List<byte[]> messages = new ArrayList<byte[]>();
+		InProcessGossipTransport.Network network = new InProcessGossipTransport.Network();
+		FleetGossip gossipA = new FleetGossip("a", new InProcessGossipTransport(network), 0, 1000, 10);
+		FleetGossip gossipB = new FleetGossip("b", new InProcessGossipTransport(network) {
+			@Override
+			public void start(final Receiver receiver) {
+				super.start(new Receiver() {
+					@Override
+					public void received(byte[] message) {
+						messages.add(message);
+						receiver.received(message);
+					}
+				});
+			}
+		}, 0, 10, 10);
+		
+		StringBuilder prefix = new StringBuilder();
+		while( prefix.length() < 200 ) {
+			prefix.append("long-breaker-name-");
+		}
+		for( int i = 0; i < 1000; i++ ) {
+			gossipA.publish(prefix + "breaker" + i, CircuitBreakerState.OPEN, 60000);
+		}
+		// a name that can't fit in any message doesn't hold up the others
+		StringBuilder huge = new StringBuilder();
+		while( huge.length() < FleetGossip.MAX_MESSAGE_BYTES ) {
+			huge.append(prefix);
+		}
+		gossipA.publish(huge.toString(), CircuitBreakerState.OPEN, 60000);
+		
+		gossipA.flush();
+		assertTrue(messages.size() > 1);
+		for( byte[] message : messages ) {
+			assertTrue(message.length <= FleetGossip.MAX_MESSAGE_BYTES);
+		}
+		for( int i = 0; i < 1000; i++ ) {
+			assertTrue(gossipB.isOpenElsewhere(prefix + "breaker" + i));
+		}
+		assertFalse(gossipB.isOpenElsewhere(huge.toString()));
+		
+		gossipA.close();
+		gossipB.close();
+	}
+	
+	public void testIgnoresUnknownVersions() throws Exception {
+		FleetGossip gossip = new FleetGossip("a", new InProcessGossipTransport(new InProcessGossipTransport.Network()), 0, 10, 10);
+		
+		byte[] message = FleetGossip.encode("b", Collections.singletonList(new FleetGossip.Digest("downstream", CircuitBreakerState.OPEN, 1, 60000)));
+		message[2] = FleetGossip.FORMAT_VERSION + 1;
+		gossip.received(message);
+		assertFalse(gossip.isOpenElsewhere("downstream"));
+		
+		message[2] = FleetGossip.FORMAT_VERSION;
+		gossip.received(message);
+		assertTrue(gossip.isOpenElsewhere("downstream"));
+		
+		// older versions from the same instance don't override newer ones
+		gossip.received(FleetGossip.encode("b", Collections.singletonList(new FleetGossip.Digest("downstream", CircuitBreakerState.CLOSED, 2, 60000))));
+		gossip.received(message);
+		assertFalse(gossip.isOpenElsewhere("downstream"));
+		gossip.close();
+	}
+	
+	public void testUdpLoopback() throws Exception {
+		UdpGossipTransport transportB = new UdpGossipTransport(new InetSocketAddress("127.0.0.1", 0), Collections.<InetSocketAddress>emptyList());
+		FleetGossip gossipB = new FleetGossip("b", transportB, 10, 10, 10);
+		UdpGossipTransport transportA = new UdpGossipTransport(new InetSocketAddress("127.0.0.1", 0), Collections.singletonList(transportB.getLocalAddress()));
+		FleetGossip gossipA = new FleetGossip("a", transportA, 10, 10, 10);
+		
+		FleetCircuitBreakerPolicy policyA = new FleetCircuitBreakerPolicy("downstream", new BaseCircuitBreakerPolicyImpl(3, 30, 60), gossipA, 60000);
+		trip(policyA);
+		
+		long deadline = System.currentTimeMillis() + 10000;
+		while( !gossipB.isOpenElsewhere("downstream") && System.currentTimeMillis() < deadline ) {
+			Thread.sleep(10);
+		}
+		assertTrue(gossipB.isOpenElsewhere("downstream"));
+		
+		gossipA.close();
+		gossipB.close();
+	}
+}
@@ -0,0 +1,198 @@
+/** Copyright 2011 HubSpot, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ **/
+
+package com.hubspot.utils.circuitbreaker;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.hubspot.utils.circuitbreaker.CircuitBreakerPolicy.CircuitBreakerState;
+
+/**
+ * Checks that processes sharing a SharedMemoryCircuitBreakerPolicy file share one breaker,
+ * by forking JVMs that run Child against the same file.
+ */
+public class SharedMemoryCircuitBreakerPolicyTest extends TestCase {
+
+	private static final int HALF_OPEN_TIMEOUT = 30;
+	private static final int THRESHOLD_WINDOW = 600;
+	
+	private File stateFile;
+	
+	/**
+	 * Forked process: opens the file with the settings passed on the command line and records 
+	 * the given number of failures from several threads, or keeps recording failures until it 
+	 * is killed if the number is negative
+	 */
+	public static class Child {
+		public static void main(String[] args) throws Exception {
+			final SharedMemoryCircuitBreakerPolicy policy = new SharedMemoryCircuitBreakerPolicy(new File(args[0]), Integer.parseInt(args[1]), HALF_OPEN_TIMEOUT, THRESHOLD_WINDOW);
+			final int failures = Integer.parseInt(args[2]);
+			final int threads = 4;
+			
+			List<Thread> workers = new ArrayList<Thread>();
+			for( int i = 0; i < threads; i++ ) {
+				Thread worker = new Thread() {
+					@Override
+					public void run() {
+						for( int j = 0; failures < 0 || j < failures / threads; j++ ) {
+							policy.failedBlacklistedCall(null);
+						}
+					}
+				};
+				worker.start();
+				workers.add(worker);
+			}
+			for( Thread worker : workers ) {
+				worker.join();
+			}
+			policy.close();
+		}
+	}
+	
+	@Override
+	protected void setUp() throws Exception {
+		stateFile = File.createTempFile("circuit-breaker", ".state");
+		stateFile.delete();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		stateFile.delete();
+	}
+	
+	private Process fork(int tripThreshold, int failures) throws Exception {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), Child.class.getName(), 
+				stateFile.getPath(), String.valueOf(tripThreshold), String.valueOf(failures));
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+		return builder.start();
+	}
+	
+	private void waitFor(Process process) throws Exception {
+		assertTrue(process.waitFor(60, TimeUnit.SECONDS));
+		assertEquals(0, process.exitValue());
+	}
+	
+	public void testFailuresAcrossProcesses() throws Exception {
+		SharedMemoryCircuitBreakerPolicy policy = new SharedMemoryCircuitBreakerPolicy(stateFile, 1000000, HALF_OPEN_TIMEOUT, THRESHOLD_WINDOW);
+		try {
+			List<Process> children = new ArrayList<Process>();
+			for( int i = 0; i < 4; i++ ) {
+				children.add(fork(1000000, 20000));
+			}
+			for( Process child : children ) {
+				waitFor(child);
+			}
+			
+			// no failure is lost to a race between processes
+			assertEquals(80000, policy.getFailureCount());
+			assertEquals(CircuitBreakerState.CLOSED, policy.getCurrentState());
+		} finally {
+			policy.close();
+		}
+	}
+	
+	public void testTripAcrossProcesses() throws Exception {
+		SharedMemoryCircuitBreakerPolicy policy = new SharedMemoryCircuitBreakerPolicy(stateFile, 10, HALF_OPEN_TIMEOUT, THRESHOLD_WINDOW);
+		try {
+			final AtomicInteger opened = new AtomicInteger();
+			policy.attachHandler(new NotificationHandler<StateChange>() {
+				@Override
+				public void onChanged(StateChange change) {
+					if( change.getNewState() == CircuitBreakerState.OPEN ) {
+						opened.incrementAndGet();
+					}
+				}
+			});
+			
+			// each child alone stays below the threshold
+			waitFor(fork(10, 4));
+			assertEquals(CircuitBreakerState.CLOSED, policy.getCurrentState());
+			waitFor(fork(10, 4));
+			assertEquals(CircuitBreakerState.CLOSED, policy.getCurrentState());
+			waitFor(fork(10, 4));
+			assertEquals(CircuitBreakerState.OPEN, policy.getCurrentState());
+			assertEquals(1, opened.get());
+			assertFalse(policy.shouldAttemptReset());
+			
+			policy.successfulCall(null);
+			assertEquals(CircuitBreakerState.CLOSED, policy.getCurrentState());
+		} finally {
+			policy.close();
+		}
+	}
+	
+	public void testProcessKilledMidUpdate() throws Exception {
+		SharedMemoryCircuitBreakerPolicy policy = new SharedMemoryCircuitBreakerPolicy(stateFile, Integer.MAX_VALUE, HALF_OPEN_TIMEOUT, THRESHOLD_WINDOW);
+		try {
+			Process child = fork(Integer.MAX_VALUE, -1);
+			long deadline = System.currentTimeMillis() + 60000;
+			while( policy.getFailureCount() < 100000 && System.currentTimeMillis() < deadline ) {
+				Thread.sleep(10);
+			}
+			child.destroyForcibly();
+			assertTrue(child.waitFor(60, TimeUnit.SECONDS));
+			
+			// whatever the child was doing when it died, the file is still consistent and usable
+			long failures = policy.getFailureCount();
+			assertTrue(failures >= 100000);
+			for( int i = 0; i < 1000; i++ ) {
+				policy.failedBlacklistedCall(null);
+			}
+			assertEquals(failures + 1000, policy.getFailureCount());
+			assertEquals(CircuitBreakerState.CLOSED, policy.getCurrentState());
+			
+			SharedMemoryCircuitBreakerPolicy reopened = new SharedMemoryCircuitBreakerPolicy(stateFile, Integer.MAX_VALUE, HALF_OPEN_TIMEOUT, THRESHOLD_WINDOW);
+			assertEquals(failures + 1000, reopened.getFailureCount());
+			reopened.close();
+		} finally {
+			policy.close();
+		}
+	}
+	
+	public void testMismatchedSettings() throws Exception {
+		SharedMemoryCircuitBreakerPolicy policy = new SharedMemoryCircuitBreakerPolicy(stateFile, 10, HALF_OPEN_TIMEOUT, THRESHOLD_WINDOW);
+		try {
+			new SharedMemoryCircuitBreakerPolicy(stateFile, 20, HALF_OPEN_TIMEOUT, THRESHOLD_WINDOW);
+			fail("Opened a state file created with different settings");
+		} catch (CircuitBreakerWrappingException e) {
+			// expected
+		} finally {
+			policy.close();
+		}
+	}
+	
+	public void testSettingsComparedOneByOne() throws Exception {
+		// settings that a single word mixing all three would confuse
+		SharedMemoryCircuitBreakerPolicy policy = new SharedMemoryCircuitBreakerPolicy(stateFile, 10, 2, 1);
+		try {
+			new SharedMemoryCircuitBreakerPolicy(stateFile, 10, 1, (3 << 20) + 1);
+			fail("Opened a state file created with different settings");
+		} catch (CircuitBreakerWrappingException e) {
+			// expected
+		} finally {
+			policy.close();
+		}
+	}
+}